@@ -48,4 +48,24 @@ public interface IRigCoreBluetoothDeviceObserver {
     void didWriteValue(BluetoothDevice btDevice, BluetoothGattCharacteristic characteristic);
 
     void didReadDescriptor(BluetoothDevice btDevice, BluetoothGattDescriptor descriptor);
+
+    /**
+     * This method is called when a queued data request fails or times out
+     *
+     * @param btDevice The device for which the request failed
+     * @param request The request which failed
+     * @param status The failure status
+     */
+    void didFailRequest(BluetoothDevice btDevice, IRigDataRequest request, int status);
+
+    /**
+     * This method is called when the request queue of the device crosses its high or low
+     * watermark
+     *
+     * @param btDevice The device whose queue depth changed
+     * @param depth The number of waiting requests
+     * @param isHigh True if the high watermark was reached; false if the queue drained to the low
+     *               watermark
+     */
+    void didChangeQueueDepth(BluetoothDevice btDevice, int depth, boolean isHigh);
 }
@@ -2,6 +2,8 @@ package com.rigado.rigablue;
 
 import android.bluetooth.BluetoothDevice;
 
+import java.util.List;
+
 /**
  *  IRigCoreBluetoothDiscoveryObserver.java
  *
@@ -31,6 +33,14 @@ public interface IRigCoreBluetoothDiscoveryObserver extends IRigCoreBluetoothCom
      */
     void didDiscoverDevice(BluetoothDevice btDevice, int rssi, byte [] scanRecord);
 
+    /**
+     * This method is called with a batch of advertisements matching the discovery parameters
+     * when scan results are batched by the Bluetooth controller.
+     *
+     * @param results The matching advertisements, in the order they were received
+     */
+    void didDiscoverDevices(List<RigScanResult> results);
+
     /**
      * This method is called when a discovery session finishes after the specified timeout.
      */
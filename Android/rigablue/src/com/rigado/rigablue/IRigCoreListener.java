@@ -31,6 +31,9 @@ public interface IRigCoreListener {
     void onActionGattDataAvailable(BluetoothGattCharacteristic characteristic, BluetoothDevice bluetoothDevice);
     void onActionGattDataNotification(BluetoothGattCharacteristic characteristic, BluetoothDevice bluetoothDevice);
     void onActionGattDescriptorWrite(BluetoothGattDescriptor descriptor, BluetoothDevice bluetoothDevice);
-    void onActionGattCharWrite(BluetoothDevice bluetoothDevice, BluetoothGattCharacteristic characteristic);
+    void onActionGattCharWrite(BluetoothDevice bluetoothDevice, BluetoothGattCharacteristic characteristic, int status);
     void onActionGattDescriptorRead(BluetoothDevice bluetoothDevice, BluetoothGattDescriptor descriptor);
+    void onActionGattReliableWriteCompleted(BluetoothDevice bluetoothDevice, int status);
+    void onActionGattCharFail(BluetoothDevice bluetoothDevice, BluetoothGattCharacteristic characteristic, int type, int status);
+    void onActionGattDescriptorFail(BluetoothDevice bluetoothDevice, BluetoothGattDescriptor descriptor, int type, int status);
 }
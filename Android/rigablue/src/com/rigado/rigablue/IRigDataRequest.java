@@ -1,5 +1,7 @@
 package com.rigado.rigablue;
 
+import android.bluetooth.BluetoothDevice;
+
 /**
  *  IRigDataRequest.java
  *
@@ -18,6 +20,66 @@ package com.rigado.rigablue;
  * @version 1.0
  */
 public interface IRigDataRequest {
+    /**
+     * Request type for characteristic reads.
+     */
+    int TYPE_READ = 0;
+
+    /**
+     * Request type for characteristic writes.
+     */
+    int TYPE_WRITE = 1;
+
+    /**
+     * Request type for characteristic notification state changes.
+     */
+    int TYPE_NOTIFICATION_STATE = 2;
+
+    /**
+     * Request type for descriptor reads.
+     */
+    int TYPE_DESCRIPTOR_READ = 3;
+
+    /**
+     * Request type for reliable (prepared) writes of long characteristic values.
+     */
+    int TYPE_RELIABLE_WRITE = 4;
+
+    /**
+     * Priority for latency sensitive control traffic such as control point writes and
+     * notification state changes.
+     */
+    int PRIORITY_CONTROL = 0;
+
+    /**
+     * The default priority for requests.
+     */
+    int PRIORITY_NORMAL = 1;
+
+    /**
+     * Priority for bulk and background traffic such as periodic polling.
+     */
+    int PRIORITY_BULK = 2;
+
+    /**
+     * @return Returns the priority class of this request, one of the PRIORITY_ constants.
+     * Waiting requests with a higher priority are posted first.
+     */
+    int getPriority();
+
+    /**
+     * @return Returns the type of this request.  The type selects the default operation timeout
+     * applied by RigCoreBluetooth.
+     * @see RigCoreBluetooth#setRequestTimeout(int, long)
+     */
+    int getType();
+
+    /**
+     * @return Returns the Bluetooth device targeted by this request.  RigCoreBluetooth uses the
+     * device address to select the operation queue for the request.
+     */
+    BluetoothDevice getDevice();
+
     /**
      * This method is called to post a message to the RigService object connected to the Bluetooth
      * device that should receive the operation.
@@ -0,0 +1,31 @@
+package com.rigado.rigablue;
+
+/**
+ *  IRigLeDeviceLossObserver.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This interface provides an event for discovered devices which are removed from the discovered
+ * devices list by the discovery manager.  It is optional; set it on a device request with
+ * {@link RigDeviceRequest#setLossObserver(IRigLeDeviceLossObserver)}.
+ *
+ * @version 1.0
+ */
+public interface IRigLeDeviceLossObserver {
+    /**
+     * This method is called when a discovered device has not advertised within the device TTL,
+     * or is evicted as the least recently seen device because the discovered devices list is
+     * full.  If the device advertises again, it is reported as a new discovery.
+     *
+     * @param device The available device information for the lost device
+     * @see RigDeviceRequest#setDeviceTtl(long)
+     * @see RigDeviceRequest#setMaxDevices(int)
+     */
+    void didLoseDevice(RigAvailableDeviceData device);
+}
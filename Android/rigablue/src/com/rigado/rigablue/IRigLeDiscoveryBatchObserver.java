@@ -0,0 +1,43 @@
+package com.rigado.rigablue;
+
+import java.util.List;
+
+/**
+ *  IRigLeDiscoveryBatchObserver.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This interface provides discovery events in bulk for batched discovery.  It is optional; set
+ * it on a device request with
+ * {@link RigDeviceRequest#setBatchObserver(IRigLeDiscoveryBatchObserver)}.  When it is set,
+ * the devices from each batch of scan results are reported here in one call instead of one
+ * call per device to the discovery and update observers.
+ *
+ * @see RigDeviceRequest#setReportDelay(long)
+ * @version 1.0
+ */
+public interface IRigLeDiscoveryBatchObserver {
+    /**
+     * This method is called with the devices first discovered in a batch of scan results.
+     *
+     * @param devices The available device information for the discovered devices, in the order
+     *                their advertisements were received
+     */
+    void didDiscoverDevices(List<RigAvailableDeviceData> devices);
+
+    /**
+     * This method is called with the discovered devices updated by a batch of scan results.
+     * Updates are only reported in continuous discovery, when an update observer is set on the
+     * device request.
+     *
+     * @param devices The available device information for the updated devices
+     * @see IRigLeDiscoveryUpdateObserver
+     */
+    void didUpdateDevices(List<RigAvailableDeviceData> devices);
+}
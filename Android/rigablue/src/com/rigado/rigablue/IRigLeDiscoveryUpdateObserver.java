@@ -0,0 +1,34 @@
+package com.rigado.rigablue;
+
+/**
+ *  IRigLeDiscoveryUpdateObserver.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This interface provides events for devices which have already been discovered.  It is
+ * optional; setting it on a device request with
+ * {@link RigDeviceRequest#setUpdateObserver(IRigLeDiscoveryUpdateObserver)} runs discovery in
+ * continuous mode.
+ *
+ * @version 1.0
+ */
+public interface IRigLeDiscoveryUpdateObserver {
+    /**
+     * This method is called when a discovered device advertises changed data, or its RSSI moves
+     * into a different bucket, and the minimum update interval of the device has passed.  The
+     * device object is the one reported by
+     * {@link IRigLeDiscoveryManagerObserver#didDiscoverDevice(RigAvailableDeviceData)}, updated
+     * in place with the latest RSSI, advertising data and name.
+     *
+     * @param device The available device information for the updated device
+     * @see RigDeviceRequest#setRssiBucketSize(int)
+     * @see RigDeviceRequest#setMinUpdateInterval(long)
+     */
+    void didUpdateDevice(RigAvailableDeviceData device);
+}
@@ -0,0 +1,40 @@
+package com.rigado.rigablue;
+
+/**
+ *  IRigLeQueueObserver.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This interface provides flow control events for the data request queue of a device.  The
+ * events are only sent when a queue capacity is set with
+ * {@link RigCoreBluetooth#setRequestQueueCapacity(int, int)}.  It is optional; set it on a
+ * device with {@link RigLeBaseDevice#setQueueObserver(IRigLeQueueObserver)}.
+ *
+ * @version 1.0
+ */
+public interface IRigLeQueueObserver {
+    /**
+     * This method is called when the number of waiting requests for the device reaches three
+     * quarters of the queue capacity.  Producers should stop submitting requests until
+     * {@link #didReachLowWatermark(RigLeBaseDevice, int)} is called.
+     *
+     * @param device The device whose queue is filling up
+     * @param depth The number of waiting requests
+     */
+    void didReachHighWatermark(RigLeBaseDevice device, int depth);
+
+    /**
+     * This method is called when the number of waiting requests for the device falls back to
+     * one quarter of the queue capacity after reaching the high watermark.
+     *
+     * @param device The device whose queue has drained
+     * @param depth The number of waiting requests
+     */
+    void didReachLowWatermark(RigLeBaseDevice device, int depth);
+}
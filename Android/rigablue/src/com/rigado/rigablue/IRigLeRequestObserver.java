@@ -0,0 +1,35 @@
+package com.rigado.rigablue;
+
+/**
+ *  IRigLeRequestObserver.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This interface provides methods for handling data requests which did not complete
+ * successfully.  It is optional; set it on a device with
+ * {@link RigLeBaseDevice#setRequestObserver(IRigLeRequestObserver)}.
+ *
+ * @version 1.0
+ */
+public interface IRigLeRequestObserver {
+    /**
+     * This method is called when a read, write or notification state request for the device
+     * fails or does not complete before its deadline.  After a failure reported by the Bluetooth
+     * stack, the next queued request for the device is started at once.  After a deadline, the
+     * queue waits for the stack to release the operation, and the link is dropped if the stack
+     * does not do so within another deadline.
+     *
+     * @param device The device for which the request failed
+     * @param request The request which failed
+     * @param status The failure status, either the GATT status the Bluetooth stack reported in
+     *               the completion callback of the request or one of the RigCoreBluetooth
+     *               REQUEST_STATUS_ constants
+     */
+    void didFailRequest(RigLeBaseDevice device, IRigDataRequest request, int status);
+}
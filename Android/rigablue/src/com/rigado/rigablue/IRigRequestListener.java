@@ -0,0 +1,28 @@
+package com.rigado.rigablue;
+
+/**
+ *  IRigRequestListener.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This interface provides a completion callback for a single data request.
+ *
+ * @see RigRequestFuture#addListener(IRigRequestListener)
+ * @version 1.0
+ */
+public interface IRigRequestListener {
+    /**
+     * This method is called once when the request completes, fails or times out.  It is called
+     * on the thread that delivered the result, which is usually a Bluetooth binder thread, so
+     * implementations should not block.
+     *
+     * @param result The outcome of the request
+     */
+    void didCompleteRequest(RigRequestResult result);
+}
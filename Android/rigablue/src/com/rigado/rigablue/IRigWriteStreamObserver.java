@@ -0,0 +1,37 @@
+package com.rigado.rigablue;
+
+/**
+ *  IRigWriteStreamObserver.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This interface provides methods for flow control events of a RigWriteStream.
+ *
+ * @see RigWriteStream
+ * @version 1.0
+ */
+public interface IRigWriteStreamObserver {
+    /**
+     * This method is called each time the Bluetooth stack accepts a chunk and its credit is
+     * returned to the stream.  It is called on a Bluetooth callback thread and should not block.
+     *
+     * @param stream The stream which received the credit
+     * @param availableCredits The number of chunks which may now be written without waiting
+     */
+    void didReturnCredit(RigWriteStream stream, int availableCredits);
+
+    /**
+     * This method is called when a chunk could not be written.  The credit for the chunk is
+     * returned before this method is called.
+     *
+     * @param stream The stream for which the write failed
+     * @param status The failure status
+     */
+    void didFailWrite(RigWriteStream stream, int status);
+}
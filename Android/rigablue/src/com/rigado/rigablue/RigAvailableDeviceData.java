@@ -3,6 +3,14 @@ package com.rigado.rigablue;
 import android.bluetooth.BluetoothDevice;
 import android.util.Log;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
 /**
  *  RigAvailableDeviceData.java
  *
@@ -16,6 +24,11 @@ import android.util.Log;
 /**
  * This class provides data storage for available Bluetooth devices.
  *
+ * The AD structures of the advertising data record are indexed the first time any of them is
+ * accessed, so the name, flags, TX power, manufacturer data and service data are all read from
+ * a single parse.  Data is returned as read-only, little endian ByteBuffer views of the record
+ * rather than copies.
+ *
  * @author Eric Stutzenberger
  * @version 1.0
  */
@@ -25,8 +38,19 @@ public class RigAvailableDeviceData {
      * The following data type values are assigned by Bluetooth SIG.
      * For more details refer to Bluetooth 4.1 specification, Volume 3, Part C, Section 18.
      */
-    private static final int DATA_TYPE_LOCAL_NAME_SHORT = 0x08;
-    private static final int DATA_TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    public static final int DATA_TYPE_FLAGS = 0x01;
+    public static final int DATA_TYPE_LOCAL_NAME_SHORT = 0x08;
+    public static final int DATA_TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    public static final int DATA_TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int DATA_TYPE_SERVICE_DATA_16_BIT = 0x16;
+    public static final int DATA_TYPE_SERVICE_DATA_32_BIT = 0x20;
+    public static final int DATA_TYPE_SERVICE_DATA_128_BIT = 0x21;
+    public static final int DATA_TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    /**
+     * The TX power level returned when the device does not advertise one.
+     */
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
 
     /**
      * The available bluetooth device.
@@ -34,14 +58,22 @@ public class RigAvailableDeviceData {
     private BluetoothDevice mBluetoothDevice;
 
     /**
-     * The device name
+     * The device name, parsed on first use.  Guarded by this object.
      */
     private String mName;
+    private boolean mIsNameParsed;
+
+    /**
+     * The index of the AD structures in the advertising data record, built on first use.  Each
+     * structure takes two entries: its type, then the offset of its data in the upper 16 bits
+     * and the length of its data in the lower 16 bits.  Guarded by this object.
+     */
+    private int[] mAdIndex;
 
     /**
-     * The RSSI when discovered.
+     * The RSSI when discovered, or of the latest advertisement in continuous discovery.
      */
-    private int mRssi;
+    private volatile int mRssi;
 
     /**
      * The system timestamp of the discovery.
@@ -51,7 +83,21 @@ public class RigAvailableDeviceData {
     /**
      * The advertising data record.
      */
-    private byte[] mScanRecord;
+    private volatile byte[] mScanRecord;
+
+    /**
+     * The state last reported to observers and the system time of the latest advertisement.
+     * Guarded by this object.
+     */
+    private int mReportedRssi;
+    private int mReportedHash;
+    private long mReportedTime;
+    private volatile long mLastSeenTime;
+
+    /**
+     * The exponential moving average of the RSSI.  Guarded by this object.
+     */
+    private double mSmoothedRssi;
 
     /**
      * Available device data object constructor.
@@ -66,61 +112,250 @@ public class RigAvailableDeviceData {
         this.mBluetoothDevice = bluetoothDevice;
         this.mRssi = rssi;
         this.mScanRecord = scanRecord;
-        this.mName = parseNameFromScanRecord(scanRecord, bluetoothDevice);
+        this.mReportedRssi = rssi;
+        this.mReportedHash = Arrays.hashCode(scanRecord);
+        this.mReportedTime = discoverTime;
+        this.mLastSeenTime = discoverTime;
+        this.mSmoothedRssi = rssi;
     }
 
     /**
-     * Import from Google's {@link android.bluetooth.le.ScanRecord}
+     * Updates the device with a later advertisement and decides whether the change is worth
+     * reporting.  The data is always updated; the update is reported if the advertising data
+     * differs from the data last reported, or the RSSI is in a different bucket, and at least
+     * {@code minInterval} has passed since the last report.
      *
-     * Parses the local name of the {@link BluetoothDevice} from the {@code scanRecord}.
+     * @param rssi The RSSI of the advertisement
+     * @param scanRecord The advertising data record
+     * @param time The system time of the advertisement
+     * @param rssiBucketSize The width of the RSSI buckets in dB
+     * @param minInterval The minimum time between reports in milliseconds
+     * @return Returns true if observers should be told about the update
+     */
+    synchronized boolean update(int rssi, byte[] scanRecord, long time, int rssiBucketSize,
+                                long minInterval) {
+        // The index and name hold offsets into the record, so any other content invalidates them
+        if (scanRecord != mScanRecord && !Arrays.equals(scanRecord, mScanRecord)) {
+            mAdIndex = null;
+            mIsNameParsed = false;
+        }
+        mRssi = rssi;
+        mScanRecord = scanRecord;
+        mLastSeenTime = time;
+
+        // The hash only decides whether the advertisement is worth reporting again
+        int hash = Arrays.hashCode(scanRecord);
+        if (hash == mReportedHash
+                && rssiBucket(rssi, rssiBucketSize) == rssiBucket(mReportedRssi, rssiBucketSize)) {
+            return false;
+        }
+
+        // A clock set backwards counts as the interval having passed
+        if (time >= mReportedTime && time - mReportedTime < minInterval) {
+            return false;
+        }
+
+        mReportedRssi = rssi;
+        mReportedHash = hash;
+        mReportedTime = time;
+        return true;
+    }
+
+    /**
+     * @return Returns the index of the bucket the RSSI falls in, rounding towards negative
+     * infinity so buckets are the same width either side of 0
+     */
+    static int rssiBucket(int rssi, int bucketSize) {
+        if (rssi >= 0) {
+            return rssi / bucketSize;
+        }
+        return -((bucketSize - 1 - rssi) / bucketSize);
+    }
+
+    /**
      * Since {@link BluetoothDevice#getName()} is cached by the bluetooth stack, it is unreliable
      * because it might return the wrong name.
      *
-     * @param scanRecord The raw bytes of the {@link android.bluetooth.le.ScanRecord} returned from
-     *                   a Bluetooth LE scan.
-     * @return The local name of the device or null
+     * @return The device name parsed from the raw {@code scanRecord} bytes, or null
      */
-    private String parseNameFromScanRecord(byte [] scanRecord, BluetoothDevice device) {
-        if (scanRecord == null) {
-            return null;
+    public synchronized String getUncachedName() {
+        if (!mIsNameParsed) {
+            mName = null;
+            int[] index = getAdIndex();
+            for (int i = 0; i < index.length; i += 2) {
+                if (index[i] == DATA_TYPE_LOCAL_NAME_SHORT || index[i] == DATA_TYPE_LOCAL_NAME_COMPLETE) {
+                    mName = new String(mScanRecord, index[i + 1] >>> 16, index[i + 1] & 0xFFFF);
+                    break;
+                }
+            }
+            mIsNameParsed = true;
         }
+        return this.mName;
+    }
 
-        int currentPos = 0;
+    /**
+     * @param type The AD type, for example one of the DATA_TYPE_ constants
+     * @return Returns the data of the first AD structure of the type, or null if the record has
+     * none
+     */
+    public synchronized ByteBuffer getAdvertisingData(int type) {
+        int[] index = getAdIndex();
+        for (int i = 0; i < index.length; i += 2) {
+            if (index[i] == type) {
+                return view(index[i + 1] >>> 16, index[i + 1] & 0xFFFF);
+            }
+        }
+        return null;
+    }
 
-        try {
-            while (currentPos < scanRecord.length) {
-                // length is unsigned int.
-                int length = scanRecord[currentPos++] & 0xFF;
-                if (length == 0) {
-                    break;
+    /**
+     * @param type The AD type, for example one of the DATA_TYPE_ constants
+     * @return Returns the data of each AD structure of the type, in record order
+     */
+    public synchronized List<ByteBuffer> getAdvertisingDataList(int type) {
+        List<ByteBuffer> dataList = null;
+        int[] index = getAdIndex();
+        for (int i = 0; i < index.length; i += 2) {
+            if (index[i] == type) {
+                if (dataList == null) {
+                    dataList = new ArrayList<>(2);
                 }
+                dataList.add(view(index[i + 1] >>> 16, index[i + 1] & 0xFFFF));
+            }
+        }
+        return (dataList != null) ? dataList : Collections.<ByteBuffer>emptyList();
+    }
 
-                // Not the length includes the length of the field type itself
-                final int dataLength = length - 1;
-                // fieldType is unsigned int.
-                final int fieldType = scanRecord[currentPos++] & 0xFF;
-                switch (fieldType) {
-                    case DATA_TYPE_LOCAL_NAME_SHORT:
-                    case DATA_TYPE_LOCAL_NAME_COMPLETE:
-                        return new String(extractBytes(scanRecord, currentPos, dataLength));
-                    default:
-                        // ignore other data types
-                        break;
-                }
-                currentPos += dataLength;
+    /**
+     * @param companyId The Bluetooth SIG company identifier
+     * @return Returns the manufacturer specific data of the company, following the company
+     * identifier, or null if the record has none
+     */
+    public synchronized ByteBuffer getManufacturerData(int companyId) {
+        int[] index = getAdIndex();
+        for (int i = 0; i < index.length; i += 2) {
+            int offset = index[i + 1] >>> 16;
+            int length = index[i + 1] & 0xFFFF;
+            if (index[i] == DATA_TYPE_MANUFACTURER_SPECIFIC_DATA && length >= 2
+                    && RigScanFilter.readLittleEndian(mScanRecord, offset, 2) == companyId) {
+                return view(offset + 2, length - 2);
             }
-        } catch (Exception e) {
-            RigLog.e("Unable to parse device name!");
         }
+        return null;
+    }
+
+    /**
+     * @param serviceUuid The service UUID, in 16, 32 or 128-bit form in the record
+     * @return Returns the service data of the service, following the service UUID, or null if
+     * the record has none
+     */
+    public synchronized ByteBuffer getServiceData(UUID serviceUuid) {
+        long msb = serviceUuid.getMostSignificantBits();
+        long lsb = serviceUuid.getLeastSignificantBits();
+        int[] index = getAdIndex();
+        for (int i = 0; i < index.length; i += 2) {
+            int uuidLength;
+            switch (index[i]) {
+                case DATA_TYPE_SERVICE_DATA_16_BIT:
+                    uuidLength = 2;
+                    break;
+                case DATA_TYPE_SERVICE_DATA_32_BIT:
+                    uuidLength = 4;
+                    break;
+                case DATA_TYPE_SERVICE_DATA_128_BIT:
+                    uuidLength = 16;
+                    break;
+                default:
+                    continue;
+            }
 
+            int offset = index[i + 1] >>> 16;
+            int length = index[i + 1] & 0xFFFF;
+            if (length < uuidLength) {
+                continue;
+            }
+            long dataMsb;
+            long dataLsb;
+            if (uuidLength == 16) {
+                dataLsb = RigScanFilter.readLittleEndian(mScanRecord, offset, 8);
+                dataMsb = RigScanFilter.readLittleEndian(mScanRecord, offset + 8, 8);
+            } else {
+                dataMsb = RigScanFilter.shortUuidMsb(
+                        RigScanFilter.readLittleEndian(mScanRecord, offset, uuidLength));
+                dataLsb = RigScanFilter.BASE_UUID_LSB;
+            }
+            if (dataMsb == msb && dataLsb == lsb) {
+                return view(offset + uuidLength, length - uuidLength);
+            }
+        }
         return null;
     }
 
     /**
-     * @return The device name parsed from the raw {@code scanRecord} bytes
+     * @return Returns the advertised TX power level in dBm, or TX_POWER_UNKNOWN
      */
-    public String getUncachedName() {
-        return this.mName;
+    public synchronized int getTxPowerLevel() {
+        ByteBuffer data = getAdvertisingData(DATA_TYPE_TX_POWER_LEVEL);
+        if (data == null || data.remaining() < 1) {
+            return TX_POWER_UNKNOWN;
+        }
+        return data.get(0);
+    }
+
+    /**
+     * @return Returns the advertised flags, or -1 if the record has none
+     */
+    public synchronized int getAdvertiseFlags() {
+        ByteBuffer data = getAdvertisingData(DATA_TYPE_FLAGS);
+        if (data == null || data.remaining() < 1) {
+            return -1;
+        }
+        return data.get(0) & 0xFF;
+    }
+
+    /**
+     * Builds the AD structure index of the record on first use.  Parsing stops at the first
+     * zero length structure or at a structure which runs past the end of the record.  Must be
+     * called holding this object's lock.
+     */
+    private int[] getAdIndex() {
+        if (mAdIndex != null) {
+            return mAdIndex;
+        }
+
+        byte[] scanRecord = mScanRecord;
+        if (scanRecord == null) {
+            mAdIndex = new int[0];
+            return mAdIndex;
+        }
+
+        int count = 0;
+        int[] index = new int[16];
+        int pos = 0;
+        while (pos < scanRecord.length) {
+            int length = scanRecord[pos] & 0xFF;
+            if (length == 0 || pos + 1 + length > scanRecord.length) {
+                break;
+            }
+
+            if (count + 2 > index.length) {
+                index = Arrays.copyOf(index, index.length * 2);
+            }
+            index[count++] = scanRecord[pos + 1] & 0xFF;
+            index[count++] = ((pos + 2) << 16) | (length - 1);
+            pos += 1 + length;
+        }
+        mAdIndex = Arrays.copyOf(index, count);
+        return mAdIndex;
+    }
+
+    /**
+     * @return Returns a read-only, little endian view of part of the record
+     */
+    private ByteBuffer view(int offset, int length) {
+        ByteBuffer data = ByteBuffer.wrap(mScanRecord, offset, length).slice().asReadOnlyBuffer();
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        return data;
     }
 
     /**
@@ -137,6 +372,44 @@ public class RigAvailableDeviceData {
         return mDiscoverTime;
     }
 
+    /**
+     * Folds the RSSI of an advertisement into the smoothed RSSI.
+     *
+     * @param rssi The RSSI of the advertisement
+     * @param smoothing The weight of the advertisement, greater than 0 and at most 1
+     * @return Returns the new smoothed RSSI
+     */
+    synchronized double smoothRssi(int rssi, float smoothing) {
+        mSmoothedRssi += smoothing * (rssi - mSmoothedRssi);
+        return mSmoothedRssi;
+    }
+
+    /**
+     * @return Returns the smoothed RSSI, an exponential moving average of the RSSI of every
+     * advertisement received while the device was in the discovered devices list
+     * @see RigDeviceRequest#setRssiSmoothing(float)
+     */
+    public synchronized double getSmoothedRssi() {
+        return mSmoothedRssi;
+    }
+
+    /**
+     * Records that the device advertised again, without changing its data.
+     *
+     * @param time The system time of the advertisement
+     */
+    void markSeen(long time) {
+        mLastSeenTime = time;
+    }
+
+    /**
+     * @return Returns the system time of the latest advertisement received while the device
+     * was in the discovered devices list
+     */
+    public long getLastSeenTime() {
+        return mLastSeenTime;
+    }
+
     /**
      * @return Returns the advertising data record
      */
@@ -166,6 +439,18 @@ public class RigAvailableDeviceData {
         return deviceData.getBluetoothDevice().getAddress().equals(mBluetoothDevice.getAddress());
     }
 
+    /**
+     * @return Returns a hash code consistent with {@link #equals(Object)}, based on the
+     * Bluetooth MAC address
+     */
+    @Override
+    public int hashCode() {
+        if(mBluetoothDevice == null || mBluetoothDevice.getAddress() == null) {
+            return 0;
+        }
+        return mBluetoothDevice.getAddress().hashCode();
+    }
+
     /**
      * Converts the available device data object to a string.
      * @return Returns the Bluetooth MAC address as a string
@@ -177,19 +462,4 @@ public class RigAvailableDeviceData {
         }
         return mBluetoothDevice.getAddress();
     }
-
-    /**
-     * Import from Google's {@link android.bluetooth.le.ScanRecord} class.
-     * Helper method to extract bytes from byte array.
-     *
-     * @param scanRecord The raw bytes received from a Bluetooth LE scan
-     * @param start Start index of the data to extract
-     * @param length Length of the data to extract
-     * @return A new {@code byte []} containing the desired section of the {@code scanRecord}
-     */
-    private static byte[] extractBytes(byte[] scanRecord, int start, int length) {
-        byte[] bytes = new byte[length];
-        System.arraycopy(scanRecord, start, bytes, 0, length);
-        return bytes;
-    }
 }
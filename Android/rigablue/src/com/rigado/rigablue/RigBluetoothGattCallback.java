@@ -120,8 +120,9 @@ public class RigBluetoothGattCallback extends BluetoothGattCallback {
             if (mRigCoreListener != null) {
                 mRigCoreListener.onActionGattDataAvailable(characteristic, gatt.getDevice());
             }
-        } else {
-            mRigCoreListener.onActionGattFail(gatt.getDevice());
+        } else if (mRigCoreListener != null) {
+            mRigCoreListener.onActionGattCharFail(gatt.getDevice(), characteristic,
+                    IRigDataRequest.TYPE_READ, status);
         }
     }
 
@@ -136,10 +137,10 @@ public class RigBluetoothGattCallback extends BluetoothGattCallback {
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt,
                                       BluetoothGattCharacteristic characteristic, int status) {
-        RigLog.d("onCharacteristicWrite");
+        RigLog.d("onCharacteristicWrite " + status);
         if(status == BluetoothGatt.GATT_SUCCESS) {
             if(mRigCoreListener != null) {
-                mRigCoreListener.onActionGattCharWrite(gatt.getDevice(), characteristic);
+                mRigCoreListener.onActionGattCharWrite(gatt.getDevice(), characteristic, status);
             }
         } else if(status == 133) {
                 /* Send along anyway because we may have forced a reset to get in to the bootloader
@@ -147,29 +148,46 @@ public class RigBluetoothGattCallback extends BluetoothGattCallback {
                    this callback is registered.
                  */
             if(mRigCoreListener != null) {
-                mRigCoreListener.onActionGattCharWrite(gatt.getDevice(), characteristic);
+                mRigCoreListener.onActionGattCharWrite(gatt.getDevice(), characteristic, status);
             }
+        } else if(mRigCoreListener != null) {
+            mRigCoreListener.onActionGattCharFail(gatt.getDevice(), characteristic,
+                    IRigDataRequest.TYPE_WRITE, status);
+        }
+    }
+
+    @Override
+    public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
+        RigLog.d("onReliableWriteCompleted " + status);
+        if(mRigCoreListener != null) {
+            mRigCoreListener.onActionGattReliableWriteCompleted(gatt.getDevice(), status);
         }
     }
 
     @Override
     public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor,
                                   int status) {
-        RigLog.d("onDescriptorWrite");
+        RigLog.d("onDescriptorWrite " + status);
         if (status == BluetoothGatt.GATT_SUCCESS) {
             if(mRigCoreListener != null) {
                 mRigCoreListener.onActionGattDescriptorWrite(descriptor, gatt.getDevice());
             }
+        } else if(mRigCoreListener != null) {
+            mRigCoreListener.onActionGattDescriptorFail(gatt.getDevice(), descriptor,
+                    IRigDataRequest.TYPE_NOTIFICATION_STATE, status);
         }
     }
 
     @Override
     public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-        RigLog.d("onDescriptorRead");
+        RigLog.d("onDescriptorRead " + status);
         if(status == BluetoothGatt.GATT_SUCCESS) {
             if(mRigCoreListener != null) {
                 mRigCoreListener.onActionGattDescriptorRead(gatt.getDevice(), descriptor);
             }
+        } else if(mRigCoreListener != null) {
+            mRigCoreListener.onActionGattDescriptorFail(gatt.getDevice(), descriptor,
+                    IRigDataRequest.TYPE_DESCRIPTOR_READ, status);
         }
 
     }
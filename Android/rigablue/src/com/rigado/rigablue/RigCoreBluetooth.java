@@ -4,6 +4,7 @@ import android.annotation.TargetApi;
 import android.bluetooth.*;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
@@ -12,10 +13,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -41,23 +43,125 @@ public class RigCoreBluetooth implements IRigCoreListener {
 
     private static final String RigCoreBluetoothLibraryVersion = "Rigablue Library v" + BuildConfig.VERSION_NAME;
 
+    /**
+     * The default deadline, in milliseconds, for a queued data request to receive its
+     * completion callback.
+     */
+    public static final long DEFAULT_REQUEST_TIMEOUT = 5000;
+
+    /**
+     * Failure status reported when a data request does not complete before its deadline.
+     */
+    public static final int REQUEST_STATUS_TIMEOUT = -1;
+
+    /**
+     * Failure status reported when a data request could not be posted to the Bluetooth stack.
+     */
+    public static final int REQUEST_STATUS_POST_FAILED = -2;
+
+    /**
+     * Failure status reported when a queued data request is dropped because the device
+     * disconnected.
+     */
+    public static final int REQUEST_STATUS_CANCELLED = -3;
+
+    /**
+     * Failure status reported when a data request is rejected before it is queued, for example
+     * because the characteristic does not support the operation.
+     */
+    public static final int REQUEST_STATUS_INVALID = -4;
+
+    /**
+     * Failure status reported when a data request is refused because the device queue is full.
+     */
+    public static final int REQUEST_STATUS_REJECTED = -5;
+
+    /**
+     * Failure status reported when a waiting data request is evicted to make room for a newer
+     * request under {@link #QUEUE_POLICY_DROP_OLDEST}.
+     */
+    public static final int REQUEST_STATUS_DROPPED = -6;
+
+    /**
+     * Overflow policy which makes the submitting thread wait for room in a full device queue.
+     * The wait is bounded by the block timeout set with
+     * {@link #setRequestQueueBlockTimeout(long)}; if no room becomes available in time the
+     * request is rejected.  The main thread never waits: a request submitted from it to a full
+     * queue is rejected at once.  Do not submit from observer callbacks under this policy, as the
+     * queue only drains once the callback returns.
+     */
+    public static final int QUEUE_POLICY_BLOCK = 0;
+
+    /**
+     * Overflow policy which fails a new request with {@link #REQUEST_STATUS_REJECTED} when the
+     * device queue is full.
+     */
+    public static final int QUEUE_POLICY_REJECT = 1;
+
+    /**
+     * Overflow policy which evicts the oldest waiting request of the lowest priority class to
+     * make room for a new request.  The evicted request fails with
+     * {@link #REQUEST_STATUS_DROPPED}.  A new request with a lower priority than everything
+     * waiting is rejected instead.
+     */
+    public static final int QUEUE_POLICY_DROP_OLDEST = 2;
+
+    /**
+     * The default maximum time, in milliseconds, a submitting thread waits for room in a full
+     * device queue under {@link #QUEUE_POLICY_BLOCK}.
+     */
+    public static final long DEFAULT_QUEUE_BLOCK_TIMEOUT = 1000;
+
+    /**
+     * The default maximum number of scan filters handed to the Bluetooth controller.
+     */
+    public static final int DEFAULT_HARDWARE_SCAN_FILTER_LIMIT = 16;
+
+    /**
+     * ScanCallback.SCAN_FAILED_OUT_OF_HARDWARE_RESOURCES, added in API 26.
+     */
+    private static final int SCAN_FAILED_OUT_OF_HARDWARE_RESOURCES = 5;
+
+    /**
+     * Android N+ blocks apps which start more than SCAN_START_LIMIT scans in SCAN_START_PERIOD
+     * milliseconds.  Starts are spaced with a margin for the difference between our clock and
+     * the system's record of the starts.
+     */
+    private static final int SCAN_START_LIMIT = 5;
+    private static final long SCAN_START_PERIOD = 30000;
+    private static final long SCAN_START_MARGIN = 500;
+
+    /**
+     * The number of scan results which can wait for the scan ingestion thread, and the record
+     * buffer preallocated for each: 31 bytes of advertising data and 31 of scan response.
+     */
+    private static final int SCAN_RING_CAPACITY = 256;
+    private static final int SCAN_RECORD_SIZE = 62;
+
     private BluetoothAdapter mBluetoothAdapter;
     private Context mContext;
     private RigService mBluetoothLeService;
     private IRigCoreBluetoothConnectionObserver mConnectionObserver;
     private IRigCoreBluetoothDiscoveryObserver mDiscoveryObserver;
-    private volatile boolean mIsDataOpInProgress;
     private volatile boolean mIsDiscovering;
-    private UUID[] mUUIDList;
-    private Queue<IRigDataRequest> mOpsQueue = new ConcurrentLinkedQueue<>();
+    private volatile RigScanFilter mScanFilter = RigScanFilter.MATCH_ALL;
+    private final ConcurrentHashMap<String, RigDeviceOpQueue> mOpsQueues = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Long> mRequestTimeouts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<IRigDataRequest, RigRequestFuture> mRequestFutures = new ConcurrentHashMap<>();
+    private volatile int mQueueCapacity = 0;
+    private volatile int mQueueOverflowPolicy = QUEUE_POLICY_REJECT;
+    private volatile long mQueueBlockTimeout = DEFAULT_QUEUE_BLOCK_TIMEOUT;
     private BluetoothDevice mConnectingDevice;
 
     private static RigCoreBluetooth instance = null;
 
     private static final ScheduledExecutorService connectionWorker =
             Executors.newSingleThreadScheduledExecutor();
+    // Starts and stops the radio scan and runs discovery timeouts, in the order requested
     private static final ScheduledExecutorService discoveryWorker =
             Executors.newSingleThreadScheduledExecutor();
+    private static final ScheduledExecutorService operationWorker =
+            Executors.newSingleThreadScheduledExecutor();
     private static ScheduledFuture<?> mConnectionFuture;
     private static ScheduledFuture<?> mDiscoveryFuture;
 
@@ -67,13 +171,44 @@ public class RigCoreBluetooth implements IRigCoreListener {
     // BLE scanning for API 21+
     private BluetoothLeScanner mBleScanner = null;
     private ScanCallback mLollipopScanCallback = null;
+    private volatile int mHardwareScanFilterLimit = DEFAULT_HARDWARE_SCAN_FILTER_LIMIT;
+    private volatile boolean mIsHardwareFiltered = false;
+    private volatile RigScanSettings mScanSettings = RigScanSettings.DEFAULT;
+    private volatile boolean mIsBatching = false;
+    private volatile boolean mIsSoftwareFilterOnly = false;
+
+    /**
+     * Scan window scheduling, guarded by mScanLock.  mScanStartTimes holds the elapsed realtime
+     * of the most recent scan starts, oldest at mScanStartIndex.
+     */
+    private final Object mScanLock = new Object();
+    private final long[] mScanStartTimes = new long[SCAN_START_LIMIT];
+    private int mScanStartIndex = 0;
+    private boolean mIsScanning = false;
+    private ScheduledFuture<?> mScanFuture;
+
+    /**
+     * Scan results are copied into the ring by the scan callbacks and parsed, filtered and
+     * dispatched in order by the scan ingestion thread, so a slow observer cannot hold up the
+     * callbacks.
+     */
+    private final RigScanRing mScanRing = new RigScanRing(SCAN_RING_CAPACITY, SCAN_RECORD_SIZE);
+    private Thread mScanIngestThread;
+    private volatile RigScanRecorder mScanRecorder;
+
+    /* Discovery start latency; times are from System.currentTimeMillis() */
+    private volatile long mDiscoveryStartTime;
+    private volatile boolean mIsAwaitingFirstScan = false;
+    private volatile boolean mIsAwaitingFirstResult = false;
+    private volatile long mScanStartLatency = -1;
+    private volatile long mTimeToFirstResult = -1;
 
     RigCoreBluetooth() {
         mContext = null;
         mIsDiscovering = false;
-        mIsDataOpInProgress = false;
         mDiscoveryObserver = null;
         mConnectionObserver = null;
+        Arrays.fill(mScanStartTimes, Long.MIN_VALUE / 2);
     }
 
     public static RigCoreBluetooth getInstance()
@@ -131,6 +266,159 @@ public class RigCoreBluetooth implements IRigCoreListener {
 
     }
 
+    /**
+     * Sets the deadline for queued data requests of the given type.  If the completion callback
+     * for a request does not arrive before the deadline, the request is failed and the device is
+     * notified.  The Bluetooth stack still holds the operation, so the queue of the device waits
+     * for the late callback before it starts the next request; if the callback does not arrive
+     * within another deadline, the link is dropped.  Failures reported by the stack start the
+     * next request at once.
+     *
+     * @param requestType The request type, one of the IRigDataRequest TYPE_ constants
+     * @param timeout The deadline in milliseconds; 0 disables the deadline for the type
+     */
+    public void setRequestTimeout(int requestType, long timeout) {
+        mRequestTimeouts.put(requestType, timeout);
+    }
+
+    /**
+     * @param requestType The request type, one of the IRigDataRequest TYPE_ constants
+     * @return Returns the deadline in milliseconds for requests of the given type
+     */
+    public long getRequestTimeout(int requestType) {
+        Long timeout = mRequestTimeouts.get(requestType);
+        return (timeout != null) ? timeout : DEFAULT_REQUEST_TIMEOUT;
+    }
+
+    /**
+     * Bounds the number of data requests which may wait behind the in-flight request of each
+     * device.  Requests folded into a waiting request by write coalescing or read joining do not
+     * count against the capacity.  Use {@link IRigLeQueueObserver} to be told when a device
+     * queue is filling up or has drained.
+     *
+     * @param capacity The maximum number of waiting requests per device, or 0 for no bound
+     * @param overflowPolicy The policy applied when a queue is full, one of the QUEUE_POLICY_
+     *                       constants
+     */
+    public void setRequestQueueCapacity(int capacity, int overflowPolicy) {
+        mQueueCapacity = (capacity > 0) ? capacity : 0;
+        mQueueOverflowPolicy = overflowPolicy;
+        for (RigDeviceOpQueue queue : mOpsQueues.values()) {
+            queue.setCapacity(mQueueCapacity, mQueueOverflowPolicy);
+        }
+    }
+
+    /**
+     * @return Returns the maximum number of waiting requests per device, or 0 if unbounded
+     */
+    public int getRequestQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    /**
+     * @return Returns the policy applied when a device queue is full
+     */
+    public int getRequestQueueOverflowPolicy() {
+        return mQueueOverflowPolicy;
+    }
+
+    /**
+     * Sets the maximum time a submitting thread waits for room in a full device queue under
+     * {@link #QUEUE_POLICY_BLOCK}.
+     *
+     * @param timeout The maximum wait in milliseconds
+     * @throws IllegalArgumentException if the timeout is not positive
+     */
+    public void setRequestQueueBlockTimeout(long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        mQueueBlockTimeout = timeout;
+    }
+
+    /**
+     * @return Returns the maximum time, in milliseconds, a submitting thread waits for room in a
+     * full device queue under {@link #QUEUE_POLICY_BLOCK}
+     */
+    public long getRequestQueueBlockTimeout() {
+        return mQueueBlockTimeout;
+    }
+
+    /**
+     * @param device The device
+     * @return Returns the number of data requests waiting behind the in-flight request of the
+     * device
+     */
+    public int getRequestQueueDepth(BluetoothDevice device) {
+        RigDeviceOpQueue queue = mOpsQueues.get(device.getAddress());
+        return (queue != null) ? queue.size() : 0;
+    }
+
+    /**
+     * Sets the maximum number of scan filters handed to the Bluetooth controller on API 21+.
+     * Controllers hold a small, vendor-specific number of filters; a discovery which needs more
+     * than the limit scans unfiltered and filters in software.  Discovery results are the same
+     * either way.
+     *
+     * @param limit The maximum number of controller scan filters, or 0 to always filter in
+     *              software
+     */
+    public void setHardwareScanFilterLimit(int limit) {
+        mHardwareScanFilterLimit = (limit > 0) ? limit : 0;
+    }
+
+    /**
+     * @return Returns the maximum number of scan filters handed to the Bluetooth controller
+     */
+    public int getHardwareScanFilterLimit() {
+        return mHardwareScanFilterLimit;
+    }
+
+    /**
+     * @return Returns the number of scan results received from the Bluetooth stack, before
+     * filtering
+     */
+    public long getScanResultsReceived() {
+        return mScanRing.getReceived();
+    }
+
+    /**
+     * @return Returns the number of scan results dropped because they arrived faster than the
+     * discovery observers consumed them
+     */
+    public long getScanResultsDropped() {
+        return mScanRing.getDropped();
+    }
+
+    /**
+     * @return Returns the time in milliseconds from the latest discovery start request until the
+     * radio scan was started, or -1 if it has not started yet
+     */
+    public long getScanStartLatency() {
+        return mScanStartLatency;
+    }
+
+    /**
+     * @return Returns the time in milliseconds from the latest discovery start request until the
+     * first scan result matching the discovery filter was dispatched, or -1 if none has been yet
+     */
+    public long getTimeToFirstResult() {
+        return mTimeToFirstResult;
+    }
+
+    /**
+     * Records every scan result received from the Bluetooth stack, before filtering, until the
+     * recorder is replaced or cleared.  Scan results are recorded as they arrive, ahead of the
+     * ingestion ring, so the trace also holds those dropped when ingestion falls behind.  The
+     * recorder is not closed when it is replaced.
+     *
+     * @param recorder The recorder to write scan results to, or null to stop recording
+     * @see RigScanReplayer
+     */
+    public void setScanRecorder(RigScanRecorder recorder) {
+        mScanRecorder = recorder;
+    }
+
     /* Level can be any of the following -
      * Level 0 - Verbose and higher
      * Level 1 - Debug and higher
@@ -162,27 +450,185 @@ public class RigCoreBluetooth implements IRigCoreListener {
         final BluetoothManager bluetoothManager = (BluetoothManager) mContext.getSystemService(Context.BLUETOOTH_SERVICE);
         mBluetoothAdapter = bluetoothManager.getAdapter();
 
+        startScanIngestion();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             setUpLollipopScanCallback();
         } else {
             mLegacyScanCallback = new BluetoothAdapter.LeScanCallback() {
                 @Override
                 public void onLeScan(final BluetoothDevice device, final int rssi, final byte[] scanRecord) {
-                    if (isRelevantScanRecord(scanRecord)) {
-                        mDiscoveryObserver.didDiscoverDevice(device, rssi, scanRecord);
-                        RigLog.i("Name: " + device.getName() + ". Address: " + device.getAddress());
-                    }
+                    long now = System.currentTimeMillis();
+                    recordScanResult(device, rssi, scanRecord, now);
+                    mScanRing.offer(device, rssi, scanRecord, now);
                 }
             };
         }
     }
 
     /**
-     * Reset the flag when write/read/notify requests fail to prevent blocking the queue.
+     * Starts the scan ingestion thread, once for the lifetime of the process.
      */
-    void requestDidFail() {
-        RigLog.w("__RigCoreBluetooth.requestDidFail__");
-        mIsDataOpInProgress = false;
+    private synchronized void startScanIngestion() {
+        if (mScanIngestThread != null) {
+            return;
+        }
+
+        mScanIngestThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ingestScanResults();
+            }
+        }, "RigScanIngest");
+        mScanIngestThread.setDaemon(true);
+        mScanIngestThread.start();
+    }
+
+    /**
+     * Runs a task on the scan ingestion thread, serialized with the dispatch of scan results.
+     * The task runs before the scan results waiting in the ring.
+     *
+     * @param task The task to run
+     */
+    void runOnScanIngestion(Runnable task) {
+        mScanRing.offerTask(task);
+    }
+
+    /**
+     * Takes scan results from the ring in order, filters them and dispatches the matches to the
+     * discovery observer.  A KIND_BATCH entry is filtered as a whole and its matches are
+     * dispatched in one didDiscoverDevices call.  Only matching single results are copied out
+     * of the ring.  Tasks posted with runOnScanIngestion run in between.
+     */
+    private void ingestScanResults() {
+        RigScanRing.Slot slot = new RigScanRing.Slot();
+        while (true) {
+            try {
+                mScanRing.take(slot);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                if (slot.kind == RigScanRing.KIND_TASK) {
+                    slot.task.run();
+                } else if (slot.kind == RigScanRing.KIND_BATCH) {
+                    List<RigScanResult> relevant = new ArrayList<>(slot.batch.size());
+                    for (RigScanResult result : slot.batch) {
+                        byte[] scanRecord = result.getScanRecord();
+                        if (acceptScanResult(result.getDevice(), result.getRssi(), scanRecord,
+                                (scanRecord == null) ? -1 : scanRecord.length, result.getTimestamp())) {
+                            relevant.add(result);
+                        }
+                    }
+                    if (!relevant.isEmpty()) {
+                        RigLog.d("Dispatching batch of " + relevant.size() + " relevant scan results");
+                        mDiscoveryObserver.didDiscoverDevices(relevant);
+                    }
+                } else if (acceptScanResult(slot.device, slot.rssi, slot.record, slot.length, slot.timestamp)) {
+                    byte[] scanRecord = (slot.length < 0) ? null : Arrays.copyOf(slot.record, slot.length);
+                    mDiscoveryObserver.didDiscoverDevice(slot.device, slot.rssi, scanRecord);
+                    RigLog.i("Name: " + slot.device.getName() + ". Address: " + slot.device.getAddress());
+                }
+            } catch (RuntimeException e) {
+                // An observer failure must not stop ingestion for the rest of the process
+                RigLog.e(e);
+            }
+            slot.device = null;
+            slot.batch = null;
+            slot.task = null;
+
+            int drops = mScanRing.takeUnreportedDrops();
+            if (drops > 0) {
+                RigLog.w("Scan ingestion fell behind; dropped " + drops + " scan results ("
+                        + mScanRing.getDropped() + " of " + mScanRing.getReceived() + " in total)");
+            }
+        }
+    }
+
+    /**
+     * Writes a scan result to the scan recorder, if one is set.  Called from the scan callbacks
+     * before the result is offered to the ring.
+     */
+    private void recordScanResult(BluetoothDevice device, int rssi, byte[] scanRecord, long timestamp) {
+        RigScanRecorder recorder = mScanRecorder;
+        if (recorder != null) {
+            recorder.record(timestamp, device.getAddress(), rssi, scanRecord,
+                    (scanRecord == null) ? -1 : scanRecord.length);
+        }
+    }
+
+    /**
+     * Checks a scan result taken from the ring against the discovery filter.
+     *
+     * @param device The advertising device
+     * @param rssi The RSSI of the advertisement
+     * @param record The buffer holding the advertising data record
+     * @param length The length of the record in the buffer, or -1 if there is no record
+     * @param timestamp The system time the advertisement was received
+     * @return Returns true if the scan result is relevant to the running discovery
+     */
+    private boolean acceptScanResult(BluetoothDevice device, int rssi, byte[] record, int length,
+                                     long timestamp) {
+        boolean isRelevant = (length < 0)
+                ? isRelevantScanRecord(null, rssi) : mScanFilter.matches(record, length, rssi);
+        if (isRelevant && mIsAwaitingFirstResult && timestamp >= mDiscoveryStartTime) {
+            mIsAwaitingFirstResult = false;
+            mTimeToFirstResult = System.currentTimeMillis() - mDiscoveryStartTime;
+            RigLog.d("Time to first scan result: " + mTimeToFirstResult + " ms");
+        }
+        return isRelevant;
+    }
+
+    /**
+     * Release the in-flight slot when write/read/notify requests fail to prevent blocking the
+     * queue for the device.
+     *
+     * @param address The address of the device for which the request failed
+     */
+    void requestDidFail(final String address) {
+        RigLog.w("__RigCoreBluetooth.requestDidFail__ : " + address);
+        failCurrentRequest(address, REQUEST_STATUS_POST_FAILED);
+    }
+
+    /**
+     * Fails the in-flight request for the device and advances the queue.
+     *
+     * @param address The address of the device
+     * @param status The failure status to report
+     */
+    private void failCurrentRequest(final String address, final int status) {
+        final RigDeviceOpQueue queue = mOpsQueues.get(address);
+        if (queue == null) {
+            return;
+        }
+
+        IRigDataRequest current = queue.getCurrent();
+        if (current instanceof RigRequestBatch) {
+            // The batch keeps the slot; fail the step and move on to the next one
+            final RigRequestBatch batch = (RigRequestBatch) current;
+            final IRigDataRequest step = batch.getCurrentStep();
+            operationWorker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    completeStep(queue, batch, step, null, status);
+                    nextOp(address);
+                }
+            });
+            return;
+        }
+
+        IRigDataRequest request = queue.completeCurrent();
+        if (request != null) {
+            notifyRequestFailed(request, status);
+        }
+
+        // Advance off the posting thread so a run of failing requests does not recurse
+        operationWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                nextOp(address);
+            }
+        });
     }
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
@@ -193,22 +639,52 @@ public class RigCoreBluetooth implements IRigCoreListener {
             public void onScanFailed(int errorCode) {
                 super.onScanFailed(errorCode);
                 RigLog.e("BLE Scan failed with error code " + errorCode);
+                if (mIsHardwareFiltered && mIsDiscovering && isFilterFailure(errorCode)) {
+                    RigLog.w("Controller could not apply scan filters; filtering in software");
+                    mIsHardwareFiltered = false;
+                    mIsSoftwareFilterOnly = true;
+                    synchronized (mScanLock) {
+                        mIsScanning = false;
+                        scheduleScanWindow(0);
+                    }
+                }
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                super.onBatchScanResults(results);
+                long now = System.currentTimeMillis();
+                long nowNanos = SystemClock.elapsedRealtimeNanos();
+                List<RigScanResult> batch = new ArrayList<>(results.size());
+                for (ScanResult result : results) {
+                    ScanRecord scanRecord = result.getScanRecord();
+                    if (scanRecord == null) {
+                        continue;
+                    }
+                    // Batched results can be up to one report delay old
+                    long age = (nowNanos - result.getTimestampNanos()) / 1000000;
+                    long timestamp = now - Math.max(age, 0);
+                    byte[] bytes = scanRecord.getBytes();
+                    recordScanResult(result.getDevice(), result.getRssi(), bytes, timestamp);
+                    batch.add(new RigScanResult(result.getDevice(), result.getRssi(), bytes, timestamp));
+                }
+                // The batch takes one entry, so the ingestion thread sees it whole
+                if (!batch.isEmpty()) {
+                    mScanRing.offerBatch(batch);
+                }
             }
 
             @Override
             public void onScanResult(int callbackType, ScanResult result) {
                 super.onScanResult(callbackType, result);
-                BluetoothDevice device = result.getDevice();
-                int rssi = result.getRssi();
                 ScanRecord scanRecord = result.getScanRecord();
                 if (scanRecord == null) {
                     return;
                 }
-                byte[] rawScanRecord = scanRecord.getBytes();
-                if (isRelevantScanRecord(rawScanRecord)) {
-                    mDiscoveryObserver.didDiscoverDevice(device, rssi, rawScanRecord);
-                    RigLog.i("Name: " + device.getName() + ". Address: " + device.getAddress());
-                }
+                long now = System.currentTimeMillis();
+                byte[] bytes = scanRecord.getBytes();
+                recordScanResult(result.getDevice(), result.getRssi(), bytes, now);
+                mScanRing.offer(result.getDevice(), result.getRssi(), bytes, now);
             }
         };
     }
@@ -229,7 +705,20 @@ public class RigCoreBluetooth implements IRigCoreListener {
         return bluetoothManager.getConnectionState(device, BluetoothGatt.GATT_SERVER);
     }
 
-    void startDiscovery(final UUID[] uuidList, long timeout) {
+    void startDiscovery(RigScanFilter filter, long timeout) {
+        startDiscovery(filter, timeout, RigScanSettings.DEFAULT);
+    }
+
+    /**
+     * Starts discovery.  The scan is started on the discovery worker, deferred if needed to stay
+     * within the Android scan start limit, and duty-cycled if the settings have scan and idle
+     * windows.
+     *
+     * @param filter The discovery filter
+     * @param timeout The discovery timeout in milliseconds, or 0 to run until stopped
+     * @param settings How the radio is driven during discovery
+     */
+    void startDiscovery(RigScanFilter filter, long timeout, RigScanSettings settings) {
         RigLog.d("__RigCoreBluetooth.startDiscovery__");
         if (!checkBluetoothState()) {
             return;
@@ -245,43 +734,294 @@ public class RigCoreBluetooth implements IRigCoreListener {
             scheduleDiscoveryTimeout(timeout);
         }
         mIsDiscovering = true;
-        mUUIDList = uuidList;
+        mDiscoveryStartTime = System.currentTimeMillis();
+        mScanStartLatency = -1;
+        mTimeToFirstResult = -1;
+        mIsAwaitingFirstScan = true;
+        mIsAwaitingFirstResult = true;
+        mScanFilter = (filter != null) ? filter : RigScanFilter.MATCH_ALL;
+        mScanSettings = (settings != null) ? settings : RigScanSettings.DEFAULT;
+        mIsSoftwareFilterOnly = false;
+
+        synchronized (mScanLock) {
+            scheduleScanWindow(0);
+        }
+    }
+
+    /**
+     * Changes the filter and settings of the running discovery, or starts discovery without a
+     * timeout if it is not running.  A new software filter applies to the next scan result.  The
+     * radio scan is restarted only if the settings changed or the controller is filtering, since
+     * the controller filters may no longer cover the new filter; the restart is subject to the
+     * scan start limit.
+     *
+     * @param filter The discovery filter
+     * @param settings How the radio is driven during discovery
+     */
+    void updateDiscovery(RigScanFilter filter, RigScanSettings settings) {
+        if (!mIsDiscovering) {
+            startDiscovery(filter, 0, settings);
+            return;
+        }
+
+        RigLog.d("__RigCoreBluetooth.updateDiscovery__");
+        if (settings == null) {
+            settings = RigScanSettings.DEFAULT;
+        }
+        boolean isRestartNeeded = mIsHardwareFiltered || !settings.equals(mScanSettings);
+        mScanFilter = (filter != null) ? filter : RigScanFilter.MATCH_ALL;
+        mScanSettings = settings;
+        if (!isRestartNeeded) {
+            return;
+        }
 
-        new Thread(new Runnable() {
+        mIsSoftwareFilterOnly = false;
+        synchronized (mScanLock) {
+            cancelScanFuture();
+        }
+        discoveryWorker.execute(new Runnable() {
             @Override
             public void run() {
-                // Started on background thread; callbacks will fire on the main thread
+                synchronized (mScanLock) {
+                    if (mIsScanning) {
+                        stopPlatformScan();
+                        mIsScanning = false;
+                    }
+                    if (mIsDiscovering) {
+                        scheduleScanWindow(0);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Schedules the next scan window on the discovery worker, replacing any pending one, so
+     * repeated start requests coalesce into a single scan start.  Must be called holding
+     * mScanLock.
+     *
+     * @param minDelay The earliest time to start the window, in milliseconds from now
+     */
+    private void scheduleScanWindow(long minDelay) {
+        cancelScanFuture();
+        long delay = Math.max(minDelay, getScanStartDelay(SystemClock.elapsedRealtime()));
+        if (delay > minDelay) {
+            RigLog.w("Deferring scan start by " + delay + " ms to stay within the scan start limit");
+        }
+        mScanFuture = discoveryWorker.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runScanWindow();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts the radio for one scan window.  Runs on the discovery worker; callbacks will fire
+     * on the main thread.
+     */
+    private void runScanWindow() {
+        synchronized (mScanLock) {
+            mScanFuture = null;
+            if (!mIsDiscovering || mIsScanning || !mBluetoothAdapter.isEnabled()) {
+                return;
+            }
+
+            long now = SystemClock.elapsedRealtime();
+            if (getScanStartDelay(now) > 0) {
+                scheduleScanWindow(0);
+                return;
+            }
+            mScanStartTimes[mScanStartIndex] = now;
+            mScanStartIndex = (mScanStartIndex + 1) % SCAN_START_LIMIT;
+
+            boolean isStarted;
+            try {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                     startLollipopScan();
+                    isStarted = true;
                 } else {
-                    startLegacyLeScan();
+                    isStarted = startLegacyLeScan();
                 }
+            } catch (RuntimeException e) {
+                // The stack throws if the adapter turned off or a scan permission is missing
+                RigLog.e(e);
+                isStarted = false;
             }
-        }).start();
+            if (!isStarted) {
+                RigLog.e("Failed to start the scan");
+                return;
+            }
+            mIsScanning = true;
+
+            if (mIsAwaitingFirstScan) {
+                mIsAwaitingFirstScan = false;
+                mScanStartLatency = System.currentTimeMillis() - mDiscoveryStartTime;
+                RigLog.d("Scan started " + mScanStartLatency + " ms after the discovery request");
+            }
+
+            final RigScanSettings settings = mScanSettings;
+            if (settings.isDutyCycled()) {
+                mScanFuture = discoveryWorker.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        pauseScanWindow(settings.getIdleWindow());
+                    }
+                }, settings.getScanWindow(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Ends the current scan window and schedules the next one after the idle window.
+     */
+    private void pauseScanWindow(long idleWindow) {
+        synchronized (mScanLock) {
+            mScanFuture = null;
+            if (!mIsDiscovering || !mIsScanning) {
+                return;
+            }
+            stopPlatformScan();
+            mIsScanning = false;
+            scheduleScanWindow(idleWindow);
+        }
+    }
+
+    /**
+     * @return Returns the time in milliseconds until another scan can be started without
+     * exceeding the scan start limit.  Must be called holding mScanLock.
+     */
+    private long getScanStartDelay(long now) {
+        long oldestStart = mScanStartTimes[mScanStartIndex];
+        long allowedAt = oldestStart + SCAN_START_PERIOD + SCAN_START_MARGIN;
+        return (allowedAt > now) ? allowedAt - now : 0;
+    }
+
+    /**
+     * Cancels the pending scan window change.  Must be called holding mScanLock.
+     */
+    private void cancelScanFuture() {
+        if (mScanFuture != null) {
+            mScanFuture.cancel(false);
+            mScanFuture = null;
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     private void startLollipopScan () {
+        List<ScanFilter> filters = mIsSoftwareFilterOnly ? null : buildHardwareScanFilters(mScanFilter);
+        mIsHardwareFiltered = (filters != null);
+        mBleScanner.startScan(filters, buildScanSettings(), mLollipopScanCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ScanSettings buildScanSettings() {
         // API 21+, except where noted 23+
         ScanSettings.Builder builder = new ScanSettings.Builder();
-        // Scan using highest duty cycle (this is default for legacy).
-        builder.setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
-        builder.setReportDelay(0);
+        RigScanSettings settings = mScanSettings;
+        // Low latency scans using the highest duty cycle (this is default for legacy).
+        builder.setScanMode(settings.getScanMode());
+
+        long reportDelay = settings.getReportDelay();
+        mIsBatching = (reportDelay > 0 && mBluetoothAdapter.isOffloadedScanBatchingSupported());
+        if (reportDelay > 0 && !mIsBatching) {
+            RigLog.w("Scan batching not supported by the controller; delivering results as they arrive");
+        }
+        builder.setReportDelay(mIsBatching ? reportDelay : 0);
 
         // Aggressive mode seems to improve discovery in the short (15s) window we have for DFU
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-            builder.setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE);
+            builder.setMatchMode(settings.getScanMode() == RigDeviceRequest.SCAN_MODE_LOW_LATENCY
+                    ? ScanSettings.MATCH_MODE_AGGRESSIVE : ScanSettings.MATCH_MODE_STICKY);
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Translates the discovery filter into controller scan filters, so a controller which
+     * supports offloaded filtering drops irrelevant advertisements before they reach the
+     * application.  The controller filters are a superset of the discovery filter: the device
+     * name prefix and minimum RSSI cannot be expressed as a ScanFilter and are left to the
+     * software filter, which is applied to every result regardless.  The union filter of
+     * concurrent sessions gets the scan filters of each of its alternatives.
+     *
+     * @param filter The discovery filter
+     * @return Returns the scan filters, or null to scan unfiltered and filter in software only
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private List<ScanFilter> buildHardwareScanFilters(RigScanFilter filter) {
+        if (filter.isEmpty() || mHardwareScanFilterLimit <= 0
+                || !mBluetoothAdapter.isOffloadedFilteringSupported()) {
+            return null;
         }
 
-        ScanSettings settings = builder.build();
+        List<ScanFilter> filters = new ArrayList<>();
+        for (RigScanFilter alternative : filter.getAlternatives()) {
+            if (!addHardwareScanFilters(alternative, filters)) {
+                // Nothing the controller can match on
+                return null;
+            }
+        }
 
-        mBleScanner.startScan(null, settings, mLollipopScanCallback);
+        if (filters.size() > mHardwareScanFilterLimit) {
+            RigLog.w("Scan needs " + filters.size() + " filters, more than the limit of "
+                    + mHardwareScanFilterLimit + "; filtering in software");
+            return null;
+        }
+        return filters;
     }
 
-    private void startLegacyLeScan () {
-        mBluetoothAdapter.startLeScan(mLegacyScanCallback);
+    /**
+     * Adds the scan filters for a single discovery filter, one per service UUID.
+     *
+     * @return Returns false if the filter has no criterion a ScanFilter can express
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean addHardwareScanFilters(RigScanFilter filter, List<ScanFilter> filters) {
+        UUID[] uuids = filter.getUuids();
+        boolean hasManufacturerData = (filter.getManufacturerId() != RigDeviceRequest.MANUFACTURER_ANY);
+        UUID serviceDataUuid = filter.getServiceDataUuid();
+        if ((uuids == null || uuids.length == 0) && !hasManufacturerData && serviceDataUuid == null) {
+            return false;
+        }
+
+        int count = (uuids != null && uuids.length > 0) ? uuids.length : 1;
+        for (int i = 0; i < count; i++) {
+            ScanFilter.Builder builder = new ScanFilter.Builder();
+            if (uuids != null && uuids.length > 0) {
+                builder.setServiceUuid(new ParcelUuid(uuids[i]));
+            }
+            if (hasManufacturerData) {
+                builder.setManufacturerData(filter.getManufacturerId(),
+                        filter.getManufacturerData(), filter.getManufacturerDataMask());
+            }
+            if (serviceDataUuid != null) {
+                builder.setServiceData(new ParcelUuid(serviceDataUuid),
+                        filter.getServiceData(), filter.getServiceDataMask());
+            }
+            filters.add(builder.build());
+        }
+        return true;
+    }
+
+    /**
+     * @return Returns true if a scan failed because the controller could not apply its filters
+     */
+    private static boolean isFilterFailure(int errorCode) {
+        return errorCode == ScanCallback.SCAN_FAILED_INTERNAL_ERROR
+                || errorCode == ScanCallback.SCAN_FAILED_FEATURE_UNSUPPORTED
+                || errorCode == SCAN_FAILED_OUT_OF_HARDWARE_RESOURCES;
+    }
+
+    private boolean startLegacyLeScan () {
+        return mBluetoothAdapter.startLeScan(mLegacyScanCallback);
     }
 
+    /**
+     * Stops discovery.  The radio scan is stopped on the discovery worker, ahead of any scan
+     * started by a later discovery, so the caller does not wait on the Bluetooth stack.
+     */
     void stopDiscovery() {
         RigLog.d("__RigCoreBluetooth.stopDiscovery__");
         if (!checkBluetoothState()) {
@@ -289,13 +1029,38 @@ public class RigCoreBluetooth implements IRigCoreListener {
         }
 
         mIsDiscovering = false;
+        mIsAwaitingFirstScan = false;
+        mIsAwaitingFirstResult = false;
 
         if((null != mDiscoveryFuture) && !mDiscoveryFuture.isDone()) {
             mDiscoveryFuture.cancel(true);
             mDiscoveryFuture = null;
         }
 
+        synchronized (mScanLock) {
+            cancelScanFuture();
+        }
+        discoveryWorker.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mScanLock) {
+                    if (mIsScanning) {
+                        stopPlatformScan();
+                        mIsScanning = false;
+                    }
+                    mIsHardwareFiltered = false;
+                }
+            }
+        });
+    }
+
+    private void stopPlatformScan() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && mBleScanner != null) {
+            if (mIsBatching) {
+                // Deliver the results held by the controller before they are discarded
+                mBleScanner.flushPendingScanResults(mLollipopScanCallback);
+                mIsBatching = false;
+            }
             mBleScanner.stopScan(mLollipopScanCallback);
         } else if (mBluetoothAdapter != null) {
             mBluetoothAdapter.stopLeScan(mLegacyScanCallback);
@@ -315,7 +1080,7 @@ public class RigCoreBluetooth implements IRigCoreListener {
 
     void disconnectPeripheral(BluetoothDevice device) {
         RigLog.d("__RigCoreBluetooth.disconnectPeripheral__");
-        clearQueue();
+        clearQueue(device.getAddress());
         if (!checkBluetoothState()) {
             return;
         }
@@ -341,6 +1106,23 @@ public class RigCoreBluetooth implements IRigCoreListener {
         write(request);
     }
 
+    /**
+     * Queues a write which may be coalesced.  If a coalescing write to the same characteristic
+     * is still waiting in the device queue, its value is replaced instead of queueing another
+     * write.
+     *
+     * @param device The device to write to
+     * @param characteristic The characteristic to write
+     * @param value The value to write
+     */
+    void writeCharacteristicCoalesced(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                                      byte [] value) {
+        RigLog.d("__RigCoreBluetooth.writeCharacteristicCoalesced__");
+        RigWriteRequest request = new RigWriteRequest(device, characteristic, value);
+        request.setCoalescing(true);
+        write(request);
+    }
+
     public void setCharacteristicNotification(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
                                               boolean enableState) {
         RigLog.d("__RigCoreBluetooth.setCharacteristicNotification__");
@@ -356,108 +1138,502 @@ public class RigCoreBluetooth implements IRigCoreListener {
         read(request);
     }
 
-    private synchronized void read(IRigDataRequest request) {
-        if(mOpsQueue.isEmpty() && !mIsDataOpInProgress) {
-            mIsDataOpInProgress = true;
-            doOp(request);
+    /**
+     * Queues a data request and returns a completion handle tied to that exact request.
+     *
+     * @param request The request to queue
+     * @return Returns the future which completes when the request finishes, fails or times out
+     */
+    RigRequestFuture submit(IRigDataRequest request) {
+        RigRequestFuture future = new RigRequestFuture(request);
+        mRequestFutures.put(request, future);
+        if (request instanceof RigRequestBatch) {
+            batch((RigRequestBatch) request);
+        } else if (request.getType() == IRigDataRequest.TYPE_READ
+                || request.getType() == IRigDataRequest.TYPE_DESCRIPTOR_READ) {
+            read(request);
         } else {
-            mOpsQueue.add(request);
+            write(request);
         }
+        return future;
     }
 
-    private synchronized void write(IRigDataRequest request) {
-        if(mOpsQueue.isEmpty() && !mIsDataOpInProgress) {
-            mIsDataOpInProgress = true;
+    /**
+     * Queues one chunk of a write stream.  Stream chunks skip the per-request future and report
+     * completion to their stream.
+     *
+     * @param request The chunk to queue
+     */
+    void submitStreamChunk(RigStreamWriteRequest request) {
+        RigDeviceOpQueue queue = getOpQueue(request.getDevice().getAddress());
+        if(enqueue(queue, request) == RigDeviceOpQueue.OFFER_POST) {
             doOp(request);
-        } else {
+        }
+    }
+
+    private void read(IRigDataRequest request) {
+        RigDeviceOpQueue queue = getOpQueue(request.getDevice().getAddress());
+        if(request instanceof RigReadRequest) {
+            // A read of a characteristic that is already waiting shares the pending result
+            synchronized (queue) {
+                RigReadRequest pending = queue.joinRead((RigReadRequest) request);
+                if(pending != null) {
+                    RigLog.d("join pending read request");
+                    mergeFuture(request, pending);
+                    return;
+                }
+            }
+        }
+
+        if(enqueue(queue, request) == RigDeviceOpQueue.OFFER_POST) {
+            doOp(request);
+        }
+    }
+
+    private void write(IRigDataRequest request) {
+        RigDeviceOpQueue queue = getOpQueue(request.getDevice().getAddress());
+        if(request instanceof RigWriteRequest && ((RigWriteRequest) request).isCoalescing()) {
+            // Hold the queue so the pending write cannot be posted before its future is merged
+            synchronized (queue) {
+                RigWriteRequest pending = queue.coalesce((RigWriteRequest) request);
+                if(pending != null) {
+                    RigLog.d("coalesce write request");
+                    mergeFuture(request, pending);
+                    return;
+                }
+            }
+        }
+
+        int result = enqueue(queue, request);
+        if(result == RigDeviceOpQueue.OFFER_POST) {
+            doOp(request);
+        } else if(result == RigDeviceOpQueue.OFFER_QUEUED) {
             if(request instanceof RigWriteRequest) {
                 RigLog.d("queue write request");
             } else if(request instanceof  RigNotificationStateChangeRequest) {
                 RigLog.d("queue notification state change request");
             }
-            mOpsQueue.add(request);
         }
     }
 
-    private synchronized void doOp(IRigDataRequest request) {
-    	mIsDataOpInProgress = true;
-        request.post(mBluetoothLeService);
+    private void batch(RigRequestBatch request) {
+        RigDeviceOpQueue queue = getOpQueue(request.getDevice().getAddress());
+        int result = enqueue(queue, request);
+        if(result == RigDeviceOpQueue.OFFER_POST) {
+            doOp(request);
+        } else if(result == RigDeviceOpQueue.OFFER_QUEUED) {
+            RigLog.d("queue batch of " + request.size() + " requests");
+        }
     }
 
-    private synchronized void nextOp() {
-        if(!mOpsQueue.isEmpty() && !mIsDataOpInProgress) {
-            doOp(mOpsQueue.poll());
+    /**
+     * Offers a request to the device queue and applies the overflow policy.  Requests which are
+     * rejected or evicted are failed here.
+     *
+     * @param queue The operation queue of the device
+     * @param request The request to queue
+     * @return Returns the RigDeviceOpQueue OFFER_ result
+     */
+    private int enqueue(RigDeviceOpQueue queue, IRigDataRequest request) {
+        // Blocking the main thread would stall the application and the callbacks which drain
+        // the queue, so it only ever gets a non-blocking offer
+        long maxWait = (Looper.myLooper() == Looper.getMainLooper()) ? 0 : mQueueBlockTimeout;
+        int result = queue.offer(request, maxWait);
+        List<IRigDataRequest> dropped = queue.drainDropped();
+        if(dropped != null) {
+            for(IRigDataRequest oldest : dropped) {
+                RigLog.w("Queue full; dropped oldest request for " + queue.getAddress());
+                notifyRequestDropped(oldest, REQUEST_STATUS_DROPPED);
+            }
+        }
+
+        if(result == RigDeviceOpQueue.OFFER_REJECTED) {
+            RigLog.w("Queue full; rejected request for " + queue.getAddress());
+            notifyRequestDropped(request, REQUEST_STATUS_REJECTED);
+        } else {
+            checkWatermark(queue, request.getDevice());
         }
+        return result;
     }
 
-    private boolean isRelevantScanRecord(byte[] rawScanRecord) {
-        boolean found = false;
-        List<UUID> uuidScanList = parseUUIDs(rawScanRecord);
-        if (mUUIDList != null) {
-            for (UUID mUUID : mUUIDList) {
-                for (UUID scanUUID : uuidScanList) {
-                    if (scanUUID.equals(mUUID)) {
-                        found = true;  // all we need to find is one
-                        break;
+    /**
+     * Tells the device when its queue crosses the high or low watermark.
+     *
+     * @param queue The operation queue of the device
+     * @param bluetoothDevice The device
+     */
+    private void checkWatermark(RigDeviceOpQueue queue, BluetoothDevice bluetoothDevice) {
+        int watermark = queue.checkWatermark();
+        if(watermark == RigDeviceOpQueue.WATERMARK_NONE) {
+            return;
+        }
+
+        RigLeBaseDevice baseDevice = getRigLeBaseDeviceForBluetoothDevice(bluetoothDevice);
+        if(baseDevice != null) {
+            baseDevice.didChangeQueueDepth(bluetoothDevice, queue.size(),
+                    watermark == RigDeviceOpQueue.WATERMARK_HIGH);
+        }
+    }
+
+    /**
+     * Moves the future of a request that was folded into another request so it completes with
+     * the request that actually runs.
+     *
+     * @param from The request which was folded in
+     * @param into The request which will run
+     */
+    private void mergeFuture(IRigDataRequest from, IRigDataRequest into) {
+        final RigRequestFuture future = mRequestFutures.remove(from);
+        if (future == null) {
+            return;
+        }
+
+        RigRequestFuture existing = mRequestFutures.putIfAbsent(into, future);
+        if (existing != null) {
+            existing.addListener(new IRigRequestListener() {
+                @Override
+                public void didCompleteRequest(RigRequestResult result) {
+                    future.complete(result.getValue(), result.getStatus());
+                }
+            });
+        }
+    }
+
+    private void doOp(final IRigDataRequest request) {
+        if (request instanceof RigRequestBatch && !((RigRequestBatch) request).claimPost()) {
+            return;
+        }
+
+        final RigDeviceOpQueue queue = getOpQueue(request.getDevice().getAddress());
+        long timeout = getRequestTimeout(request.getType());
+        if (timeout > 0) {
+            final IRigDataRequest step = (request instanceof RigRequestBatch)
+                    ? ((RigRequestBatch) request).getCurrentStep() : request;
+            final long stallTimeout = timeout;
+            Runnable task = new Runnable() {
+                public void run() {
+                    if (step != request) {
+                        if (queue.getCurrent() != request || !queue.stall(step)) {
+                            return;
+                        }
+                        if (completeStep(queue, (RigRequestBatch) request, step, null, REQUEST_STATUS_TIMEOUT) != null) {
+                            RigLog.w("Batch request timed out for " + queue.getAddress());
+                            watchStall(queue, step, stallTimeout);
+                        } else if (queue.releaseStalled(step)) {
+                            // The request completed while the deadline fired
+                            nextOp(queue.getAddress());
+                        }
+                    } else if (queue.expire(request)) {
+                        RigLog.w("Request timed out for " + queue.getAddress());
+                        notifyRequestFailed(request, REQUEST_STATUS_TIMEOUT);
+                        watchStall(queue, request, stallTimeout);
                     }
                 }
-                if (found) {
-                    break;
+            };
+            queue.setDeadline(request, operationWorker.schedule(task, timeout, TimeUnit.MILLISECONDS));
+        }
+        RigRequestFuture future = mRequestFutures.get(request);
+        if (future != null) {
+            future.markPosted();
+        }
+        request.post(mBluetoothLeService);
+    }
+
+    /**
+     * Waits for the late callback of a request whose deadline expired.  The Bluetooth stack
+     * refuses new operations on the connection until that callback arrives, so the queue stays
+     * stalled rather than posting requests which would fail.  If the callback does not arrive
+     * within another timeout period, the connection is considered stuck and is disconnected,
+     * which fails everything still queued for the device.
+     *
+     * @param queue The operation queue of the device
+     * @param request The request whose deadline expired
+     * @param timeout The time, in milliseconds, to wait for the late callback
+     */
+    private void watchStall(final RigDeviceOpQueue queue, final IRigDataRequest request, long timeout) {
+        operationWorker.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (queue.getStalled() == request) {
+                    RigLog.e("No callback for an expired request; disconnecting " + queue.getAddress());
+                    disconnectPeripheral(request.getDevice());
                 }
             }
-        } else {
-            found = true;  // if filter list is null, then take everything
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void notifyRequestFailed(IRigDataRequest request, int status) {
+        if (request instanceof RigReliableWriteRequest) {
+            // Discard any prepare-writes so later writes are not swallowed by the transaction
+            mBluetoothLeService.abortReliableWrite(request.getDevice().getAddress());
         }
-        return found;
+        notifyRequestDropped(request, status);
     }
 
-    private List<UUID> parseUUIDs(final byte[] advertisedData) {
-        List<UUID> uuids = new ArrayList<>();
+    /**
+     * Reports a failed request.  Unlike notifyRequestFailed, this does not touch the link and is
+     * used for requests which were never posted.
+     *
+     * @param request The request which failed
+     * @param status The failure status
+     */
+    private void notifyRequestDropped(IRigDataRequest request, int status) {
+        if (request instanceof RigStreamWriteRequest) {
+            ((RigStreamWriteRequest) request).getStream().didCompleteChunk((RigStreamWriteRequest) request, status);
+            return;
+        }
 
-        int offset = 0;
-        while (offset < (advertisedData.length - 2)) {
-            int len = advertisedData[offset++];
-            if (len == 0)
-                break;
+        RigRequestFuture future = mRequestFutures.remove(request);
+        if (future != null) {
+            future.complete(null, status);
+        }
 
-            int type = advertisedData[offset++];
-            switch (type) {
-                case 0x02: // Partial list of 16-bit UUIDs
-                case 0x03: // Complete list of 16-bit UUIDs
-                    while (len > 1) {
-                        int uuid16 = advertisedData[offset++];
-                        uuid16 += (advertisedData[offset++] << 8);
-                        len -= 2;
-                        uuids.add(UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", uuid16)));
-                    }
-                    break;
-                case 0x06:// Partial list of 128-bit UUIDs
-                case 0x07:// Complete list of 128-bit UUIDs
-                    // Loop through the advertised 128-bit UUID's.
-                    while (len >= 16) {
-                        try {
-                            // Wrap the advertised bits and order them.
-                            ByteBuffer buffer = ByteBuffer.wrap(advertisedData, offset++, 16).order(ByteOrder.LITTLE_ENDIAN);
-                            long mostSignificantBit = buffer.getLong();
-                            long leastSignificantBit = buffer.getLong();
-                            uuids.add(new UUID(leastSignificantBit, mostSignificantBit));
-                        } catch (IndexOutOfBoundsException e) {
-                            // Defensive programming.
-                            RigLog.e(e.toString());
-                        } finally {
-                            // Move the offset to read the next uuid.
-                            offset += 15;
-                            len -= 16;
-                        }
-                    }
-                    break;
-                default:
-                    offset += (len - 1);
-                    break;
+        BluetoothDevice bluetoothDevice = request.getDevice();
+        RigLeBaseDevice baseDevice = getRigLeBaseDeviceForBluetoothDevice(bluetoothDevice);
+        if (baseDevice != null) {
+            baseDevice.didFailRequest(bluetoothDevice, request, status);
+        }
+    }
+
+    private void nextOp(String address) {
+        RigDeviceOpQueue queue = mOpsQueues.get(address);
+        if(queue == null) {
+            return;
+        }
+
+        // Nothing can be posted until the stack releases an expired request
+        if(queue.getStalled() != null) {
+            return;
+        }
+
+        // An in-flight batch holds the slot while it posts its remaining requests
+        IRigDataRequest request = queue.getCurrent();
+        if(!(request instanceof RigRequestBatch)) {
+            request = queue.next();
+            if(request != null) {
+                checkWatermark(queue, request.getDevice());
+            }
+        }
+        if(request != null) {
+            doOp(request);
+        }
+    }
+
+    /**
+     * Retrieves the operation queue for the device, creating it on first use.  Each connection
+     * has its own queue and in-flight slot so a slow operation on one device does not stall
+     * operations on other devices.
+     *
+     * @param address The address of the device
+     * @return Returns the operation queue for the device
+     */
+    private RigDeviceOpQueue getOpQueue(String address) {
+        RigDeviceOpQueue queue = mOpsQueues.get(address);
+        if(queue == null) {
+            RigDeviceOpQueue newQueue = new RigDeviceOpQueue(address);
+            newQueue.setCapacity(mQueueCapacity, mQueueOverflowPolicy);
+            queue = mOpsQueues.putIfAbsent(address, newQueue);
+            if(queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * @param address The address of the device
+     * @return Returns the request currently posted for the device; for a batch, the request of
+     * the batch which is running.  Returns null if the link is idle.
+     */
+    private IRigDataRequest getCurrentRequest(String address) {
+        RigDeviceOpQueue queue = mOpsQueues.get(address);
+        if(queue == null) {
+            return null;
+        }
+
+        IRigDataRequest request = queue.getCurrent();
+        if(request instanceof RigRequestBatch) {
+            request = ((RigRequestBatch) request).getCurrentStep();
+        }
+        return request;
+    }
+
+    /**
+     * Matches a completion callback to the in-flight request of the device.  The stack has a
+     * single outstanding operation per connection, so a callback which does not belong to the
+     * in-flight request is dropped.  The late callback of a request whose deadline expired
+     * completes nothing, but it shows the stack has released the connection, so the queue
+     * resumes.
+     *
+     * @param address The address of the device
+     * @param type The IRigDataRequest TYPE_ of the operation the callback reports; TYPE_WRITE for
+     *             the prepared value of a reliable write and TYPE_RELIABLE_WRITE for its
+     *             completion
+     * @param characteristic The characteristic of the callback, or null for a descriptor callback
+     * @param descriptor The descriptor of the callback, or null for a characteristic callback
+     * @return Returns the in-flight request the callback belongs to, or null if it was dropped
+     */
+    private IRigDataRequest matchCallback(String address, int type,
+                                          BluetoothGattCharacteristic characteristic,
+                                          BluetoothGattDescriptor descriptor) {
+        RigDeviceOpQueue queue = mOpsQueues.get(address);
+        if(queue == null) {
+            return null;
+        }
+
+        IRigDataRequest stalled = queue.getStalled();
+        if(stalled != null && isCallbackFor(stalled, type, characteristic, descriptor)) {
+            if(queue.releaseStalled(stalled)) {
+                RigLog.w("Dropped the late callback of an expired request for " + address);
+                nextOp(address);
+            }
+            return null;
+        }
+
+        IRigDataRequest request = getCurrentRequest(address);
+        if(request == null || !isCallbackFor(request, type, characteristic, descriptor)) {
+            RigLog.w("Dropped a callback which does not match the in-flight request for " + address);
+            return null;
+        }
+        return request;
+    }
+
+    /**
+     * Checks whether a completion callback reports the operation posted by a request.
+     */
+    private static boolean isCallbackFor(IRigDataRequest request, int type,
+                                         BluetoothGattCharacteristic characteristic,
+                                         BluetoothGattDescriptor descriptor) {
+        switch(type) {
+            case IRigDataRequest.TYPE_READ:
+                return (request instanceof RigReadRequest)
+                        && isSameCharacteristic(((RigReadRequest) request).getCharacteristic(), characteristic);
+            case IRigDataRequest.TYPE_WRITE:
+                return (request instanceof RigWriteRequest)
+                        && isSameCharacteristic(((RigWriteRequest) request).getCharacteristic(), characteristic);
+            case IRigDataRequest.TYPE_RELIABLE_WRITE:
+                return request instanceof RigReliableWriteRequest;
+            case IRigDataRequest.TYPE_NOTIFICATION_STATE:
+                return (request instanceof RigNotificationStateChangeRequest) && descriptor != null
+                        && isSameCharacteristic(((RigNotificationStateChangeRequest) request).getCharacteristic(),
+                        descriptor.getCharacteristic());
+            case IRigDataRequest.TYPE_DESCRIPTOR_READ:
+                if(!(request instanceof RigDescriptorReadRequest) || descriptor == null) {
+                    return false;
+                }
+                BluetoothGattDescriptor requested = ((RigDescriptorReadRequest) request).getDescriptor();
+                return requested == descriptor || (requested.getUuid().equals(descriptor.getUuid())
+                        && isSameCharacteristic(requested.getCharacteristic(), descriptor.getCharacteristic()));
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isSameCharacteristic(BluetoothGattCharacteristic a, BluetoothGattCharacteristic b) {
+        if(a == b) {
+            return true;
+        }
+        return a != null && b != null && a.getUuid().equals(b.getUuid())
+                && a.getInstanceId() == b.getInstanceId();
+    }
+
+    /**
+     * Marks an operation matched by {@link #matchCallback} as complete and reports its outcome.
+     * A failed request is reported to its future and to the device; a successful request
+     * completes its future, if any.
+     *
+     * @param address The address of the device
+     * @param request The request the callback belongs to; for a batch, the running request
+     * @param value The value read or written by the operation, or null on failure
+     * @param status The GATT status reported by the stack
+     * @return Returns the request which completed, or null if its deadline expired while the
+     * callback was handled.  The callback then releases the stalled queue.
+     */
+    private IRigDataRequest completeOp(String address, IRigDataRequest request, byte[] value, int status) {
+        RigDeviceOpQueue queue = mOpsQueues.get(address);
+        if(queue == null) {
+            return null;
+        }
+
+        IRigDataRequest completed = null;
+        IRigDataRequest current = queue.getCurrent();
+        if(current instanceof RigRequestBatch) {
+            completed = completeStep(queue, (RigRequestBatch) current, request, value, status);
+        } else if(queue.completeCurrent(request)) {
+            completed = request;
+            if(status != BluetoothGatt.GATT_SUCCESS) {
+                notifyRequestFailed(request, status);
+            } else if(request instanceof RigStreamWriteRequest) {
+                ((RigStreamWriteRequest) request).getStream().didCompleteChunk((RigStreamWriteRequest) request,
+                        status);
+            } else {
+                RigRequestFuture future = mRequestFutures.remove(request);
+                if(future != null) {
+                    future.complete(value, status);
+                }
+            }
+        }
+
+        if(completed == null && queue.releaseStalled(request)) {
+            RigLog.w("Request expired while its callback was handled for " + address);
+        }
+        return completed;
+    }
+
+    /**
+     * Fails the in-flight request matched to a failure callback and advances the queue.
+     */
+    private void failOp(String address, int type, BluetoothGattCharacteristic characteristic,
+                        BluetoothGattDescriptor descriptor, int status) {
+        IRigDataRequest request = matchCallback(address, type, characteristic, descriptor);
+        if(request == null) {
+            return;
+        }
+
+        RigLog.w("Request failed with status " + status + " for " + address);
+        completeOp(address, request, null, status);
+        nextOp(address);
+    }
+
+    /**
+     * Records the outcome of one request of an in-flight batch.  The batch keeps the in-flight
+     * slot until its last request has run so nothing else for the device is interleaved; once
+     * the batch has finished, the slot is released and the batch future completes with the
+     * aggregated result.
+     *
+     * @param queue The operation queue of the device
+     * @param batch The in-flight batch
+     * @param step The request of the batch the outcome belongs to
+     * @param value The value read or written, or null on failure
+     * @param status The GATT status or failure status of the request
+     * @return Returns the request which completed, or null if it was no longer running
+     */
+    private IRigDataRequest completeStep(RigDeviceOpQueue queue, RigRequestBatch batch,
+                                         IRigDataRequest step, byte[] value, int status) {
+        if(!batch.completeStep(step, value, status)) {
+            return null;
+        }
+
+        if(status != BluetoothGatt.GATT_SUCCESS) {
+            notifyRequestFailed(step, status);
+        }
+
+        // The next request of the batch is posted by nextOp once observers have been notified
+        if(!batch.hasNextStep() && queue.completeCurrent() == batch) {
+            RigRequestFuture future = mRequestFutures.remove(batch);
+            if(future != null) {
+                future.complete(batch.getLastValue(), batch.getStatus());
             }
         }
+        return step;
+    }
 
-        return uuids;
+    /**
+     * Checks the advertisement against the compiled filter of the running discovery.  This runs
+     * for every advertisement, so it must not allocate.
+     */
+    private boolean isRelevantScanRecord(byte[] rawScanRecord, int rssi) {
+        return mScanFilter.matches(rawScanRecord, rssi);
     }
 
     private final BroadcastReceiver mBluetoothStateReceiver = new BroadcastReceiver() {
@@ -470,6 +1646,11 @@ public class RigCoreBluetooth implements IRigCoreListener {
                 switch (state) {
                     case BluetoothAdapter.STATE_OFF: {
                         RigLog.w("Bluetooth off");
+                        mIsDiscovering = false;
+                        synchronized (mScanLock) {
+                            cancelScanFuture();
+                            mIsScanning = false;
+                        }
                         if(mDiscoveryObserver!=null) {
                             mDiscoveryObserver.bluetoothPowerStateChanged(false);
                         }
@@ -520,10 +1701,20 @@ public class RigCoreBluetooth implements IRigCoreListener {
         mDiscoveryObserver = observer;
     }
 
-    private synchronized void clearQueue () {
-        if (mOpsQueue != null) {
-            mIsDataOpInProgress = false;
-            mOpsQueue.clear();
+    private void clearQueue (String address) {
+        RigDeviceOpQueue queue = mOpsQueues.remove(address);
+        if (queue != null) {
+            for (IRigDataRequest request : queue.clear()) {
+                if (request instanceof RigStreamWriteRequest) {
+                    ((RigStreamWriteRequest) request).getStream().didCompleteChunk(
+                            (RigStreamWriteRequest) request, REQUEST_STATUS_CANCELLED);
+                    continue;
+                }
+                RigRequestFuture future = mRequestFutures.remove(request);
+                if (future != null) {
+                    future.complete(null, REQUEST_STATUS_CANCELLED);
+                }
+            }
         }
     }
 
@@ -560,7 +1751,7 @@ public class RigCoreBluetooth implements IRigCoreListener {
     public void onActionGattDisconnected(BluetoothDevice bluetoothDevice) {
         RigLog.d("__RigCoreBluetooth.onActionGattDisconnected__ : " + bluetoothDevice.getAddress());
         cleanUpConnectionFuture();
-        clearQueue();
+        clearQueue(bluetoothDevice.getAddress());
         mConnectionObserver.didDisconnectDevice(bluetoothDevice);
     }
 
@@ -583,12 +1774,19 @@ public class RigCoreBluetooth implements IRigCoreListener {
     @Override
     public void onActionGattDataAvailable(BluetoothGattCharacteristic characteristic, BluetoothDevice bluetoothDevice) {
         RigLog.d("__RigCoreBluetooth.onActionGattDataAvailable__");
-        mIsDataOpInProgress = false;
-        RigLeBaseDevice baseDevice = getRigLeBaseDeviceForBluetoothDevice(bluetoothDevice);
-        if (baseDevice != null) {
-            baseDevice.didUpdateValue(bluetoothDevice, characteristic);
+        String address = bluetoothDevice.getAddress();
+        IRigDataRequest request = matchCallback(address, IRigDataRequest.TYPE_READ, characteristic, null);
+        if (request == null) {
+            return;
         }
-        nextOp();
+
+        if (completeOp(address, request, characteristic.getValue(), BluetoothGatt.GATT_SUCCESS) != null) {
+            RigLeBaseDevice baseDevice = getRigLeBaseDeviceForBluetoothDevice(bluetoothDevice);
+            if (baseDevice != null) {
+                baseDevice.didUpdateValue(bluetoothDevice, characteristic);
+            }
+        }
+        nextOp(address);
     }
 
     @Override
@@ -601,36 +1799,110 @@ public class RigCoreBluetooth implements IRigCoreListener {
     }
 
     @Override
-    public void onActionGattCharWrite(BluetoothDevice bluetoothDevice, BluetoothGattCharacteristic characteristic)
+    public void onActionGattCharWrite(BluetoothDevice bluetoothDevice, BluetoothGattCharacteristic characteristic,
+                                      int status)
     {
-        RigLog.d("__RigCoreBluetooth.onActionGattCharWrite__");
-        mIsDataOpInProgress = false;
-        RigLeBaseDevice baseDevice = getRigLeBaseDeviceForBluetoothDevice(bluetoothDevice);
-        if(baseDevice != null) {
-            baseDevice.didWriteValue(bluetoothDevice, characteristic);
+        RigLog.d("__RigCoreBluetooth.onActionGattCharWrite__ : " + status);
+        String address = bluetoothDevice.getAddress();
+        IRigDataRequest request = matchCallback(address, IRigDataRequest.TYPE_WRITE, characteristic, null);
+        if(request == null) {
+            return;
         }
-        nextOp();
+
+        if(status == BluetoothGatt.GATT_SUCCESS && request instanceof RigReliableWriteRequest
+                && ((RigReliableWriteRequest) request).markPrepared()) {
+            // The prepare-writes are queued on the device; commit them with one execute-write
+            mBluetoothLeService.executeReliableWrite(address);
+            return;
+        }
+
+        // The request reports the status of the stack, but the device is still told of the write
+        // when it failed with status 133, which the bootloader reset of a firmware update causes
+        IRigDataRequest completed = completeOp(address, request, characteristic.getValue(), status);
+        if(completed != null && !(completed instanceof RigStreamWriteRequest)) {
+            // A stream has its own observer
+            RigLeBaseDevice baseDevice = getRigLeBaseDeviceForBluetoothDevice(bluetoothDevice);
+            if(baseDevice != null) {
+                baseDevice.didWriteValue(bluetoothDevice, characteristic);
+            }
+        }
+        nextOp(address);
+    }
+
+    @Override
+    public void onActionGattReliableWriteCompleted(BluetoothDevice bluetoothDevice, int status) {
+        RigLog.d("__RigCoreBluetooth.onActionGattReliableWriteCompleted__ : " + status);
+        String address = bluetoothDevice.getAddress();
+        IRigDataRequest current = matchCallback(address, IRigDataRequest.TYPE_RELIABLE_WRITE, null, null);
+        if(current == null || !((RigReliableWriteRequest) current).isPrepared()) {
+            // Completion of a transaction that already timed out or was aborted
+            return;
+        }
+
+        if(status != BluetoothGatt.GATT_SUCCESS) {
+            RigLog.w("Reliable write failed for " + address);
+            completeOp(address, current, null, status);
+            nextOp(address);
+            return;
+        }
+
+        RigReliableWriteRequest request = (RigReliableWriteRequest) current;
+        if(completeOp(address, request, request.getValue(), status) != null) {
+            RigLeBaseDevice baseDevice = getRigLeBaseDeviceForBluetoothDevice(bluetoothDevice);
+            if(baseDevice != null) {
+                baseDevice.didWriteValue(bluetoothDevice, request.getCharacteristic());
+            }
+        }
+        nextOp(address);
     }
 
     @Override
     public void onActionGattDescriptorRead(BluetoothDevice bluetoothDevice, BluetoothGattDescriptor descriptor) {
         RigLog.d("__RigCoreBluetooth.onActionGattDescriptorRead__");
-        mIsDataOpInProgress = false;
-        RigLeBaseDevice baseDevice = getRigLeBaseDeviceForBluetoothDevice(bluetoothDevice);
-        if(baseDevice != null) {
-            baseDevice.didReadDescriptor(bluetoothDevice, descriptor);
+        String address = bluetoothDevice.getAddress();
+        IRigDataRequest request = matchCallback(address, IRigDataRequest.TYPE_DESCRIPTOR_READ, null, descriptor);
+        if(request == null) {
+            return;
         }
-        nextOp();
+
+        if(completeOp(address, request, descriptor.getValue(), BluetoothGatt.GATT_SUCCESS) != null) {
+            RigLeBaseDevice baseDevice = getRigLeBaseDeviceForBluetoothDevice(bluetoothDevice);
+            if(baseDevice != null) {
+                baseDevice.didReadDescriptor(bluetoothDevice, descriptor);
+            }
+        }
+        nextOp(address);
     }
 
     @Override
     public void onActionGattDescriptorWrite(BluetoothGattDescriptor descriptor, BluetoothDevice bluetoothDevice) {
         RigLog.d("__RigCoreBluetooth.onActionGattDescriptorWrite__");
-        mIsDataOpInProgress = false;
-        RigLeBaseDevice baseDevice = getRigLeBaseDeviceForBluetoothDevice(bluetoothDevice);
-        if (baseDevice != null) {
-            baseDevice.didUpdateNotificationState(bluetoothDevice, descriptor.getCharacteristic());
+        String address = bluetoothDevice.getAddress();
+        IRigDataRequest request = matchCallback(address, IRigDataRequest.TYPE_NOTIFICATION_STATE, null, descriptor);
+        if(request == null) {
+            return;
         }
-        nextOp();
+
+        if(completeOp(address, request, descriptor.getValue(), BluetoothGatt.GATT_SUCCESS) != null) {
+            RigLeBaseDevice baseDevice = getRigLeBaseDeviceForBluetoothDevice(bluetoothDevice);
+            if (baseDevice != null) {
+                baseDevice.didUpdateNotificationState(bluetoothDevice, descriptor.getCharacteristic());
+            }
+        }
+        nextOp(address);
+    }
+
+    @Override
+    public void onActionGattCharFail(BluetoothDevice bluetoothDevice, BluetoothGattCharacteristic characteristic,
+                                     int type, int status) {
+        RigLog.d("__RigCoreBluetooth.onActionGattCharFail__ : " + status);
+        failOp(bluetoothDevice.getAddress(), type, characteristic, null, status);
+    }
+
+    @Override
+    public void onActionGattDescriptorFail(BluetoothDevice bluetoothDevice, BluetoothGattDescriptor descriptor,
+                                           int type, int status) {
+        RigLog.d("__RigCoreBluetooth.onActionGattDescriptorFail__ : " + status);
+        failOp(bluetoothDevice.getAddress(), type, null, descriptor, status);
     }
 }
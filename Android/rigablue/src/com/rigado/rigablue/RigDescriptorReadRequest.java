@@ -8,6 +8,7 @@ public class RigDescriptorReadRequest implements IRigDataRequest {
 
     BluetoothDevice mDevice;
     BluetoothGattDescriptor mDescriptor;
+    int mPriority = PRIORITY_NORMAL;
 
     public RigDescriptorReadRequest(BluetoothDevice device,
                                     BluetoothGattDescriptor descriptor) {
@@ -23,6 +24,25 @@ public class RigDescriptorReadRequest implements IRigDataRequest {
         return mDescriptor;
     }
 
+    @Override
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Sets the priority class of this request.  Set the priority before submitting the request.
+     *
+     * @param priority One of the IRigDataRequest PRIORITY_ constants
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_DESCRIPTOR_READ;
+    }
+
     @Override
     public void post(RigService service) {
         service.readDescriptor(mDevice.getAddress(),
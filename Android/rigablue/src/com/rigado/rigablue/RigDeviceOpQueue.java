@@ -0,0 +1,578 @@
+package com.rigado.rigablue;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ *  RigDeviceOpQueue.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class holds the pending data requests and the in-flight request for a single device
+ * connection.  The Android Bluetooth stack only allows one outstanding GATT operation per
+ * connection, so RigCoreBluetooth keeps one of these queues per device address.  This allows
+ * independent connections to make progress in parallel.
+ *
+ * Waiting requests are kept in one FIFO lane per priority class.  The highest priority lane is
+ * served first, but a lower lane which has been passed over STARVATION_LIMIT times is served
+ * next so background traffic keeps moving under sustained control traffic.
+ *
+ * Coalescing writes and characteristic reads which are still waiting are indexed by
+ * characteristic.  A newer value can replace a pending write, and a new read can join a pending
+ * read, without a scan of the lanes.
+ *
+ * The number of waiting requests may be bounded.  When the queue is full, a new request either
+ * waits for room, is rejected, or evicts the oldest waiting request of the lowest priority
+ * class, depending on the overflow policy.  The queue tracks a high and a low watermark so
+ * producers can be told when to slow down and when to resume.
+ *
+ * @version 1.0
+ */
+class RigDeviceOpQueue {
+
+    /**
+     * The number of times a waiting lane may be passed over by higher priority lanes before it
+     * is served.
+     */
+    static final int STARVATION_LIMIT = 8;
+
+    /**
+     * Results of {@link #offer(IRigDataRequest, long)}.
+     */
+    static final int OFFER_POST = 0;
+    static final int OFFER_QUEUED = 1;
+    static final int OFFER_REJECTED = 2;
+
+    /**
+     * Results of {@link #checkWatermark()}.
+     */
+    static final int WATERMARK_NONE = 0;
+    static final int WATERMARK_HIGH = 1;
+    static final int WATERMARK_LOW = 2;
+
+    /**
+     * The number of priority lanes, one per IRigDataRequest PRIORITY_ value.
+     */
+    private static final int LANE_COUNT = IRigDataRequest.PRIORITY_BULK + 1;
+
+    /**
+     * The address of the device serviced by this queue.
+     */
+    private final String mAddress;
+
+    /**
+     * Requests waiting for the in-flight request to complete, one FIFO per priority.
+     */
+    private final List<LinkedList<IRigDataRequest>> mLanes;
+
+    /**
+     * The number of times each lane has been passed over while it had waiting requests.
+     */
+    private final int[] mPassedOver;
+
+    /**
+     * The total number of waiting requests across all lanes.
+     */
+    private int mWaiting;
+
+    /**
+     * Waiting coalescing writes, keyed by the characteristic they target.
+     */
+    private final HashMap<BluetoothGattCharacteristic, RigWriteRequest> mCoalescable;
+
+    /**
+     * Waiting characteristic reads, keyed by the characteristic they target.
+     */
+    private final HashMap<BluetoothGattCharacteristic, RigReadRequest> mPendingReads;
+
+    /**
+     * The request currently posted to the Bluetooth stack, or null if the link is idle.
+     */
+    private IRigDataRequest mCurrentOp;
+
+    /**
+     * A request whose deadline expired while the Bluetooth stack still had it outstanding, or
+     * null.  The stack refuses new operations until it delivers the callback of that request, so
+     * nothing is posted while a request is stalled.
+     */
+    private IRigDataRequest mStalledOp;
+
+    /**
+     * The watchdog task that fails the in-flight request if its completion callback never
+     * arrives.
+     */
+    private ScheduledFuture<?> mDeadline;
+
+    /**
+     * The maximum number of waiting requests, or 0 if the queue is unbounded.
+     */
+    private int mCapacity;
+
+    /**
+     * The RigCoreBluetooth QUEUE_POLICY_ value applied when the queue is full.
+     */
+    private int mOverflowPolicy;
+
+    /**
+     * Requests evicted to make room for newer requests and not yet reported.
+     */
+    private List<IRigDataRequest> mDropped;
+
+    /**
+     * True while the number of waiting requests is above the low watermark after reaching the
+     * high watermark.
+     */
+    private boolean mIsAboveWatermark;
+
+    /**
+     * Set once the queue has been cleared; a cleared queue accepts no further requests.
+     */
+    private boolean mIsClosed;
+
+    RigDeviceOpQueue(String address) {
+        mAddress = address;
+        mLanes = new ArrayList<>(LANE_COUNT);
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mLanes.add(new LinkedList<IRigDataRequest>());
+        }
+        mPassedOver = new int[LANE_COUNT];
+        mWaiting = 0;
+        mCoalescable = new HashMap<>();
+        mPendingReads = new HashMap<>();
+        mCurrentOp = null;
+        mStalledOp = null;
+        mCapacity = 0;
+        mOverflowPolicy = RigCoreBluetooth.QUEUE_POLICY_REJECT;
+        mIsAboveWatermark = false;
+        mIsClosed = false;
+    }
+
+    /**
+     * Sets the bound on waiting requests.  Requests already waiting are kept even if they exceed
+     * the new capacity.
+     *
+     * @param capacity The maximum number of waiting requests, or 0 for no bound
+     * @param overflowPolicy The RigCoreBluetooth QUEUE_POLICY_ value applied when the queue is full
+     */
+    synchronized void setCapacity(int capacity, int overflowPolicy) {
+        mCapacity = (capacity > 0) ? capacity : 0;
+        mOverflowPolicy = overflowPolicy;
+        notifyAll();
+    }
+
+    /**
+     * @return Returns the address of the device serviced by this queue
+     */
+    String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Adds a request to the queue.  If no request is in flight and nothing is waiting, the
+     * request becomes the in-flight request and the caller is responsible for posting it.
+     * Requests evicted to make room must be collected with {@link #drainDropped()}.
+     *
+     * @param request The request to add
+     * @param maxWait The maximum time, in milliseconds, to wait for room under the block
+     *                policy; 0 does not wait
+     * @return Returns OFFER_POST if the request should be posted immediately, OFFER_QUEUED if it
+     * was queued or OFFER_REJECTED if the queue had no room for it
+     */
+    synchronized int offer(IRigDataRequest request, long maxWait) {
+        if (mIsClosed) {
+            return OFFER_REJECTED;
+        }
+
+        if (mCapacity > 0 && mWaiting >= mCapacity) {
+            if (mOverflowPolicy == RigCoreBluetooth.QUEUE_POLICY_BLOCK) {
+                if (!awaitRoom(maxWait)) {
+                    return OFFER_REJECTED;
+                }
+            } else if (mOverflowPolicy == RigCoreBluetooth.QUEUE_POLICY_DROP_OLDEST) {
+                if (!evictOldest(laneFor(request))) {
+                    return OFFER_REJECTED;
+                }
+            } else {
+                return OFFER_REJECTED;
+            }
+        }
+
+        if (mCurrentOp == null && mStalledOp == null && mWaiting == 0) {
+            mCurrentOp = request;
+            return OFFER_POST;
+        }
+        mLanes.get(laneFor(request)).add(request);
+        mWaiting++;
+        if (isCoalescing(request)) {
+            RigWriteRequest write = (RigWriteRequest) request;
+            mCoalescable.put(write.getCharacteristic(), write);
+        } else if (request instanceof RigReadRequest) {
+            RigReadRequest read = (RigReadRequest) request;
+            mPendingReads.put(read.getCharacteristic(), read);
+        }
+        return OFFER_QUEUED;
+    }
+
+    /**
+     * @return Returns the requests evicted since the last call, or null if there are none
+     */
+    synchronized List<IRigDataRequest> drainDropped() {
+        List<IRigDataRequest> dropped = mDropped;
+        mDropped = null;
+        return dropped;
+    }
+
+    /**
+     * Reports a watermark crossing.  The high watermark is three quarters of the capacity and the
+     * low watermark is one quarter, so producers are not toggled on every request.
+     *
+     * @return Returns WATERMARK_HIGH the first time the waiting count reaches the high watermark,
+     * WATERMARK_LOW the first time it then falls to the low watermark, and WATERMARK_NONE otherwise
+     */
+    synchronized int checkWatermark() {
+        if (mCapacity <= 0) {
+            return WATERMARK_NONE;
+        }
+
+        int high = Math.max(1, (mCapacity * 3) / 4);
+        if (!mIsAboveWatermark && mWaiting >= high) {
+            mIsAboveWatermark = true;
+            return WATERMARK_HIGH;
+        }
+        if (mIsAboveWatermark && mWaiting <= mCapacity / 4) {
+            mIsAboveWatermark = false;
+            return WATERMARK_LOW;
+        }
+        return WATERMARK_NONE;
+    }
+
+    /**
+     * Finds a waiting read of the same characteristic for a new read to join.  If the new read
+     * has a higher priority, the waiting read moves to the end of the higher priority lane.
+     * Callers that need to act on the returned request before it can be posted must hold this
+     * queue's lock across the call.
+     *
+     * @param request The new read
+     * @return Returns the waiting read whose result will be shared, or null if there is none
+     */
+    synchronized RigReadRequest joinRead(RigReadRequest request) {
+        RigReadRequest pending = mPendingReads.get(request.getCharacteristic());
+        if (pending != null && promote(pending, laneFor(request))) {
+            pending.setPriority(request.getPriority());
+        }
+        return pending;
+    }
+
+    /**
+     * Folds a coalescing write into a waiting write to the same characteristic.  If the newer
+     * write has a higher priority, the waiting write moves to the end of the higher priority
+     * lane.  Callers that need to act on the returned request before it can be posted must hold
+     * this queue's lock across the call.
+     *
+     * @param request The newer write
+     * @return Returns the waiting write which now carries the newer value, or null if there was
+     * no waiting write to coalesce with
+     */
+    synchronized RigWriteRequest coalesce(RigWriteRequest request) {
+        if (!request.isCoalescing()) {
+            return null;
+        }
+        RigWriteRequest pending = mCoalescable.get(request.getCharacteristic());
+        if (pending == null) {
+            return null;
+        }
+        pending.replaceValue(request.getValue());
+        if (promote(pending, laneFor(request))) {
+            pending.setPriority(request.getPriority());
+        }
+        return pending;
+    }
+
+    /**
+     * Marks the in-flight request as finished.
+     *
+     * @return Returns the request that was in flight, or null if the link was idle
+     */
+    synchronized IRigDataRequest completeCurrent() {
+        IRigDataRequest request = mCurrentOp;
+        mCurrentOp = null;
+        cancelDeadline();
+        return request;
+    }
+
+    /**
+     * Marks the request as finished if it is still the one in flight.
+     *
+     * @param request The request whose completion callback arrived
+     * @return Returns true if the request was in flight; false if its deadline already expired
+     */
+    synchronized boolean completeCurrent(IRigDataRequest request) {
+        if (mCurrentOp != request) {
+            return false;
+        }
+        mCurrentOp = null;
+        cancelDeadline();
+        return true;
+    }
+
+    /**
+     * Attaches a watchdog task to the in-flight request.  If the request has already completed,
+     * the task is cancelled immediately.
+     *
+     * @param request The request the deadline belongs to
+     * @param deadline The scheduled watchdog task
+     */
+    synchronized void setDeadline(IRigDataRequest request, ScheduledFuture<?> deadline) {
+        if (mCurrentOp != request) {
+            deadline.cancel(false);
+            return;
+        }
+        cancelDeadline();
+        mDeadline = deadline;
+    }
+
+    /**
+     * Releases the in-flight slot if the request is still the one in flight, and stalls the queue
+     * until the late callback of the request arrives.  This is called by the watchdog when a
+     * deadline expires.
+     *
+     * @param request The request whose deadline expired
+     * @return Returns true if the request was still in flight; false if it already completed
+     */
+    synchronized boolean expire(IRigDataRequest request) {
+        if (mCurrentOp != request) {
+            return false;
+        }
+        mCurrentOp = null;
+        mDeadline = null;
+        mStalledOp = request;
+        return true;
+    }
+
+    /**
+     * Stalls the queue until the late callback of a batch request arrives.  The batch keeps the
+     * in-flight slot, but its next request is not posted while the queue is stalled.
+     *
+     * @param step The request of the in-flight batch whose deadline expired
+     * @return Returns true if the queue was stalled; false if it already was
+     */
+    synchronized boolean stall(IRigDataRequest step) {
+        if (mStalledOp != null) {
+            return false;
+        }
+        mStalledOp = step;
+        return true;
+    }
+
+    /**
+     * Resumes the queue once the late callback of the stalled request has arrived.
+     *
+     * @param request The request the callback belongs to
+     * @return Returns true if the request was stalled
+     */
+    synchronized boolean releaseStalled(IRigDataRequest request) {
+        if (mStalledOp == null || mStalledOp != request) {
+            return false;
+        }
+        mStalledOp = null;
+        return true;
+    }
+
+    /**
+     * @return Returns the request whose late callback the queue waits for, or null
+     */
+    synchronized IRigDataRequest getStalled() {
+        return mStalledOp;
+    }
+
+    /**
+     * Promotes the next waiting request to in-flight if the link is idle.
+     *
+     * @return Returns the request to post, or null if nothing should be posted
+     */
+    synchronized IRigDataRequest next() {
+        if (mCurrentOp != null || mStalledOp != null || mWaiting == 0) {
+            return null;
+        }
+
+        int lane = -1;
+        for (int i = LANE_COUNT - 1; i > 0; i--) {
+            if (mPassedOver[i] >= STARVATION_LIMIT && !mLanes.get(i).isEmpty()) {
+                lane = i;
+                break;
+            }
+        }
+        if (lane < 0) {
+            for (int i = 0; i < LANE_COUNT; i++) {
+                if (!mLanes.get(i).isEmpty()) {
+                    lane = i;
+                    break;
+                }
+            }
+        }
+
+        for (int i = 0; i < LANE_COUNT; i++) {
+            if (i == lane || mLanes.get(i).isEmpty()) {
+                mPassedOver[i] = 0;
+            } else if (i > lane) {
+                mPassedOver[i]++;
+            }
+        }
+
+        mCurrentOp = mLanes.get(lane).poll();
+        mWaiting--;
+        unindex(mCurrentOp);
+        notifyAll();
+        return mCurrentOp;
+    }
+
+    /**
+     * @return Returns the request currently in flight, or null if the link is idle
+     */
+    synchronized IRigDataRequest getCurrent() {
+        return mCurrentOp;
+    }
+
+    /**
+     * @return Returns the number of requests waiting behind the in-flight request
+     */
+    synchronized int size() {
+        return mWaiting;
+    }
+
+    /**
+     * Drops all waiting requests and releases the in-flight slot.
+     *
+     * @return Returns the dropped requests, including the in-flight request
+     */
+    synchronized List<IRigDataRequest> clear() {
+        List<IRigDataRequest> dropped = new ArrayList<>(mWaiting + 1);
+        if (mCurrentOp != null) {
+            dropped.add(mCurrentOp);
+        }
+        for (int i = 0; i < LANE_COUNT; i++) {
+            dropped.addAll(mLanes.get(i));
+            mLanes.get(i).clear();
+            mPassedOver[i] = 0;
+        }
+        mWaiting = 0;
+        mCoalescable.clear();
+        mPendingReads.clear();
+        mCurrentOp = null;
+        mStalledOp = null;
+        mIsClosed = true;
+        cancelDeadline();
+        notifyAll();
+        return dropped;
+    }
+
+    /**
+     * Waits for a waiting request to leave the queue.  Must be called with this queue's lock held.
+     *
+     * @param maxWait The maximum time to wait in milliseconds; 0 does not wait
+     * @return Returns true if there is room; false if the wait timed out or the queue was cleared
+     */
+    private boolean awaitRoom(long maxWait) {
+        long deadline = SystemClock.elapsedRealtime() + maxWait;
+        while (!mIsClosed && mCapacity > 0 && mWaiting >= mCapacity) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0) {
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !mIsClosed;
+    }
+
+    /**
+     * Evicts the oldest waiting request of the lowest priority class, unless the new request has
+     * an even lower priority.
+     *
+     * @param lane The lane of the new request
+     * @return Returns true if a request was evicted
+     */
+    private boolean evictOldest(int lane) {
+        for (int i = LANE_COUNT - 1; i >= lane; i--) {
+            IRigDataRequest oldest = mLanes.get(i).poll();
+            if (oldest != null) {
+                mWaiting--;
+                unindex(oldest);
+                if (mDropped == null) {
+                    mDropped = new ArrayList<>(1);
+                }
+                mDropped.add(oldest);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves a waiting request to the end of a higher priority lane.
+     *
+     * @param request The waiting request
+     * @param lane The lane of the request it absorbed or which joined it
+     * @return Returns true if the request moved; false if its own lane is already as high
+     */
+    private boolean promote(IRigDataRequest request, int lane) {
+        int current = laneFor(request);
+        if (lane >= current || !mLanes.get(current).remove(request)) {
+            return false;
+        }
+        mLanes.get(lane).add(request);
+        return true;
+    }
+
+    /**
+     * Removes a request which left the lanes from the coalescing and read indexes.
+     */
+    private void unindex(IRigDataRequest request) {
+        if (isCoalescing(request)) {
+            RigWriteRequest write = (RigWriteRequest) request;
+            if (mCoalescable.get(write.getCharacteristic()) == write) {
+                mCoalescable.remove(write.getCharacteristic());
+            }
+        } else if (request instanceof RigReadRequest) {
+            RigReadRequest read = (RigReadRequest) request;
+            if (mPendingReads.get(read.getCharacteristic()) == read) {
+                mPendingReads.remove(read.getCharacteristic());
+            }
+        }
+    }
+
+    private static boolean isCoalescing(IRigDataRequest request) {
+        return (request instanceof RigWriteRequest) && ((RigWriteRequest) request).isCoalescing();
+    }
+
+    private static int laneFor(IRigDataRequest request) {
+        int priority = request.getPriority();
+        if (priority < IRigDataRequest.PRIORITY_CONTROL || priority > IRigDataRequest.PRIORITY_BULK) {
+            return IRigDataRequest.PRIORITY_NORMAL;
+        }
+        return priority;
+    }
+
+    private void cancelDeadline() {
+        if (mDeadline != null) {
+            mDeadline.cancel(false);
+            mDeadline = null;
+        }
+    }
+}
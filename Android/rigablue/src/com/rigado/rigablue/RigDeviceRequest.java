@@ -14,12 +14,60 @@ package com.rigado.rigablue;
  * This class provides a wrapper for data pertaining to device requests.  Objects of this class
  * contain search paramaters that are then supplied to the RigLeDiscoveryManager.
  *
+ * A device is reported only if its advertisement matches every criterion that is set: any one
+ * of the UUIDs, the local name prefix, the manufacturer data, the service data and the minimum
+ * RSSI.  Criteria which are not set match every device.  The criteria are compiled once when
+ * discovery starts, so a large filter does not slow down the handling of each advertisement.
+ *
  * @see RigLeDiscoveryManager
  * @author Eric Stutzenberger
  * @version 1.0
  */
 public class RigDeviceRequest {
 
+    /**
+     * The minimum RSSI value which disables RSSI filtering.
+     */
+    public static final int RSSI_ANY = Integer.MIN_VALUE;
+
+    /**
+     * The manufacturer company identifier which disables manufacturer data filtering.
+     */
+    public static final int MANUFACTURER_ANY = -1;
+
+    /**
+     * The default width, in dB, of the RSSI buckets used in continuous discovery.
+     */
+    public static final int DEFAULT_RSSI_BUCKET_SIZE = 5;
+
+    /**
+     * The default minimum time, in milliseconds, between updates for one device in continuous
+     * discovery.
+     */
+    public static final long DEFAULT_MIN_UPDATE_INTERVAL = 1000;
+
+    /**
+     * The default weight of the newest advertisement in the smoothed RSSI of a device.
+     */
+    public static final float DEFAULT_RSSI_SMOOTHING = 0.2f;
+
+    /**
+     * Scan mode which uses the least power and finds devices slowest.  The values of the scan
+     * modes match android.bluetooth.le.ScanSettings.
+     */
+    public static final int SCAN_MODE_LOW_POWER = 0;
+
+    /**
+     * Scan mode which balances discovery latency and power.
+     */
+    public static final int SCAN_MODE_BALANCED = 1;
+
+    /**
+     * Scan mode which scans continuously for the lowest discovery latency.  This is the
+     * default, and the only mode on API 18-20.
+     */
+    public static final int SCAN_MODE_LOW_LATENCY = 2;
+
     /**
      * The array of UUIDs that will be searched for during discovery.
      */
@@ -39,6 +87,70 @@ public class RigDeviceRequest {
      */
     private IRigLeDiscoveryManagerObserver mObserver;
 
+    /**
+     * The prefix the advertised local name must start with, or null for any name.
+     */
+    private String mNamePrefix;
+
+    /**
+     * The Bluetooth SIG company identifier of the manufacturer specific data to match, or
+     * MANUFACTURER_ANY.
+     */
+    private int mManufacturerId = MANUFACTURER_ANY;
+    private byte[] mManufacturerData;
+    private byte[] mManufacturerDataMask;
+
+    /**
+     * The service UUID of the service data to match, or null for any service data.
+     */
+    private String mServiceDataUuid;
+    private byte[] mServiceData;
+    private byte[] mServiceDataMask;
+
+    /**
+     * The weakest RSSI, in dBm, at which a device is reported.
+     */
+    private int mMinRssi = RSSI_ANY;
+
+    /**
+     * The observer of updates to discovered devices.  If set, discovery runs in continuous mode.
+     */
+    private IRigLeDiscoveryUpdateObserver mUpdateObserver;
+    private int mRssiBucketSize = DEFAULT_RSSI_BUCKET_SIZE;
+    private long mMinUpdateInterval = DEFAULT_MIN_UPDATE_INTERVAL;
+
+    /**
+     * Bounds on the discovered devices list, and the observer of devices removed by them.
+     */
+    private long mDeviceTtl;
+    private int mMaxDevices;
+    private IRigLeDeviceLossObserver mLossObserver;
+
+    /**
+     * The delay, in milliseconds, for which scan results are batched, and the observer of the
+     * batches.
+     */
+    private long mReportDelay;
+    private IRigLeDiscoveryBatchObserver mBatchObserver;
+
+    /**
+     * How the radio is driven during discovery.
+     */
+    private int mScanMode = SCAN_MODE_LOW_LATENCY;
+    private long mScanWindow;
+    private long mIdleWindow;
+
+    /**
+     * RSSI smoothing and the size of the nearest devices ranking.
+     */
+    private float mRssiSmoothing = DEFAULT_RSSI_SMOOTHING;
+    private int mNearestCount;
+
+    /**
+     * The maximum age of recent sightings reported when discovery starts.
+     */
+    private long mCacheMaxAge;
+
     /**
      * @return Returns the list of UUIDs for this request
      */
@@ -68,6 +180,372 @@ public class RigDeviceRequest {
         mTimeout = timeout;
     }
 
+    /**
+     * Only report devices whose advertised local name, shortened or complete, starts with the
+     * prefix.  The comparison is case sensitive.
+     *
+     * @param namePrefix The name prefix, or null to match any name
+     */
+    public void setNamePrefix(String namePrefix) {
+        mNamePrefix = namePrefix;
+    }
+
+    /**
+     * @return Returns the local name prefix, or null if names are not filtered
+     */
+    public String getNamePrefix() {
+        return mNamePrefix;
+    }
+
+    /**
+     * Only report devices which advertise manufacturer specific data for the company.  The
+     * advertised data, following the company identifier, must start with {@code data} in the
+     * bits set in {@code mask}.
+     *
+     * @param companyId The Bluetooth SIG company identifier, or MANUFACTURER_ANY to disable
+     * @param data The data prefix to match, or null to match on the company identifier only
+     * @param mask The mask applied to each byte of the data; bytes beyond the end of the mask,
+     *             or all bytes if the mask is null, must match exactly
+     */
+    public void setManufacturerData(int companyId, byte[] data, byte[] mask) {
+        mManufacturerId = companyId;
+        mManufacturerData = data;
+        mManufacturerDataMask = mask;
+    }
+
+    /**
+     * @return Returns the company identifier of the manufacturer data filter, or MANUFACTURER_ANY
+     */
+    public int getManufacturerId() {
+        return mManufacturerId;
+    }
+
+    /**
+     * @return Returns the data prefix of the manufacturer data filter
+     */
+    public byte[] getManufacturerData() {
+        return mManufacturerData;
+    }
+
+    /**
+     * @return Returns the mask of the manufacturer data filter
+     */
+    public byte[] getManufacturerDataMask() {
+        return mManufacturerDataMask;
+    }
+
+    /**
+     * Only report devices which advertise service data for the service.  The advertised data,
+     * following the service UUID, must start with {@code data} in the bits set in {@code mask}.
+     *
+     * @param uuid The service UUID, or null to disable
+     * @param data The data prefix to match, or null to match on the service UUID only
+     * @param mask The mask applied to each byte of the data; bytes beyond the end of the mask,
+     *             or all bytes if the mask is null, must match exactly
+     */
+    public void setServiceData(String uuid, byte[] data, byte[] mask) {
+        mServiceDataUuid = uuid;
+        mServiceData = data;
+        mServiceDataMask = mask;
+    }
+
+    /**
+     * @return Returns the service UUID of the service data filter, or null
+     */
+    public String getServiceDataUuid() {
+        return mServiceDataUuid;
+    }
+
+    /**
+     * @return Returns the data prefix of the service data filter
+     */
+    public byte[] getServiceData() {
+        return mServiceData;
+    }
+
+    /**
+     * @return Returns the mask of the service data filter
+     */
+    public byte[] getServiceDataMask() {
+        return mServiceDataMask;
+    }
+
+    /**
+     * Only report devices received with at least this signal strength.
+     *
+     * @param minRssi The weakest RSSI in dBm, or RSSI_ANY to disable
+     */
+    public void setMinRssi(int minRssi) {
+        mMinRssi = minRssi;
+    }
+
+    /**
+     * @return Returns the weakest RSSI at which devices are reported, or RSSI_ANY
+     */
+    public int getMinRssi() {
+        return mMinRssi;
+    }
+
+    /**
+     * Runs discovery in continuous mode.  After a device is discovered, its later advertisements
+     * update the RigAvailableDeviceData in place, and the observer is told when the advertising
+     * data changes or the RSSI moves to a different bucket.  Repeated advertisements which only
+     * differ by a few dB are not reported.
+     *
+     * On API 18-20 some Android devices report each device only once per scan, so no updates
+     * are received.
+     *
+     * @param observer The update observer, or null to report each device only once
+     */
+    public void setUpdateObserver(IRigLeDiscoveryUpdateObserver observer) {
+        mUpdateObserver = observer;
+    }
+
+    /**
+     * @return Returns the update observer, or null if discovery is not continuous
+     */
+    public IRigLeDiscoveryUpdateObserver getUpdateObserver() {
+        return mUpdateObserver;
+    }
+
+    /**
+     * Sets the width of the RSSI buckets in continuous discovery.  A device is updated when its
+     * RSSI falls in a different bucket than the RSSI last reported.
+     *
+     * @param bucketSize The bucket width in dB; values below 1 report every RSSI change
+     */
+    public void setRssiBucketSize(int bucketSize) {
+        mRssiBucketSize = (bucketSize > 0) ? bucketSize : 1;
+    }
+
+    /**
+     * @return Returns the width of the RSSI buckets in dB
+     */
+    public int getRssiBucketSize() {
+        return mRssiBucketSize;
+    }
+
+    /**
+     * Sets the minimum time between updates for one device in continuous discovery.  A change
+     * seen sooner is held back and reported with the first advertisement after the interval.
+     *
+     * @param interval The minimum interval in milliseconds, or 0 for no limit
+     */
+    public void setMinUpdateInterval(long interval) {
+        mMinUpdateInterval = (interval > 0) ? interval : 0;
+    }
+
+    /**
+     * @return Returns the minimum time between updates for one device, in milliseconds
+     */
+    public long getMinUpdateInterval() {
+        return mMinUpdateInterval;
+    }
+
+    /**
+     * Removes discovered devices which have not advertised for longer than the TTL, so a
+     * long-running scan does not keep devices which have left.  Expired devices are removed
+     * within a quarter of the TTL while discovery is running.
+     *
+     * @param ttl The time since the last advertisement, in milliseconds, after which a device
+     *            is lost, or 0 to keep devices until the list is cleared
+     */
+    public void setDeviceTtl(long ttl) {
+        mDeviceTtl = (ttl > 0) ? ttl : 0;
+    }
+
+    /**
+     * @return Returns the device TTL in milliseconds, or 0 if devices do not expire
+     */
+    public long getDeviceTtl() {
+        return mDeviceTtl;
+    }
+
+    /**
+     * Bounds the number of discovered devices.  When a new device would exceed the bound, the
+     * least recently seen devices are removed to make room.
+     *
+     * @param maxDevices The maximum number of discovered devices, or 0 for no bound
+     */
+    public void setMaxDevices(int maxDevices) {
+        mMaxDevices = (maxDevices > 0) ? maxDevices : 0;
+    }
+
+    /**
+     * @return Returns the maximum number of discovered devices, or 0 if unbounded
+     */
+    public int getMaxDevices() {
+        return mMaxDevices;
+    }
+
+    /**
+     * Sets the observer told about devices removed because of the device TTL or the maximum
+     * number of devices.
+     *
+     * @param observer The loss observer, or null
+     */
+    public void setLossObserver(IRigLeDeviceLossObserver observer) {
+        mLossObserver = observer;
+    }
+
+    /**
+     * @return Returns the loss observer, or null
+     */
+    public IRigLeDeviceLossObserver getLossObserver() {
+        return mLossObserver;
+    }
+
+    /**
+     * Batches scan results in the Bluetooth controller and delivers them once per report delay
+     * instead of one at a time.  Use it for background scans which do not need low latency;
+     * the app is woken once per batch rather than for every advertisement.  Batching is only
+     * available on API 21+ where the controller supports it; elsewhere results are delivered
+     * as they arrive.
+     *
+     * @param reportDelay The report delay in milliseconds, or 0 to deliver results as they
+     *                    arrive
+     * @see #setBatchObserver(IRigLeDiscoveryBatchObserver)
+     */
+    public void setReportDelay(long reportDelay) {
+        mReportDelay = (reportDelay > 0) ? reportDelay : 0;
+    }
+
+    /**
+     * @return Returns the report delay in milliseconds, or 0 if results are not batched
+     */
+    public long getReportDelay() {
+        return mReportDelay;
+    }
+
+    /**
+     * Sets the observer which receives the devices of each batch of scan results in one call.
+     *
+     * @param observer The batch observer, or null to report batched devices one at a time
+     */
+    public void setBatchObserver(IRigLeDiscoveryBatchObserver observer) {
+        mBatchObserver = observer;
+    }
+
+    /**
+     * @return Returns the batch observer, or null
+     */
+    public IRigLeDiscoveryBatchObserver getBatchObserver() {
+        return mBatchObserver;
+    }
+
+    /**
+     * Sets the scan mode of the radio on API 21+.  Low latency discovery also uses the
+     * aggressive match mode on API 23+; the other modes wait for a few advertisements before
+     * reporting a device, to avoid reporting devices at the edge of range.
+     *
+     * @param scanMode One of the SCAN_MODE_ constants
+     * @throws IllegalArgumentException if the scan mode is not one of the SCAN_MODE_ constants
+     */
+    public void setScanMode(int scanMode) {
+        if (scanMode != SCAN_MODE_LOW_POWER && scanMode != SCAN_MODE_BALANCED
+                && scanMode != SCAN_MODE_LOW_LATENCY) {
+            throw new IllegalArgumentException("Invalid scan mode " + scanMode);
+        }
+        mScanMode = scanMode;
+    }
+
+    /**
+     * @return Returns the scan mode, one of the SCAN_MODE_ constants
+     */
+    public int getScanMode() {
+        return mScanMode;
+    }
+
+    /**
+     * Duty-cycles a long discovery session: the radio scans for {@code scanWindow}, then stays
+     * idle for {@code idleWindow}, and repeats until discovery stops.  Each scan window is a
+     * scan start, and Android blocks apps which start more than 5 scans in 30 seconds, so
+     * windows which would start scans faster are stretched by RigCoreBluetooth to stay within
+     * that limit.
+     *
+     * @param scanWindow The time to scan in each cycle, in milliseconds
+     * @param idleWindow The time to stay idle in each cycle, in milliseconds; 0 for a continuous
+     *                   scan
+     */
+    public void setScanWindows(long scanWindow, long idleWindow) {
+        mScanWindow = (scanWindow > 0) ? scanWindow : 0;
+        mIdleWindow = (idleWindow > 0) ? idleWindow : 0;
+    }
+
+    /**
+     * @return Returns the time to scan in each cycle, in milliseconds
+     */
+    public long getScanWindow() {
+        return mScanWindow;
+    }
+
+    /**
+     * @return Returns the time to stay idle in each cycle, in milliseconds, or 0 if the scan is
+     * continuous
+     */
+    public long getIdleWindow() {
+        return mIdleWindow;
+    }
+
+    /**
+     * Sets how strongly the smoothed RSSI of a device follows new advertisements.  The smoothed
+     * RSSI is an exponential moving average updated from every advertisement of the device.
+     *
+     * @param smoothing The weight of the newest advertisement, greater than 0 and at most 1;
+     *                  1 disables smoothing
+     * @see RigAvailableDeviceData#getSmoothedRssi()
+     */
+    public void setRssiSmoothing(float smoothing) {
+        mRssiSmoothing = (smoothing > 0 && smoothing <= 1) ? smoothing : DEFAULT_RSSI_SMOOTHING;
+    }
+
+    /**
+     * @return Returns the weight of the newest advertisement in the smoothed RSSI
+     */
+    public float getRssiSmoothing() {
+        return mRssiSmoothing;
+    }
+
+    /**
+     * Keeps a ranking of the discovered devices with the strongest smoothed RSSI, read with
+     * {@link RigLeDiscoveryManager#getNearestDevices()}.  The ranking is updated as devices
+     * advertise, so reading it does not sort the discovered devices list.
+     *
+     * @param count The number of devices in the ranking, or 0 to disable it
+     */
+    public void setNearestCount(int count) {
+        mNearestCount = (count > 0) ? count : 0;
+    }
+
+    /**
+     * @return Returns the number of devices in the nearest devices ranking, or 0 if disabled
+     */
+    public int getNearestCount() {
+        return mNearestCount;
+    }
+
+    /**
+     * Reports devices seen recently by an earlier discovery as soon as this discovery starts,
+     * instead of waiting for them to advertise again.  Every device whose latest advertisement
+     * is younger than the maximum age and matches the filter of this request is reported with
+     * that advertisement; later advertisements update it as usual.
+     *
+     * @param maxAge The maximum age of a recent sighting, in milliseconds, or 0 to report only
+     *               devices advertising during this discovery
+     * @see RigLeDiscoveryManager#clearRecentSightings()
+     */
+    public void setCacheMaxAge(long maxAge) {
+        mCacheMaxAge = (maxAge > 0) ? maxAge : 0;
+    }
+
+    /**
+     * @return Returns the maximum age of recent sightings reported at the start of discovery, in
+     * milliseconds, or 0 if none are reported
+     */
+    public long getCacheMaxAge() {
+        return mCacheMaxAge;
+    }
+
     /**
      * @return Returns the current discovery observer object
      */
@@ -0,0 +1,177 @@
+package com.rigado.rigablue;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ *  RigDiscoverySession.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class is a discovery session which runs alongside other discovery sessions.  It is
+ * started with {@link RigLeDiscoveryManager#startDiscoverySession(RigDeviceRequest)} and has its
+ * own filter, timeout and observer, taken from its device request.  All running sessions share a
+ * single radio scan whose filter is the union of their filters.
+ *
+ * Each device matching the session filter is reported to the session observer once, when the
+ * session first sees it.  The continuous update, device bounds, batching and nearest devices
+ * options of the request apply only to the discovery started with
+ * {@link RigLeDiscoveryManager#startDiscoverDevices(RigDeviceRequest)}.
+ *
+ * @version 1.0
+ */
+public class RigDiscoverySession {
+
+    private final RigDeviceRequest mRequest;
+    private final RigScanFilter mFilter;
+    private final RigScanSettings mSettings;
+    private final IRigLeDiscoveryManagerObserver mObserver;
+
+    /**
+     * The devices discovered by this session, keyed by Bluetooth MAC address.
+     */
+    private final ConcurrentHashMap<String, RigAvailableDeviceData> mDevices;
+
+    private volatile boolean mIsActive;
+    private ScheduledFuture<?> mTimeoutFuture;
+
+    /**
+     * @param request The request for this discovery session
+     * @throws IllegalArgumentException if a UUID string of the request is not a valid UUID
+     */
+    RigDiscoverySession(RigDeviceRequest request) {
+        mRequest = request;
+        mFilter = RigScanFilter.fromRequest(request);
+        mSettings = RigScanSettings.fromRequest(request);
+        mObserver = request.getObserver();
+        mDevices = new ConcurrentHashMap<>();
+        mIsActive = true;
+    }
+
+    /**
+     * @return Returns the request this session was started with
+     */
+    public RigDeviceRequest getRequest() {
+        return mRequest;
+    }
+
+    /**
+     * @return Returns true until the session is stopped or times out
+     */
+    public boolean isActive() {
+        return mIsActive;
+    }
+
+    /**
+     * @return Returns a copy of the list of devices discovered by this session, in order of
+     * discovery.
+     */
+    public ArrayList<RigAvailableDeviceData> getDiscoveredDevices() {
+        ArrayList<RigAvailableDeviceData> deviceList = new ArrayList<>(mDevices.values());
+        Collections.sort(deviceList, RigLeDiscoveryManager.DISCOVERY_ORDER);
+        return deviceList;
+    }
+
+    /**
+     * Looks up a device discovered by this session by its Bluetooth MAC address.
+     *
+     * @param address The Bluetooth MAC address of the device
+     * @return Returns the discovered device, or null if this session has not discovered it
+     */
+    public RigAvailableDeviceData getDiscoveredDevice(String address) {
+        if (address == null) {
+            return null;
+        }
+        return mDevices.get(address);
+    }
+
+    /**
+     * Ends this session.  The shared radio scan stops once no discovery session is running.
+     */
+    public void stop() {
+        RigLeDiscoveryManager.getInstance().stopDiscoverySession(this);
+    }
+
+    RigScanFilter getFilter() {
+        return mFilter;
+    }
+
+    RigScanSettings getSettings() {
+        return mSettings;
+    }
+
+    IRigLeDiscoveryManagerObserver getObserver() {
+        return mObserver;
+    }
+
+    synchronized void setTimeoutFuture(ScheduledFuture<?> future) {
+        mTimeoutFuture = future;
+    }
+
+    /**
+     * Marks the session as ended and cancels its timeout.
+     *
+     * @return Returns false if the session had already ended
+     */
+    synchronized boolean end() {
+        if (!mIsActive) {
+            return false;
+        }
+        mIsActive = false;
+        if (mTimeoutFuture != null) {
+            mTimeoutFuture.cancel(false);
+            mTimeoutFuture = null;
+        }
+        return true;
+    }
+
+    /**
+     * Offers an advertisement from the shared scan to this session.  If it matches the session
+     * filter and comes from a device the session has not seen, the device is reported to the
+     * session observer.
+     *
+     * @param btDevice The advertising device
+     * @param rssi The RSSI of the advertisement
+     * @param scanRecord The advertising data record
+     * @param time The system time of the advertisement
+     * @param shared The device data of the primary discovery for this device, or null if the
+     *               primary discovery did not take the advertisement
+     */
+    void deliver(BluetoothDevice btDevice, int rssi, byte[] scanRecord, long time,
+                 RigAvailableDeviceData shared) {
+        if (!mIsActive || !mFilter.matches(scanRecord, rssi)) {
+            return;
+        }
+
+        String address = btDevice.getAddress();
+        RigAvailableDeviceData knownDevice = mDevices.get(address);
+        if (knownDevice != null) {
+            if (knownDevice != shared) {
+                knownDevice.markSeen(time);
+            }
+            return;
+        }
+
+        RigAvailableDeviceData device = (shared != null)
+                ? shared : new RigAvailableDeviceData(btDevice, rssi, scanRecord, time);
+        if (mDevices.putIfAbsent(address, device) != null) {
+            return;
+        }
+
+        if (mObserver != null) {
+            mObserver.didDiscoverDevice(device);
+        } else {
+            RigLog.d("Session observer is null!");
+        }
+    }
+}
@@ -398,9 +398,7 @@ public class RigFirmwareUpdateManager implements IRigLeDiscoveryManagerObserver,
 
         mState = FirmwareManagerStateEnum.State_Cancelled;
 
-        if (mDiscoveryManager.isDiscoveryRunning()) {
-            mDiscoveryManager.stopDiscoveringDevices();
-        }
+        stopBootloaderDiscovery();
 
         mFirmwareUpdateService.setShouldAlwaysReconnectState(false);
         mFirmwareUpdateService.setShouldReconnectState(false);
@@ -465,7 +463,14 @@ public class RigFirmwareUpdateManager implements IRigLeDiscoveryManagerObserver,
      * Max time in milliseconds to discover RigDfu
      */
     private final static int MAX_RIGDFU_DISCOVERY_TIMEOUT = 20000;
-    private RigLeDiscoveryManager mDiscoveryManager;
+
+    /**
+     * The discovery session looking for the bootloader.  It runs alongside any discovery of the
+     * app, so the app's discovery is left running during the update.  Guarded by
+     * mDiscoveryLock, since the bootloader can be reported before the session is returned.
+     */
+    private RigDiscoverySession mDiscoverySession;
+    private final Object mDiscoveryLock = new Object();
 
     /**
      * Sends the command to put the device in to bootloader mode.
@@ -476,19 +481,13 @@ public class RigFirmwareUpdateManager implements IRigLeDiscoveryManagerObserver,
     private void sendEnterBootloaderCommand(BluetoothGattCharacteristic characteristic, byte [] command) {
         RigLog.d("__RigFirmwareUpdateManager.sendEnterBootloaderCommand__");
 
-        mDiscoveryManager = RigLeDiscoveryManager.getInstance();
-        mDiscoveryManager.stopDiscoveringDevices();
-
-        try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-
         String[] dfuServiceUuidStrings = mFirmwareUpdateService.getDfuServiceUuidStrings();
         RigDeviceRequest dr = new RigDeviceRequest(dfuServiceUuidStrings, MAX_RIGDFU_DISCOVERY_TIMEOUT);
         dr.setObserver(this);
-        mDiscoveryManager.startDiscoverDevices(dr);
+        synchronized (mDiscoveryLock) {
+            stopBootloaderDiscovery();
+            mDiscoverySession = RigLeDiscoveryManager.getInstance().startDiscoverySession(dr);
+        }
 
         updateStatus("Searching for updater service...");
 
@@ -502,6 +501,18 @@ public class RigFirmwareUpdateManager implements IRigLeDiscoveryManagerObserver,
         mUpdateDevice.writeCharacteristic(characteristic, command);
     }
 
+    /**
+     * Ends the discovery session looking for the bootloader, if it is running.
+     */
+    private void stopBootloaderDiscovery() {
+        synchronized (mDiscoveryLock) {
+            if (mDiscoverySession != null) {
+                mDiscoverySession.stop();
+                mDiscoverySession = null;
+            }
+        }
+    }
+
     /**
      * This method cleans up the state of the firmware update manager in case of a failed
      * firmware update.
@@ -1196,7 +1207,7 @@ public class RigFirmwareUpdateManager implements IRigLeDiscoveryManagerObserver,
     public void didDiscoverDevice(RigAvailableDeviceData device) {
         RigLog.d("__RigFirmwareUpdateManager.didDiscoverDevice__");
         RigLog.d("Found dfu device! " + device.toString());
-        RigLeDiscoveryManager.getInstance().stopDiscoveringDevices();
+        stopBootloaderDiscovery();
         RigLeConnectionManager.getInstance().setObserver(this);
         RigLeConnectionManager.getInstance().connectDevice(device, 10000);
     }
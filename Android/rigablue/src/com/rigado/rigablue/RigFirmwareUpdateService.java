@@ -447,7 +447,12 @@ public class RigFirmwareUpdateService implements IRigLeConnectionManagerObserver
             return RigDfuError.errorFromCode(RigDfuError.CONTROL_POINT_CHARACTERISTIC_MISSING);
         }
 
-        mUpdateDevice.setCharacteristicNotification(mControlPoint, true);
+        // The update cannot start until control point notifications are on, so the request
+        // goes ahead of normal traffic for the device
+        RigNotificationStateChangeRequest request = new RigNotificationStateChangeRequest(
+                mUpdateDevice.getBluetoothDevice(), mControlPoint, true);
+        request.setPriority(IRigDataRequest.PRIORITY_CONTROL);
+        mUpdateDevice.submitRequest(request);
         return null;
     }
 
@@ -7,8 +7,11 @@ import android.bluetooth.BluetoothGattService;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  *  RigLeBaseDevice.java
@@ -52,6 +55,22 @@ public class RigLeBaseDevice implements IRigCoreBluetoothDeviceObserver {
 
     private IRigLeDescriptorObserver mDescriptorObserver;
 
+    /**
+     * The optional observer notified when a data request fails or times out.
+     */
+    private IRigLeRequestObserver mRequestObserver;
+
+    /**
+     * The optional observer notified when the request queue fills up or drains.
+     */
+    private IRigLeQueueObserver mQueueObserver;
+
+    /**
+     * Characteristics whose writes are last-value-wins and may be coalesced in the queue.
+     */
+    private final Set<BluetoothGattCharacteristic> mCoalescedCharacteristics =
+            Collections.newSetFromMap(new ConcurrentHashMap<BluetoothGattCharacteristic, Boolean>());
+
     /**
      * The scan response data that was present in the RigAvailableDevice data.
      */
@@ -91,8 +110,7 @@ public class RigLeBaseDevice implements IRigCoreBluetoothDeviceObserver {
      *
      *  @param deviceName The local name of the device parsed from the advertising
      *                    data {@code scanRecord} or set using {@link BluetoothDevice#getName()}.
-     *                    See {@link RigAvailableDeviceData#parseNameFromScanRecord(byte[],
-     *                    BluetoothDevice)}
+     *                    See {@link RigAvailableDeviceData#getUncachedName()}
      *  @param bluetoothDevice The Bluetooth device for this base device
      *  @param serviceList The list of services available for the Bluetooth device
      *  @param scanRecord The advertising data for this device
@@ -229,6 +247,27 @@ public class RigLeBaseDevice implements IRigCoreBluetoothDeviceObserver {
         mDescriptorObserver = observer;
     }
 
+    /**
+     * Sets the request observer for this device.  The request observer is notified when a data
+     * request fails or does not complete before its deadline.
+     *
+     * @param observer The observer object
+     */
+    public void setRequestObserver(IRigLeRequestObserver observer) {
+        mRequestObserver = observer;
+    }
+
+    /**
+     * Sets the queue observer for this device.  The queue observer is notified when the number
+     * of waiting requests crosses the high or low watermark of a bounded queue.
+     *
+     * @param observer The observer object
+     * @see RigCoreBluetooth#setRequestQueueCapacity(int, int)
+     */
+    public void setQueueObserver(IRigLeQueueObserver observer) {
+        mQueueObserver = observer;
+    }
+
     /**
      * Reads the value of the characteristic
      *
@@ -247,7 +286,9 @@ public class RigLeBaseDevice implements IRigCoreBluetoothDeviceObserver {
     }
 
     /**
-     * Reads the value of the characteristic
+     * Reads the value of the characteristic.  If a read of the same characteristic is already
+     * waiting in the queue, this read shares its result and only one didUpdateValue callback is
+     * delivered.
      *
      * @param characteristic The characteristic to read
      * @return If the read property is not set, false is returned; true otherwise
@@ -277,10 +318,103 @@ public class RigLeBaseDevice implements IRigCoreBluetoothDeviceObserver {
             RigLog.e("Write properties not set -- ignoring write request!" + characteristic.getUuid());
             return false;
         }
-        RigCoreBluetooth.getInstance().writeCharacteristic(mBluetoothDevice, characteristic, value);
+        if(mCoalescedCharacteristics.contains(characteristic)) {
+            RigCoreBluetooth.getInstance().writeCharacteristicCoalesced(mBluetoothDevice, characteristic, value);
+        } else {
+            RigCoreBluetooth.getInstance().writeCharacteristic(mBluetoothDevice, characteristic, value);
+        }
         return true;
     }
 
+    /**
+     * Enables or disables write coalescing for the characteristic.  Use this for characteristics
+     * where only the latest value matters, such as setpoints or LED state.  While a write to the
+     * characteristic is waiting in the queue, a newer write replaces its value in place, so the
+     * queue depth stays bounded and the newest value is sent as soon as the link is free.
+     * Each didWriteValue callback then stands for one or more writes.
+     *
+     * @param characteristic The characteristic to configure
+     * @param enabled True to coalesce writes; false to send every write
+     */
+    public void setWriteCoalescing(BluetoothGattCharacteristic characteristic, boolean enabled) {
+        if(characteristic == null) {
+            return;
+        }
+
+        if(enabled) {
+            mCoalescedCharacteristics.add(characteristic);
+        } else {
+            mCoalescedCharacteristics.remove(characteristic);
+        }
+    }
+
+    /**
+     * Queues a prebuilt data request for this device and returns a handle tied to it.  Use this
+     * to submit requests with a non-default priority, for example background polling reads
+     * marked {@link IRigDataRequest#PRIORITY_BULK}.  The observers are still notified as for the
+     * other request methods.
+     *
+     * @param request The request to queue; it must target this device
+     * @return Returns a future which completes when the request finishes.  If the request targets
+     * another device, the future has already failed with
+     * {@link RigCoreBluetooth#REQUEST_STATUS_INVALID}.
+     */
+    public RigRequestFuture submitRequest(IRigDataRequest request) {
+        RigLog.d("RigLeBaseDevice.submitRequest");
+        if(request instanceof RigRequestBatch) {
+            return submitBatch((RigRequestBatch) request);
+        }
+
+        if(request.getDevice() == null
+                || !request.getDevice().getAddress().equals(mBluetoothDevice.getAddress())) {
+            RigLog.e("Request is not for this device -- ignoring request!");
+            return RigRequestFuture.failed(request, RigCoreBluetooth.REQUEST_STATUS_INVALID);
+        }
+        return RigCoreBluetooth.getInstance().submit(request);
+    }
+
+    /**
+     * Queues a batch of data requests for this device as one unit.  The requests are posted
+     * back-to-back in order without other requests for the device in between, and the returned
+     * future completes once for the whole batch.  A batch can be submitted only once.
+     *
+     * @param batch The batch to queue; it must target this device and contain at least one request
+     * @return Returns a future which completes when the batch finishes.  Its status is the status
+     * of the first failed request, or GATT_SUCCESS, and its value is the value of the last request
+     * that ran.  If the batch is empty, already submitted or for another device, the future has
+     * already failed with {@link RigCoreBluetooth#REQUEST_STATUS_INVALID}.
+     * @see RigRequestBatch
+     */
+    public RigRequestFuture submitBatch(RigRequestBatch batch) {
+        RigLog.d("RigLeBaseDevice.submitBatch");
+        if(batch.getDevice() == null
+                || !batch.getDevice().getAddress().equals(mBluetoothDevice.getAddress())
+                || !batch.seal()) {
+            RigLog.e("Batch is empty, already submitted or not for this device -- ignoring batch!");
+            return RigRequestFuture.failed(batch, RigCoreBluetooth.REQUEST_STATUS_INVALID);
+        }
+        return RigCoreBluetooth.getInstance().submit(batch);
+    }
+
+    /**
+     * Opens a streaming write to the characteristic.  The stream keeps up to {@code credits}
+     * write-without-response chunks queued for the link and posts each one as soon as the
+     * Bluetooth stack accepts the previous chunk.
+     *
+     * @param characteristic The characteristic to stream to
+     * @param credits The maximum number of chunks queued or in flight at once
+     * @return Returns the stream, or null if the write without response property is not set
+     * @see RigWriteStream
+     */
+    public RigWriteStream openWriteStream(BluetoothGattCharacteristic characteristic, int credits) {
+        RigLog.d("RigLeBaseDevice.openWriteStream");
+        if((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0) {
+            RigLog.e("Write without response property not set -- ignoring stream request!" + characteristic.getUuid());
+            return null;
+        }
+        return new RigWriteStream(mBluetoothDevice, characteristic, credits);
+    }
+
     /**
      * Enable or disable the notification state for the characteristic
      *
@@ -298,6 +432,113 @@ public class RigLeBaseDevice implements IRigCoreBluetoothDeviceObserver {
         return true;
     }
 
+    /**
+     * Reads the value of the characteristic and returns a handle tied to this exact request.
+     * The observer is still notified through didUpdateValue.
+     *
+     * @param characteristic The characteristic to read
+     * @return Returns a future which completes with the value read.  If the read property is not
+     * set, the future has already failed with {@link RigCoreBluetooth#REQUEST_STATUS_INVALID}.
+     */
+    public RigRequestFuture readCharacteristicAsync(BluetoothGattCharacteristic characteristic) {
+        RigLog.d("RigLeBaseDevice.readCharacteristicAsync");
+        IRigDataRequest request = new RigReadRequest(mBluetoothDevice, characteristic);
+        if((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) == 0) {
+            RigLog.e("Read property not set -- ignoring read request! " + characteristic.getUuid());
+            return RigRequestFuture.failed(request, RigCoreBluetooth.REQUEST_STATUS_INVALID);
+        }
+        return RigCoreBluetooth.getInstance().submit(request);
+    }
+
+    /**
+     * Writes value to the characteristic and returns a handle tied to this exact request.
+     * The observer is still notified through didWriteValue.
+     *
+     * @param characteristic The characteristic to write
+     * @param value The value to write to the characteristic
+     * @return Returns a future which completes with the value written.  If the write properties
+     * are not set, the future has already failed with {@link RigCoreBluetooth#REQUEST_STATUS_INVALID}.
+     */
+    public RigRequestFuture writeCharacteristicAsync(BluetoothGattCharacteristic characteristic, byte [] value) {
+        RigLog.d("RigLeBaseDevice.writeCharacteristicAsync");
+        RigWriteRequest request = new RigWriteRequest(mBluetoothDevice, characteristic, value);
+        request.setCoalescing(mCoalescedCharacteristics.contains(characteristic));
+        int props = characteristic.getProperties();
+        if(((props & BluetoothGattCharacteristic.PROPERTY_WRITE) == 0) &&
+                ((props & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0)) {
+            RigLog.e("Write properties not set -- ignoring write request!" + characteristic.getUuid());
+            return RigRequestFuture.failed(request, RigCoreBluetooth.REQUEST_STATUS_INVALID);
+        }
+        return RigCoreBluetooth.getInstance().submit(request);
+    }
+
+    /**
+     * Writes a value longer than one ATT packet to the characteristic using a reliable write
+     * transaction.  The value is sent as prepare-writes and committed with a single
+     * execute-write, so it is applied in full or not at all.  The observer is notified through
+     * didWriteValue once the commit completes.
+     *
+     * @param characteristic The characteristic to write
+     * @param value The value to write, up to {@link RigReliableWriteRequest#MAX_VALUE_LENGTH} bytes
+     * @return Returns a future which completes with the value written.  If the write property is
+     * not set or the value is too long, the future has already failed with
+     * {@link RigCoreBluetooth#REQUEST_STATUS_INVALID}.
+     * @see RigReliableWriteRequest
+     */
+    public RigRequestFuture writeCharacteristicReliableAsync(BluetoothGattCharacteristic characteristic,
+                                                             byte [] value) {
+        RigLog.d("RigLeBaseDevice.writeCharacteristicReliableAsync");
+        IRigDataRequest request = new RigReliableWriteRequest(mBluetoothDevice, characteristic, value);
+        if((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE) == 0) {
+            RigLog.e("Write property not set -- ignoring reliable write request!" + characteristic.getUuid());
+            return RigRequestFuture.failed(request, RigCoreBluetooth.REQUEST_STATUS_INVALID);
+        }
+        if(value.length > RigReliableWriteRequest.MAX_VALUE_LENGTH) {
+            RigLog.e("Value too long -- ignoring reliable write request!" + characteristic.getUuid());
+            return RigRequestFuture.failed(request, RigCoreBluetooth.REQUEST_STATUS_INVALID);
+        }
+        return RigCoreBluetooth.getInstance().submit(request);
+    }
+
+    /**
+     * Enables or disables notifications for the characteristic and returns a handle tied to this
+     * exact request.  The observer is still notified through didUpdateNotifyState.
+     *
+     * @param characteristic The characteristic to adjust
+     * @param enabled The notification state to set
+     * @return Returns a future which completes with the descriptor value written.  If the notify
+     * property is not set, the future has already failed with
+     * {@link RigCoreBluetooth#REQUEST_STATUS_INVALID}.
+     */
+    public RigRequestFuture setCharacteristicNotificationAsync(BluetoothGattCharacteristic characteristic,
+                                                               boolean enabled) {
+        RigLog.d("RigLeBaseDevice.setCharacteristicNotificationAsync");
+        IRigDataRequest request = new RigNotificationStateChangeRequest(mBluetoothDevice, characteristic, enabled);
+        if((characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0) {
+            RigLog.e("Notify property not set -- ignoring notify request!" + characteristic.getUuid());
+            return RigRequestFuture.failed(request, RigCoreBluetooth.REQUEST_STATUS_INVALID);
+        }
+        return RigCoreBluetooth.getInstance().submit(request);
+    }
+
+    /**
+     * Reads the value of the descriptor and returns a handle tied to this exact request.  The
+     * descriptor observer is still notified through didReadDescriptor.
+     *
+     * @param descriptor The descriptor to read
+     * @return Returns a future which completes with the value read.  If the descriptor is null,
+     * the future has already failed with {@link RigCoreBluetooth#REQUEST_STATUS_INVALID}.
+     */
+    public RigRequestFuture readDescriptorAsync(BluetoothGattDescriptor descriptor) {
+        RigLog.d("RigLeBaseDevice.readDescriptorAsync");
+        IRigDataRequest request = new RigDescriptorReadRequest(mBluetoothDevice, descriptor);
+        if(descriptor == null) {
+            RigLog.w("Descriptor was null! Ignoring read request.");
+            return RigRequestFuture.failed(request, RigCoreBluetooth.REQUEST_STATUS_INVALID);
+        }
+        return RigCoreBluetooth.getInstance().submit(request);
+    }
+
     /**
      * This callback is received from the low level Bluetooth API when the state of a characteristic
      * notification has been successfully updated.
@@ -393,4 +634,39 @@ public class RigLeBaseDevice implements IRigCoreBluetoothDeviceObserver {
 
         }
     }
+
+    /**
+     * This callback is received from the low level Bluetooth API when a queued request fails or
+     * its deadline expires.  If full discovery is running, the failed read is skipped so
+     * discovery can continue with the next characteristic.
+     *
+     * @param btDevice The device for which the request failed
+     * @param request The request which failed
+     * @param status The failure status
+     */
+    @Override
+    public void didFailRequest(BluetoothDevice btDevice, IRigDataRequest request, int status) {
+        RigLog.w("Request failed with status " + status + " for " + mBluetoothDevice.getAddress());
+        if (mRequestObserver != null) {
+            mRequestObserver.didFailRequest(this, request, status);
+        }
+
+        if (!mIsDiscoveryComplete && request instanceof RigReadRequest) {
+            didUpdateValue(btDevice, null);
+        }
+    }
+
+    @Override
+    public void didChangeQueueDepth(BluetoothDevice btDevice, int depth, boolean isHigh) {
+        IRigLeQueueObserver observer = mQueueObserver;
+        if (observer == null) {
+            return;
+        }
+
+        if (isHigh) {
+            observer.didReachHighWatermark(this, depth);
+        } else {
+            observer.didReachLowWatermark(this, depth);
+        }
+    }
 }
@@ -166,22 +166,14 @@ public class RigLeConnectionManager implements IRigCoreBluetoothConnectionObserv
                         RigCoreBluetooth.getInstance().getServiceList(btDevice.getAddress()),
                         scanRecord);
         mAdvertisingDataList.remove(btDevice);
-        RigAvailableDeviceData toRemove = null;
-
 
         mLock.acquireUninterruptibly();
         mConnectedDevices.add(baseDevice);
         mLock.release();
 
-        for(RigAvailableDeviceData availDevice : RigLeDiscoveryManager.getInstance().getDiscoveredDevices())
-        {
-            if(availDevice.getBluetoothDevice().getAddress().equals(btDevice.getAddress())) {
-                toRemove = availDevice;
-                break;
-            }
-        }
-
         /* Now that a valid connection has been made, remove the device from the available list */
+        RigAvailableDeviceData toRemove =
+                RigLeDiscoveryManager.getInstance().getDiscoveredDevice(btDevice.getAddress());
         if(toRemove != null) {
             RigLeDiscoveryManager.getInstance().removeAvailableDevice(toRemove);
         }
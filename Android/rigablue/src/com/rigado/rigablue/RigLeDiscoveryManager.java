@@ -2,9 +2,17 @@ package com.rigado.rigablue;
 
 import android.bluetooth.BluetoothDevice;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  *  RigLeDiscoveryManager.java
@@ -27,14 +35,45 @@ import java.util.concurrent.Semaphore;
 public class RigLeDiscoveryManager implements IRigCoreBluetoothDiscoveryObserver {
 
     /**
-     * The list of discovered devices based on the discovery request parameters.
+     * The discovered devices based on the discovery request parameters, keyed by Bluetooth MAC
+     * address.  Lookups never block the scan callback, and a list is only built when
+     * {@link #getDiscoveredDevices()} is called.
      */
-    private volatile ArrayList<RigAvailableDeviceData> mDiscoveredDevices;
+    private final ConcurrentHashMap<String, RigAvailableDeviceData> mDiscoveredDevices;
 
     /**
      * If a discovery session is in progress, this flag is true; false otherwise.
      */
-    private boolean mIsDiscoveryRunning;
+    private volatile boolean mIsDiscoveryRunning;
+
+    /**
+     * True while a scan trace is replayed into the discovered devices list.  Replays and live
+     * discovery exclude each other, as both own the observers and options of the list.
+     */
+    private volatile boolean mIsReplaying;
+
+    /**
+     * The filter and scan settings of the discovery started with startDiscoverDevices.  The
+     * filter is null while that discovery is not running, so it takes no scan results.
+     */
+    private volatile RigScanFilter mPrimaryFilter;
+    private RigScanSettings mPrimarySettings;
+    private ScheduledFuture<?> mPrimaryTimeoutFuture;
+    private volatile int mPrimaryGeneration;
+
+    /**
+     * The discovery sessions running alongside the primary discovery.  The radio scan filter is
+     * the union of the running sessions' filters.  Changes to the sessions hold mSessionLock.
+     */
+    private final CopyOnWriteArrayList<RigDiscoverySession> mSessions = new CopyOnWriteArrayList<>();
+    private final Object mSessionLock = new Object();
+
+    /**
+     * The latest advertisement of recently seen devices, kept across discovery sessions and
+     * reported to a new session which asks for recent sightings.
+     */
+    private static final int SIGHTING_CACHE_CAPACITY = 256;
+    private final RigSightingCache mRecentSightings = new RigSightingCache(SIGHTING_CACHE_CAPACITY);
 
     /**
      * The observer object for this class
@@ -42,9 +81,67 @@ public class RigLeDiscoveryManager implements IRigCoreBluetoothDiscoveryObserver
     private IRigLeDiscoveryManagerObserver mObserver;
 
     /**
-     * A semaphore for controlling access to the discovered devices list.
+     * The observer of updates to discovered devices, set if discovery is continuous.
+     */
+    private volatile IRigLeDiscoveryUpdateObserver mUpdateObserver;
+    private volatile int mRssiBucketSize = RigDeviceRequest.DEFAULT_RSSI_BUCKET_SIZE;
+    private volatile long mMinUpdateInterval = RigDeviceRequest.DEFAULT_MIN_UPDATE_INTERVAL;
+
+    /**
+     * Bounds on the discovered devices, and the observer of devices removed by them.
+     */
+    private volatile long mDeviceTtl;
+    private volatile int mMaxDevices;
+    private volatile IRigLeDeviceLossObserver mLossObserver;
+
+    /**
+     * The observer of batches of discovered devices, or null to report them one at a time.
      */
-    private final Semaphore mLock = new Semaphore(1, true);
+    private volatile IRigLeDiscoveryBatchObserver mBatchObserver;
+
+    /**
+     * The weight of the newest advertisement in the smoothed RSSI of a device.
+     */
+    private volatile float mRssiSmoothing = RigDeviceRequest.DEFAULT_RSSI_SMOOTHING;
+
+    /**
+     * The devices with the strongest smoothed RSSI, strongest first, with the smoothed RSSI of
+     * each as of its latest advertisement.  Guarded by mNearestLock.
+     */
+    private final Object mNearestLock = new Object();
+    private RigAvailableDeviceData[] mNearest = new RigAvailableDeviceData[0];
+    private double[] mNearestRssi = new double[0];
+    private int mNearestSize;
+
+    /**
+     * Held while devices are being evicted, so only one thread evicts at a time.
+     */
+    private final Object mEvictionLock = new Object();
+
+    /**
+     * The shortest period between sweeps for expired devices, in milliseconds.
+     */
+    private static final long MIN_SWEEP_PERIOD = 250;
+
+    private static final ScheduledExecutorService evictionWorker =
+            Executors.newSingleThreadScheduledExecutor();
+    private ScheduledFuture<?> mSweepFuture;
+
+    private static final ScheduledExecutorService sessionWorker =
+            Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * Orders snapshots of the discovered devices by the time of their discovery.
+     */
+    static final Comparator<RigAvailableDeviceData> DISCOVERY_ORDER =
+            new Comparator<RigAvailableDeviceData>() {
+        @Override
+        public int compare(RigAvailableDeviceData lhs, RigAvailableDeviceData rhs) {
+            long lhsTime = lhs.getDiscoverTime();
+            long rhsTime = rhs.getDiscoverTime();
+            return (lhsTime < rhsTime) ? -1 : ((lhsTime == rhsTime) ? 0 : 1);
+        }
+    };
 
     private int searchTime;
     private List<UUID> uuidArrayList;
@@ -58,7 +155,7 @@ public class RigLeDiscoveryManager implements IRigCoreBluetoothDiscoveryObserver
      * The private constructor for this class.
      */
     RigLeDiscoveryManager() {
-        mDiscoveredDevices = new ArrayList<>();
+        mDiscoveredDevices = new ConcurrentHashMap<>();
         RigCoreBluetooth.getInstance().setDiscoveryObserver(this);
     }
 
@@ -73,13 +170,17 @@ public class RigLeDiscoveryManager implements IRigCoreBluetoothDiscoveryObserver
     }
 
     /**
-     * Starts device discovery using the parameters of the device request. Be careful
-     * about restarting the discovery process too frequently. On devices running Android N,
-     * if scanning is initiated more than 5 times in 30 seconds, all scans are blocked for the
-     * next 24.5 seconds.
+     * Starts device discovery using the parameters of the device request. On devices running
+     * Android N, if scanning is initiated more than 5 times in 30 seconds, all scans are blocked
+     * for the next 24.5 seconds.  To stay within that limit, a scan start which would be the
+     * sixth within 30 seconds is deferred until it is allowed, so restarting discovery too
+     * frequently delays the first results.
      *
      * https://github.com/AltBeacon/android-beacon-library/issues/418
      *
+     * Sessions started with {@link #startDiscoverySession(RigDeviceRequest)} keep running
+     * alongside this discovery and share its radio scan.
+     *
      * @param request The request for this discovery session
      * @see RigDeviceRequest
      */
@@ -88,56 +189,388 @@ public class RigLeDiscoveryManager implements IRigCoreBluetoothDiscoveryObserver
         if (request == null || mIsDiscoveryRunning) {
             return;
         }
-        int searchTime = 0;
-        clearAvailableDevices();
+        RigScanFilter filter = RigScanFilter.fromRequest(request);
+
+        final int generation;
+        synchronized (mSessionLock) {
+            if (mIsReplaying) {
+                RigLog.w("Cannot start discovery while a scan trace is replayed");
+                return;
+            }
+            clearAvailableDevices();
+            mIsDiscoveryRunning = true;
+            applyRequest(request);
+            mPrimaryFilter = filter;
+            mPrimarySettings = RigScanSettings.fromRequest(request);
+            generation = ++mPrimaryGeneration;
+            if (request.getTimeout() > 0) {
+                mPrimaryTimeoutFuture = sessionWorker.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        primaryDidTimeout(generation);
+                    }
+                }, request.getTimeout(), TimeUnit.MILLISECONDS);
+            }
+            updateRadio();
+        }
+
+        final long maxAge = request.getCacheMaxAge();
+        if (maxAge > 0) {
+            RigCoreBluetooth.getInstance().runOnScanIngestion(new Runnable() {
+                @Override
+                public void run() {
+                    reportRecentSightings(generation, maxAge);
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts a discovery session which runs alongside the discovery started with
+     * {@link #startDiscoverDevices(RigDeviceRequest)} and any other sessions.  The session
+     * reports the devices matching the filter of its request to the observer of its request,
+     * and times out after the timeout of its request, if set.
+     *
+     * @param request The request for this discovery session
+     * @return Returns the running session, or null if the request is null or a scan trace is
+     * being replayed
+     * @see RigDiscoverySession
+     */
+    public RigDiscoverySession startDiscoverySession(RigDeviceRequest request) {
+        RigLog.d("__RigLeDiscoveryManager.startDiscoverySession__");
+        if (request == null) {
+            return null;
+        }
+
+        final RigDiscoverySession session = new RigDiscoverySession(request);
+        synchronized (mSessionLock) {
+            if (mIsReplaying) {
+                RigLog.w("Cannot start a discovery session while a scan trace is replayed");
+                return null;
+            }
+            mSessions.add(session);
+            if (request.getTimeout() > 0) {
+                session.setTimeoutFuture(sessionWorker.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        sessionDidTimeout(session);
+                    }
+                }, request.getTimeout(), TimeUnit.MILLISECONDS));
+            }
+            updateRadio();
+        }
+
+        final long maxAge = request.getCacheMaxAge();
+        if (maxAge > 0) {
+            RigCoreBluetooth.getInstance().runOnScanIngestion(new Runnable() {
+                @Override
+                public void run() {
+                    reportRecentSightings(session, maxAge);
+                }
+            });
+        }
+        return session;
+    }
+
+    /**
+     * Reports the recent sightings which match the discovery started with startDiscoverDevices,
+     * as if the devices had just advertised.  Devices which advertised since the discovery
+     * started are skipped, so their newer advertisement is kept.  Runs on the scan ingestion
+     * thread, so the observers never see a sighting and a live scan result at the same time.
+     *
+     * @param generation The discovery the sightings are for; skipped if it has ended
+     * @param maxAge The maximum age of the sightings, in milliseconds
+     */
+    private void reportRecentSightings(int generation, long maxAge) {
+        List<RigSightingCache.Sighting> sightings =
+                mRecentSightings.getFresh(maxAge, System.currentTimeMillis());
+        IRigLeDiscoveryBatchObserver batchObserver = mBatchObserver;
+        List<RigAvailableDeviceData> discovered = (batchObserver != null)
+                ? new ArrayList<RigAvailableDeviceData>() : null;
+        for (RigSightingCache.Sighting sighting : sightings) {
+            if (!mIsDiscoveryRunning || generation != mPrimaryGeneration) {
+                return;
+            }
+            if (mDiscoveredDevices.containsKey(sighting.device.getAddress())
+                    || !isPrimaryMatch(sighting.scanRecord, sighting.rssi)) {
+                continue;
+            }
+            ingest(sighting.device, sighting.rssi, sighting.scanRecord, sighting.time,
+                    discovered, null);
+        }
+
+        if (batchObserver != null && !discovered.isEmpty()) {
+            batchObserver.didDiscoverDevices(discovered);
+        }
+    }
+
+    /**
+     * Reports the recent sightings which match the filter of a session, as if the devices had
+     * just advertised.  Runs on the scan ingestion thread, like reportRecentSightings for the
+     * primary discovery.
+     *
+     * @param session The session the sightings are for; skipped if it has ended
+     * @param maxAge The maximum age of the sightings, in milliseconds
+     */
+    private void reportRecentSightings(RigDiscoverySession session, long maxAge) {
+        List<RigSightingCache.Sighting> sightings =
+                mRecentSightings.getFresh(maxAge, System.currentTimeMillis());
+        for (RigSightingCache.Sighting sighting : sightings) {
+            if (!session.isActive()) {
+                return;
+            }
+            String address = sighting.device.getAddress();
+            if (session.getDiscoveredDevice(address) != null) {
+                continue;
+            }
+            RigAvailableDeviceData shared = isPrimaryMatch(sighting.scanRecord, sighting.rssi)
+                    ? mDiscoveredDevices.get(address) : null;
+            session.deliver(sighting.device, sighting.rssi, sighting.scanRecord, sighting.time,
+                    shared);
+        }
+    }
+
+    /**
+     * Ends a discovery session started with {@link #startDiscoverySession(RigDeviceRequest)}.
+     * The radio scan stops once no discovery session is running.
+     *
+     * @param session The session to end
+     */
+    public void stopDiscoverySession(RigDiscoverySession session) {
+        RigLog.d("__RigLeDiscoveryManager.stopDiscoverySession__");
+        if (session == null) {
+            return;
+        }
+        synchronized (mSessionLock) {
+            if (session.end()) {
+                mSessions.remove(session);
+                updateRadio();
+            }
+        }
+    }
 
-        if (request.getTimeout() > 0) {
-            searchTime = request.getTimeout();
+    private void sessionDidTimeout(RigDiscoverySession session) {
+        synchronized (mSessionLock) {
+            if (!session.end()) {
+                return;
+            }
+            mSessions.remove(session);
+            updateRadio();
         }
-        String[] idList = request.getUuidList();
-        UUID uuidArrayList[];
-        if (idList != null) {
-            uuidArrayList = new UUID[idList.length];
-            for(int i = 0; i < uuidArrayList.length; i++) {
-                uuidArrayList[i] = UUID.fromString(request.getUuidList()[i]);
+        IRigLeDiscoveryManagerObserver observer = session.getObserver();
+        if (observer != null) {
+            observer.discoveryDidTimeout();
+        }
+    }
+
+    private void primaryDidTimeout(int generation) {
+        synchronized (mSessionLock) {
+            if (!mIsDiscoveryRunning || generation != mPrimaryGeneration) {
+                // Stopped, or restarted, while the timeout fired
+                return;
             }
+            mPrimaryTimeoutFuture = null;
+            endPrimary();
+            updateRadio();
+        }
+        IRigLeDiscoveryManagerObserver observer = mObserver;
+        if (observer != null) {
+            observer.discoveryDidTimeout();
+        }
+    }
+
+    /**
+     * Ends the discovery started with startDiscoverDevices.  Must be called holding
+     * mSessionLock.
+     */
+    private void endPrimary() {
+        mIsDiscoveryRunning = false;
+        mPrimaryFilter = null;
+        if (mPrimaryTimeoutFuture != null) {
+            mPrimaryTimeoutFuture.cancel(false);
+            mPrimaryTimeoutFuture = null;
+        }
+        stopSweeping();
+    }
+
+    /**
+     * Points the radio scan at the union of the running discovery sessions, or stops it if none
+     * is running.  Must be called holding mSessionLock.
+     */
+    private void updateRadio() {
+        List<RigScanFilter> filters = new ArrayList<>();
+        List<RigScanSettings> settings = new ArrayList<>();
+        if (mIsDiscoveryRunning && mPrimaryFilter != null) {
+            filters.add(mPrimaryFilter);
+            settings.add(mPrimarySettings);
+        }
+        for (RigDiscoverySession session : mSessions) {
+            filters.add(session.getFilter());
+            settings.add(session.getSettings());
+        }
+
+        if (filters.isEmpty()) {
+            RigCoreBluetooth.getInstance().stopDiscovery();
         } else {
-            uuidArrayList = null;
+            RigCoreBluetooth.getInstance().updateDiscovery(RigScanFilter.anyOf(filters),
+                    RigScanSettings.merge(settings));
         }
+    }
 
-        mIsDiscoveryRunning = true;
-        mObserver = request.getObserver();
+    /**
+     * Ends every discovery session after Bluetooth stopped the radio scan.
+     *
+     * @return Returns the sessions which were running
+     */
+    private List<RigDiscoverySession> endAllSessions() {
+        List<RigDiscoverySession> ended = new ArrayList<>();
+        synchronized (mSessionLock) {
+            endPrimary();
+            for (RigDiscoverySession session : mSessions) {
+                if (session.end()) {
+                    ended.add(session);
+                }
+            }
+            mSessions.clear();
+        }
+        return ended;
+    }
 
-        RigCoreBluetooth.getInstance().startDiscovery(uuidArrayList, searchTime);
+    /**
+     * Prepares the discovered devices list for a replayed scan trace, as if discovery had been
+     * started with the request, without starting the radio.
+     *
+     * @param request The request the trace is replayed with
+     * @throws IllegalStateException if a discovery, a discovery session or another replay is
+     * running
+     * @see RigScanReplayer
+     */
+    void startReplay(RigDeviceRequest request) {
+        RigScanFilter filter = RigScanFilter.fromRequest(request);
+        synchronized (mSessionLock) {
+            if (mIsDiscoveryRunning || !mSessions.isEmpty() || mIsReplaying) {
+                throw new IllegalStateException("Cannot replay a scan trace while discovery is running");
+            }
+            mIsReplaying = true;
+            clearAvailableDevices();
+            applyRequest(request);
+            mPrimaryFilter = filter;
+        }
+    }
+
+    /**
+     * Ends a replayed scan trace.
+     */
+    void stopReplay() {
+        synchronized (mSessionLock) {
+            if (!mIsReplaying) {
+                return;
+            }
+            mIsReplaying = false;
+            mPrimaryFilter = null;
+            stopSweeping();
+        }
+    }
+
+    /**
+     * Takes the observers and discovered device options of a discovery session from its
+     * request.
+     */
+    private void applyRequest(RigDeviceRequest request) {
+        mObserver = request.getObserver();
+        mUpdateObserver = request.getUpdateObserver();
+        mRssiBucketSize = request.getRssiBucketSize();
+        mMinUpdateInterval = request.getMinUpdateInterval();
+        mDeviceTtl = request.getDeviceTtl();
+        mMaxDevices = request.getMaxDevices();
+        mLossObserver = request.getLossObserver();
+        mBatchObserver = request.getBatchObserver();
+        mRssiSmoothing = request.getRssiSmoothing();
+        synchronized (mNearestLock) {
+            mNearest = new RigAvailableDeviceData[request.getNearestCount()];
+            mNearestRssi = new double[request.getNearestCount()];
+            mNearestSize = 0;
+        }
+        startSweeping();
     }
 
     /**
-     * Ends the current discovery session if active.
+     * Ends the current discovery session if active.  Sessions started with
+     * {@link #startDiscoverySession(RigDeviceRequest)} keep running.
      */
     public void stopDiscoveringDevices() {
         RigLog.d("__RigLeDiscoveryManager.stopDiscoveringDevices__");
-        RigCoreBluetooth.getInstance().stopDiscovery();
-        mIsDiscoveryRunning = false;
+        synchronized (mSessionLock) {
+            endPrimary();
+            updateRadio();
+        }
     }
 
     /**
-     * @return Returns a copy of the current list of discovered devices.
+     * @return Returns a copy of the current list of discovered devices, in order of discovery.
      */
     public ArrayList<RigAvailableDeviceData> getDiscoveredDevices() {
-        mLock.acquireUninterruptibly();
-        ArrayList<RigAvailableDeviceData> deviceList = new ArrayList<>(mDiscoveredDevices);
-        mLock.release();
+        ArrayList<RigAvailableDeviceData> deviceList = new ArrayList<>(mDiscoveredDevices.values());
+        Collections.sort(deviceList, DISCOVERY_ORDER);
         return deviceList;
     }
 
+    /**
+     * Looks up a discovered device by its Bluetooth MAC address.
+     *
+     * @param address The Bluetooth MAC address of the device
+     * @return Returns the discovered device, or null if no device with the address has been
+     * discovered
+     */
+    public RigAvailableDeviceData getDiscoveredDevice(String address) {
+        if (address == null) {
+            return null;
+        }
+        return mDiscoveredDevices.get(address);
+    }
+
+    /**
+     * @return Returns the number of discovered devices.
+     */
+    public int getDiscoveredDeviceCount() {
+        return mDiscoveredDevices.size();
+    }
+
+    /**
+     * @return Returns the discovered devices with the strongest smoothed RSSI, strongest first.
+     * The ranking holds up to the nearest count of the discovery request and is refreshed as
+     * devices advertise; it is empty if no nearest count was set.
+     * @see RigDeviceRequest#setNearestCount(int)
+     */
+    public ArrayList<RigAvailableDeviceData> getNearestDevices() {
+        synchronized (mNearestLock) {
+            ArrayList<RigAvailableDeviceData> nearest = new ArrayList<>(mNearestSize);
+            for (int i = 0; i < mNearestSize; i++) {
+                nearest.add(mNearest[i]);
+            }
+            return nearest;
+        }
+    }
+
     /**
      * Clears the discovered devices list.
      */
     public void clearAvailableDevices() {
         RigLog.d("__RigLeDiscoveryManager.clearAvailableDevices__");
-        mLock.acquireUninterruptibly();
         mDiscoveredDevices.clear();
-        mLock.release();
+        synchronized (mNearestLock) {
+            Arrays.fill(mNearest, null);
+            mNearestSize = 0;
+        }
+    }
+
+    /**
+     * Clears the recent sightings kept for devices seen by earlier discoveries.
+     *
+     * @see RigDeviceRequest#setCacheMaxAge(long)
+     */
+    public void clearRecentSightings() {
+        mRecentSightings.clear();
     }
 
     /**
@@ -147,13 +580,15 @@ public class RigLeDiscoveryManager implements IRigCoreBluetoothDiscoveryObserver
      */
     public boolean removeAvailableDevice(RigAvailableDeviceData device) {
         RigLog.d("__RigLeDiscoveryManager.removeAvailableDevice__");
-        boolean result;
-
-        mLock.acquireUninterruptibly();
-        result = mDiscoveredDevices.remove(device);
-        mLock.release();
-
-        return result;
+        if (device == null || device.getBluetoothDevice() == null) {
+            return false;
+        }
+        RigAvailableDeviceData removed = mDiscoveredDevices.remove(device.getBluetoothDevice().getAddress());
+        if (removed == null) {
+            return false;
+        }
+        removeNearest(removed);
+        return true;
     }
 
     /**
@@ -165,7 +600,8 @@ public class RigLeDiscoveryManager implements IRigCoreBluetoothDiscoveryObserver
     }
 
     /**
-     * @return Returns true if a device discovery is in progress; false otherwise.
+     * @return Returns true if the discovery started with startDiscoverDevices is in progress;
+     * false otherwise.
      */
     public boolean isDiscoveryRunning() {
         return mIsDiscoveryRunning;
@@ -183,7 +619,6 @@ public class RigLeDiscoveryManager implements IRigCoreBluetoothDiscoveryObserver
     public void didDiscoverDevice(BluetoothDevice btDevice, int rssi, byte [] scanRecord) {
         RigLog.d("RigLeDiscoveryManager.didDiscoverDevice");
 
-        boolean found = false;
         if (rssi > 0) {
             RigLog.d("RigLeDiscoveryManager.rssi > 0");
             /* Sometimes an invalid RSSI is provided by the OS.  Connecting to devices reported in this state will generally result
@@ -191,27 +626,311 @@ public class RigLeDiscoveryManager implements IRigCoreBluetoothDiscoveryObserver
             return;
         }
 
-        mLock.acquireUninterruptibly();
-        RigLog.d("RigLeDiscoveryManager.didDiscoverDevice:got lock");
-        for(RigAvailableDeviceData device : mDiscoveredDevices) {
-            if(device.getBluetoothDevice().getAddress().equals(btDevice.getAddress())) {
-                found = true;
-                break;
+        long time = System.currentTimeMillis();
+        mRecentSightings.put(btDevice, rssi, scanRecord, time);
+        RigAvailableDeviceData shared = null;
+        if (isPrimaryMatch(scanRecord, rssi)) {
+            shared = ingest(btDevice, rssi, scanRecord, time, null, null);
+        }
+        for (RigDiscoverySession session : mSessions) {
+            session.deliver(btDevice, rssi, scanRecord, time, shared);
+        }
+    }
+
+    /**
+     * This callback is received from CoreBluetooth with a batch of advertisements matching the
+     * request parameters.  The devices discovered or updated by the batch are reported to the
+     * batch observer in one call each, or one at a time if no batch observer is set.
+     *
+     * @param results The matching advertisements, in the order they were received
+     */
+    @Override
+    public void didDiscoverDevices(List<RigScanResult> results) {
+        RigLog.d("RigLeDiscoveryManager.didDiscoverDevices");
+
+        IRigLeDiscoveryBatchObserver batchObserver = mBatchObserver;
+        List<RigAvailableDeviceData> discovered = new ArrayList<>();
+        List<RigAvailableDeviceData> updated = new ArrayList<>();
+        for (RigScanResult result : results) {
+            if (result.getRssi() > 0) {
+                // Invalid RSSI, as in didDiscoverDevice
+                continue;
+            }
+            mRecentSightings.put(result.getDevice(), result.getRssi(), result.getScanRecord(),
+                    result.getTimestamp());
+            RigAvailableDeviceData shared = null;
+            if (isPrimaryMatch(result.getScanRecord(), result.getRssi())) {
+                shared = ingest(result.getDevice(), result.getRssi(), result.getScanRecord(),
+                        result.getTimestamp(), discovered, updated);
+            }
+            for (RigDiscoverySession session : mSessions) {
+                session.deliver(result.getDevice(), result.getRssi(), result.getScanRecord(),
+                        result.getTimestamp(), shared);
             }
         }
 
-        if(!found) {
-            RigAvailableDeviceData availableDevice = new RigAvailableDeviceData(btDevice, rssi, scanRecord, System.currentTimeMillis());
-            mDiscoveredDevices.add(availableDevice);
-            mLock.release();
-            if (mObserver != null) {
-                mObserver.didDiscoverDevice(availableDevice);
-            } else {
-                RigLog.d("Observer is null!");
+        if (batchObserver != null) {
+            if (!discovered.isEmpty()) {
+                batchObserver.didDiscoverDevices(discovered);
+            }
+            if (!updated.isEmpty()) {
+                batchObserver.didUpdateDevices(updated);
             }
+            return;
+        }
+
+        for (RigAvailableDeviceData device : discovered) {
+            notifyDiscovered(device);
+        }
+        IRigLeDiscoveryUpdateObserver updateObserver = mUpdateObserver;
+        if (updateObserver != null) {
+            for (RigAvailableDeviceData device : updated) {
+                updateObserver.didUpdateDevice(device);
+            }
+        }
+    }
+
+    /**
+     * @return Returns true if an advertisement from the shared scan belongs to the discovery
+     * started with startDiscoverDevices.  Results still queued when the sessions change were
+     * filtered with the previous union, so the check is made even when no other session runs.
+     */
+    private boolean isPrimaryMatch(byte[] scanRecord, int rssi) {
+        RigScanFilter filter = mPrimaryFilter;
+        return filter != null && filter.matches(scanRecord, rssi);
+    }
+
+    /**
+     * Adds or updates the discovered device for one advertisement.  If the lists are given,
+     * the device is added to the matching list instead of being reported to the observers.
+     *
+     * @param btDevice The advertising device
+     * @param rssi The RSSI of the advertisement
+     * @param scanRecord The advertising data record
+     * @param time The system time of the advertisement
+     * @param discovered The list of newly discovered devices, or null
+     * @param updated The list of updated devices, or null
+     * @return Returns the discovered device for the advertisement
+     */
+    private RigAvailableDeviceData ingest(BluetoothDevice btDevice, int rssi, byte[] scanRecord, long time,
+                        List<RigAvailableDeviceData> discovered,
+                        List<RigAvailableDeviceData> updated) {
+        String address = btDevice.getAddress();
+        RigAvailableDeviceData knownDevice = mDiscoveredDevices.get(address);
+        if (knownDevice != null) {
+            rankNearest(knownDevice, knownDevice.smoothRssi(rssi, mRssiSmoothing));
+            IRigLeDiscoveryUpdateObserver updateObserver = mUpdateObserver;
+            if (updateObserver == null) {
+                knownDevice.markSeen(time);
+            } else if (knownDevice.update(rssi, scanRecord, time, mRssiBucketSize, mMinUpdateInterval)) {
+                if (updated != null) {
+                    updated.add(knownDevice);
+                } else {
+                    updateObserver.didUpdateDevice(knownDevice);
+                }
+            }
+            return knownDevice;
+        }
+
+        int maxDevices = mMaxDevices;
+        if (maxDevices > 0 && mDiscoveredDevices.size() >= maxDevices) {
+            evictLeastRecentlySeen(maxDevices);
+        }
+
+        RigAvailableDeviceData availableDevice = new RigAvailableDeviceData(btDevice, rssi, scanRecord, time);
+        RigAvailableDeviceData firstDevice = mDiscoveredDevices.putIfAbsent(address, availableDevice);
+        if (firstDevice != null) {
+            // Another callback reported the device first
+            return firstDevice;
+        }
+        rankNearest(availableDevice, rssi);
+
+        if (discovered != null) {
+            discovered.add(availableDevice);
+        } else {
+            notifyDiscovered(availableDevice);
+        }
+        return availableDevice;
+    }
+
+    private void notifyDiscovered(RigAvailableDeviceData device) {
+        if (mObserver != null) {
+            mObserver.didDiscoverDevice(device);
         } else {
+            RigLog.d("Observer is null!");
+        }
+    }
+
+    /**
+     * Starts the periodic sweep for devices which have outlived the device TTL.
+     */
+    private synchronized void startSweeping() {
+        stopSweeping();
+        long ttl = mDeviceTtl;
+        if (ttl <= 0) {
+            return;
+        }
+
+        long period = Math.max(ttl / 4, MIN_SWEEP_PERIOD);
+        mSweepFuture = evictionWorker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                evictExpired();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void stopSweeping() {
+        if (mSweepFuture != null) {
+            mSweepFuture.cancel(false);
+            mSweepFuture = null;
+        }
+    }
+
+    /**
+     * Removes the devices which have not advertised within the device TTL.
+     */
+    private void evictExpired() {
+        long ttl = mDeviceTtl;
+        if (ttl <= 0) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        List<RigAvailableDeviceData> lost = new ArrayList<>();
+        synchronized (mEvictionLock) {
+            for (RigAvailableDeviceData device : mDiscoveredDevices.values()) {
+                if (now - device.getLastSeenTime() > ttl && evict(device)) {
+                    lost.add(device);
+                }
+            }
+        }
+        notifyLost(lost);
+    }
+
+    /**
+     * Makes room for a new device by removing the least recently seen devices.  An eighth of
+     * the capacity is freed at once, so the cost of finding the oldest devices is shared by the
+     * discoveries which fill the room again.
+     *
+     * @param maxDevices The maximum number of discovered devices
+     */
+    private void evictLeastRecentlySeen(int maxDevices) {
+        List<RigAvailableDeviceData> lost = new ArrayList<>();
+        synchronized (mEvictionLock) {
+            int excess = mDiscoveredDevices.size() - maxDevices + 1;
+            if (excess <= 0) {
+                // Another thread made room first
+                return;
+            }
+
+            // Last seen times keep changing under the scan callback, so work on a snapshot
+            ArrayList<RigAvailableDeviceData> devices = new ArrayList<>(mDiscoveredDevices.values());
+            long[] seenTimes = new long[devices.size()];
+            for (int i = 0; i < seenTimes.length; i++) {
+                seenTimes[i] = devices.get(i).getLastSeenTime();
+            }
+            int count = Math.min(seenTimes.length, excess + (maxDevices / 8));
+            if (count == 0) {
+                return;
+            }
 
-            mLock.release();
+            long[] sortedTimes = seenTimes.clone();
+            Arrays.sort(sortedTimes);
+            long cutoff = sortedTimes[count - 1];
+            int atCutoff = count;
+            while (atCutoff > 0 && sortedTimes[atCutoff - 1] == cutoff) {
+                atCutoff--;
+            }
+            // Devices seen exactly at the cutoff time fill the remaining places
+            int cutoffPlaces = count - atCutoff;
+
+            for (int i = 0; i < seenTimes.length; i++) {
+                boolean isOldest = seenTimes[i] < cutoff;
+                if (!isOldest && seenTimes[i] == cutoff && cutoffPlaces > 0) {
+                    cutoffPlaces--;
+                    isOldest = true;
+                }
+                if (isOldest && evict(devices.get(i))) {
+                    lost.add(devices.get(i));
+                }
+            }
+        }
+        notifyLost(lost);
+    }
+
+    /**
+     * @return Returns true if the device was still in the discovered devices list and has been
+     * removed
+     */
+    private boolean evict(RigAvailableDeviceData device) {
+        if (!mDiscoveredDevices.remove(device.getBluetoothDevice().getAddress(), device)) {
+            return false;
+        }
+        removeNearest(device);
+        return true;
+    }
+
+    /**
+     * Moves a device to its place in the nearest devices ranking after its smoothed RSSI
+     * changed.  The ranking is short, so this is a shift of at most the nearest count entries.
+     *
+     * @param device The device which advertised
+     * @param smoothedRssi The smoothed RSSI of the device
+     */
+    private void rankNearest(RigAvailableDeviceData device, double smoothedRssi) {
+        synchronized (mNearestLock) {
+            int capacity = mNearest.length;
+            if (capacity == 0) {
+                return;
+            }
+
+            removeNearestLocked(device);
+            int pos = mNearestSize;
+            while (pos > 0 && mNearestRssi[pos - 1] < smoothedRssi) {
+                pos--;
+            }
+            if (pos >= capacity) {
+                return;
+            }
+
+            int last = Math.min(mNearestSize, capacity - 1);
+            System.arraycopy(mNearest, pos, mNearest, pos + 1, last - pos);
+            System.arraycopy(mNearestRssi, pos, mNearestRssi, pos + 1, last - pos);
+            mNearest[pos] = device;
+            mNearestRssi[pos] = smoothedRssi;
+            mNearestSize = last + 1;
+        }
+    }
+
+    private void removeNearest(RigAvailableDeviceData device) {
+        synchronized (mNearestLock) {
+            removeNearestLocked(device);
+        }
+    }
+
+    /**
+     * Must be called holding mNearestLock.
+     */
+    private void removeNearestLocked(RigAvailableDeviceData device) {
+        for (int i = 0; i < mNearestSize; i++) {
+            if (mNearest[i] == device) {
+                System.arraycopy(mNearest, i + 1, mNearest, i, mNearestSize - i - 1);
+                System.arraycopy(mNearestRssi, i + 1, mNearestRssi, i, mNearestSize - i - 1);
+                mNearestSize--;
+                mNearest[mNearestSize] = null;
+                return;
+            }
+        }
+    }
+
+    private void notifyLost(List<RigAvailableDeviceData> lost) {
+        IRigLeDeviceLossObserver observer = mLossObserver;
+        if (observer == null) {
+            return;
+        }
+        for (RigAvailableDeviceData device : lost) {
+            observer.didLoseDevice(device);
         }
     }
 
@@ -223,10 +942,17 @@ public class RigLeDiscoveryManager implements IRigCoreBluetoothDiscoveryObserver
     @Override
     public void discoveryFinishedByTimeout() {
         RigLog.d("RigLeDiscoveryManager.discoveryFinishedByTimeout");
-        mIsDiscoveryRunning = false;
-        if (mObserver != null) {
+        // Session timeouts are kept here, so the radio scan only times out if started elsewhere
+        boolean wasRunning = mIsDiscoveryRunning;
+        List<RigDiscoverySession> ended = endAllSessions();
+        if (wasRunning && mObserver != null) {
             mObserver.discoveryDidTimeout();
         }
+        for (RigDiscoverySession session : ended) {
+            if (session.getObserver() != null) {
+                session.getObserver().discoveryDidTimeout();
+            }
+        }
     }
 
     /**
@@ -237,13 +963,20 @@ public class RigLeDiscoveryManager implements IRigCoreBluetoothDiscoveryObserver
     @Override
     public void bluetoothPowerStateChanged(boolean enabled) {
         RigLog.d("RigLeDiscoveryManager.bluetoothPowerStateChanged");
+        List<RigDiscoverySession> ended = new ArrayList<>();
         if (!enabled) {
-            mIsDiscoveryRunning = false;
+            ended = endAllSessions();
             clearAvailableDevices();
+            mRecentSightings.clear();
         }
         if (mObserver != null) {
             mObserver.bluetoothPowerStateChanged(enabled);
         }
+        for (RigDiscoverySession session : ended) {
+            if (session.getObserver() != null) {
+                session.getObserver().bluetoothPowerStateChanged(enabled);
+            }
+        }
 
     }
 
@@ -254,10 +987,16 @@ public class RigLeDiscoveryManager implements IRigCoreBluetoothDiscoveryObserver
     @Override
     public void bluetoothDoesNotSupported() {
         RigLog.d("RigLeDiscoveryManager.bluetoothDoesNotSupported");
-        mIsDiscoveryRunning = false;
+        List<RigDiscoverySession> ended = endAllSessions();
         clearAvailableDevices();
+        mRecentSightings.clear();
         if (mObserver != null) {
             mObserver.bluetoothDoesNotSupported();
         }
+        for (RigDiscoverySession session : ended) {
+            if (session.getObserver() != null) {
+                session.getObserver().bluetoothDoesNotSupported();
+            }
+        }
     }
 }
@@ -26,6 +26,7 @@ public class RigNotificationStateChangeRequest implements IRigDataRequest {
     BluetoothDevice mDevice;
     BluetoothGattCharacteristic mCharacteristic;
     boolean mEnableState;
+    int mPriority = PRIORITY_NORMAL;
 
     public RigNotificationStateChangeRequest(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
                                              boolean enableState) {
@@ -46,6 +47,25 @@ public class RigNotificationStateChangeRequest implements IRigDataRequest {
         return mEnableState;
     }
 
+    @Override
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Sets the priority class of this request.  Set the priority before submitting the request.
+     *
+     * @param priority One of the IRigDataRequest PRIORITY_ constants
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_NOTIFICATION_STATE;
+    }
+
     @Override
     public void post(RigService service) {
         service.setCharacteristicNotification(mDevice.getAddress(),
@@ -25,12 +25,40 @@ public class RigReadRequest implements IRigDataRequest {
 
     private BluetoothDevice mDevice;
     private BluetoothGattCharacteristic mCharacteristic;
+    private int mPriority = PRIORITY_NORMAL;
 
     public RigReadRequest(BluetoothDevice device, BluetoothGattCharacteristic characteristic) {
         mDevice = device;
         mCharacteristic = characteristic;
     }
 
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    @Override
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Sets the priority class of this request.  Set the priority before submitting the request.
+     *
+     * @param priority One of the IRigDataRequest PRIORITY_ constants
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_READ;
+    }
+
     @Override
     public void post(RigService service) {
         service.readCharacteristic(mDevice.getAddress(), mCharacteristic);
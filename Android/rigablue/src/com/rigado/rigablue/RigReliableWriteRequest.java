@@ -0,0 +1,96 @@
+package com.rigado.rigablue;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ *  RigReliableWriteRequest.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class provides a Data Request implementation for writing a value longer than one ATT
+ * packet using the prepared (reliable) write procedure.  The whole value is handed to the
+ * Bluetooth stack in one write inside a reliable write transaction.  The stack splits it into
+ * prepare-writes at the right offsets, checks the echo of each one, and reports a single write
+ * callback once all of them are queued on the peer.  The request then commits them with a single
+ * execute-write and completes when the commit completes.  If the request fails or times out, the
+ * transaction is aborted and nothing is committed.
+ *
+ * Long values take more connection events than a single write, so consider raising the timeout
+ * for {@link #TYPE_RELIABLE_WRITE} with RigCoreBluetooth.setRequestTimeout.
+ *
+ * @see RigLeBaseDevice#writeCharacteristicReliableAsync(BluetoothGattCharacteristic, byte[])
+ * @version 1.0
+ */
+public class RigReliableWriteRequest extends RigWriteRequest {
+
+    /**
+     * The maximum length of a characteristic value.
+     */
+    public static final int MAX_VALUE_LENGTH = 512;
+
+    private boolean mIsPrepared;
+
+    public RigReliableWriteRequest(BluetoothDevice device, BluetoothGattCharacteristic characteristic,
+                                   byte [] value) {
+        super(device, characteristic, value);
+        mIsPrepared = false;
+    }
+
+    /**
+     * Marks the prepare-writes of this request as accepted by the peer.
+     *
+     * @return Returns true if this call moved the request to the commit phase; false if it was
+     * already there
+     */
+    synchronized boolean markPrepared() {
+        if (mIsPrepared) {
+            return false;
+        }
+        mIsPrepared = true;
+        return true;
+    }
+
+    /**
+     * @return Returns true if the request is waiting for its execute-write to complete
+     */
+    synchronized boolean isPrepared() {
+        return mIsPrepared;
+    }
+
+    @Override
+    public void setCoalescing(boolean coalescing) {
+        // A transaction is never folded into another write
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_RELIABLE_WRITE;
+    }
+
+    @Override
+    public void post(RigService service) {
+        if(service == null) {
+            return;
+        }
+
+        synchronized (this) {
+            mIsPrepared = false;
+        }
+        BluetoothGattCharacteristic characteristic = getCharacteristic();
+        int writeType = characteristic.getWriteType();
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        characteristic.setValue(getValue());
+        try {
+            service.writeCharacteristicReliable(getDevice().getAddress(), characteristic);
+        } finally {
+            characteristic.setWriteType(writeType);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.rigado.rigablue;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *  RigRequestBatch.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class groups an ordered list of data requests for one device into a single unit of
+ * work.  The batch takes one place in the device queue and, once it reaches the link, its
+ * requests are posted back-to-back in order; other requests for the device wait until the whole
+ * batch has finished.
+ *
+ * The batch completes once with an aggregated result.  Its status is the status of the first
+ * request that failed, or GATT_SUCCESS if all succeeded, and its value is the value of the last
+ * request that ran, for example a read-back following a set of configuration writes.  If the
+ * batch is fail-fast, the first failure ends the batch and the remaining requests are skipped.
+ * The result of each request that ran is available from {@link #getResults()}.
+ *
+ * Device observers are notified of each request in the batch as usual.
+ *
+ * @see RigLeBaseDevice#submitBatch(RigRequestBatch)
+ * @version 1.0
+ */
+public class RigRequestBatch implements IRigDataRequest {
+
+    private final BluetoothDevice mDevice;
+    private final boolean mIsFailFast;
+    private final List<IRigDataRequest> mRequests;
+    private final List<RigRequestResult> mResults;
+    private int mPriority;
+    private boolean mIsSealed;
+
+    /**
+     * Progress of the batch, guarded by this object.
+     */
+    private int mIndex;
+    private boolean mIsStepPosted;
+    private int mStatus;
+    private byte[] mLastValue;
+    private long mSubmitTime;
+    private long mStepPostTime;
+
+    /**
+     * Creates an empty batch.
+     *
+     * @param device The device all requests in the batch target
+     * @param failFast True to skip the remaining requests after the first failure
+     */
+    public RigRequestBatch(BluetoothDevice device, boolean failFast) {
+        mDevice = device;
+        mIsFailFast = failFast;
+        mRequests = new ArrayList<>();
+        mResults = new ArrayList<>();
+        mPriority = PRIORITY_NORMAL;
+        mIsSealed = false;
+        mIndex = 0;
+        mIsStepPosted = false;
+        mStatus = BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * Appends a request to the batch.  Batches and write stream chunks cannot be added.
+     *
+     * @param request The request to append; it must target the device of the batch
+     * @return Returns true if the request was added; false if it is not valid for this batch or
+     * the batch has already been submitted
+     */
+    public synchronized boolean add(IRigDataRequest request) {
+        if (mIsSealed || request == null || request instanceof RigRequestBatch
+                || request instanceof RigStreamWriteRequest) {
+            return false;
+        }
+
+        if (request.getDevice() == null || mDevice == null
+                || !request.getDevice().getAddress().equals(mDevice.getAddress())) {
+            RigLog.e("Request is not for the batch device -- ignoring request!");
+            return false;
+        }
+
+        mRequests.add(request);
+        return true;
+    }
+
+    /**
+     * @return Returns the number of requests in the batch
+     */
+    public synchronized int size() {
+        return mRequests.size();
+    }
+
+    /**
+     * @return Returns true if the batch ends at the first failed request
+     */
+    public boolean isFailFast() {
+        return mIsFailFast;
+    }
+
+    /**
+     * @return Returns the results of the requests which have run so far, in order
+     */
+    public synchronized List<RigRequestResult> getResults() {
+        return Collections.unmodifiableList(new ArrayList<>(mResults));
+    }
+
+    /**
+     * Sets the priority class of the batch.  All requests in the batch run at this priority.
+     *
+     * @param priority One of the IRigDataRequest PRIORITY_ constants
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    @Override
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return Returns the type of the request currently running, so each request in the batch
+     * is given the timeout for its own type
+     */
+    @Override
+    public synchronized int getType() {
+        if (mIndex < mRequests.size()) {
+            return mRequests.get(mIndex).getType();
+        }
+        return TYPE_WRITE;
+    }
+
+    @Override
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public void post(RigService service) {
+        IRigDataRequest step;
+        synchronized (this) {
+            step = getCurrentStep();
+            mStepPostTime = SystemClock.elapsedRealtime();
+        }
+
+        if (step != null) {
+            step.post(service);
+        }
+    }
+
+    /**
+     * Closes the batch to further requests.  Called when the batch is submitted.
+     *
+     * @return Returns true if the batch can be submitted; false if it is empty or was already
+     * submitted
+     */
+    synchronized boolean seal() {
+        if (mIsSealed || mRequests.isEmpty()) {
+            return false;
+        }
+        mIsSealed = true;
+        mSubmitTime = SystemClock.elapsedRealtime();
+        return true;
+    }
+
+    /**
+     * Claims the right to post the current request.  Each request of the batch is posted once,
+     * however many paths try to advance the device queue.
+     *
+     * @return Returns true if the caller should post the current request
+     */
+    synchronized boolean claimPost() {
+        if (mIsStepPosted || mIndex >= mRequests.size()) {
+            return false;
+        }
+        mIsStepPosted = true;
+        return true;
+    }
+
+    /**
+     * @return Returns the request currently running, or null if the batch has finished
+     */
+    synchronized IRigDataRequest getCurrentStep() {
+        if (mIndex < mRequests.size()) {
+            return mRequests.get(mIndex);
+        }
+        return null;
+    }
+
+    /**
+     * Records the outcome of the running request and moves to the next one.  Only the first
+     * outcome reported for a request is recorded, so a late callback racing a timeout is
+     * ignored.
+     *
+     * @param step The request the outcome belongs to
+     * @param value The value read or written, or null on failure
+     * @param status The GATT status or failure status of the request
+     * @return Returns true if the outcome was recorded; false if the request is no longer running
+     */
+    synchronized boolean completeStep(IRigDataRequest step, byte[] value, int status) {
+        if (step == null || getCurrentStep() != step) {
+            return false;
+        }
+
+        byte[] copy = null;
+        if (value != null) {
+            copy = new byte[value.length];
+            System.arraycopy(value, 0, copy, 0, value.length);
+        }
+        mResults.add(new RigRequestResult(step, copy, status, mSubmitTime, mStepPostTime,
+                SystemClock.elapsedRealtime()));
+        mLastValue = copy;
+        if (status != BluetoothGatt.GATT_SUCCESS && mStatus == BluetoothGatt.GATT_SUCCESS) {
+            mStatus = status;
+        }
+
+        mIndex++;
+        mIsStepPosted = false;
+        if (mIsFailFast && mStatus != BluetoothGatt.GATT_SUCCESS) {
+            mIndex = mRequests.size();
+        }
+        return true;
+    }
+
+    /**
+     * @return Returns true if another request of the batch should be posted
+     */
+    synchronized boolean hasNextStep() {
+        return mIndex < mRequests.size();
+    }
+
+    /**
+     * @return Returns the aggregated status of the batch
+     */
+    synchronized int getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return Returns the value of the last request that ran
+     */
+    synchronized byte[] getLastValue() {
+        return mLastValue;
+    }
+}
@@ -0,0 +1,199 @@
+package com.rigado.rigablue;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ *  RigRequestFuture.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class is a completion handle for a single data request.  It is returned by the
+ * asynchronous methods of RigLeBaseDevice and completes exactly once with a RigRequestResult,
+ * whether the request succeeds, fails or times out.  A failed request is not an exceptional
+ * outcome; check {@link RigRequestResult#isSuccess()} on the result.
+ *
+ * Results can be consumed by blocking on {@link #get()} from a background thread or by adding
+ * an {@link IRigRequestListener}.
+ *
+ * @version 1.0
+ */
+public class RigRequestFuture implements Future<RigRequestResult> {
+
+    private final IRigDataRequest mRequest;
+    private final long mSubmitTime;
+    private long mPostTime;
+    private RigRequestResult mResult;
+    private boolean mIsCancelled;
+    private List<IRigRequestListener> mListeners;
+
+    RigRequestFuture(IRigDataRequest request) {
+        mRequest = request;
+        mSubmitTime = SystemClock.elapsedRealtime();
+        mPostTime = 0;
+        mIsCancelled = false;
+    }
+
+    /**
+     * Creates a future which has already failed.  Used when a request is rejected before it is
+     * queued.
+     *
+     * @param request The rejected request
+     * @param status The failure status
+     * @return Returns a completed future
+     */
+    static RigRequestFuture failed(IRigDataRequest request, int status) {
+        RigRequestFuture future = new RigRequestFuture(request);
+        future.complete(null, status);
+        return future;
+    }
+
+    /**
+     * @return Returns the request tied to this future
+     */
+    public IRigDataRequest getRequest() {
+        return mRequest;
+    }
+
+    /**
+     * Adds a listener which is called when the request completes.  If the request has already
+     * completed, the listener is called immediately on the calling thread.
+     *
+     * @param listener The listener to add
+     * @return Returns this future to allow chaining
+     */
+    public RigRequestFuture addListener(IRigRequestListener listener) {
+        RigRequestResult result;
+        synchronized (this) {
+            if (mResult == null && !mIsCancelled) {
+                if (mListeners == null) {
+                    mListeners = new ArrayList<>();
+                }
+                mListeners.add(listener);
+                return this;
+            }
+            result = mResult;
+        }
+
+        if (result != null) {
+            listener.didCompleteRequest(result);
+        }
+        return this;
+    }
+
+    /**
+     * Records the time at which the request was posted to the Bluetooth stack.
+     */
+    synchronized void markPosted() {
+        if (mPostTime == 0) {
+            mPostTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Completes the future and notifies listeners.  Only the first call has an effect.
+     *
+     * @param value The value read or written, or null on failure
+     * @param status The GATT status or failure status of the request
+     * @return Returns true if this call completed the future; false if it was already complete
+     */
+    boolean complete(byte[] value, int status) {
+        List<IRigRequestListener> listeners;
+        RigRequestResult result;
+        synchronized (this) {
+            if (mResult != null || mIsCancelled) {
+                return false;
+            }
+            byte[] copy = null;
+            if (value != null) {
+                copy = new byte[value.length];
+                System.arraycopy(value, 0, copy, 0, value.length);
+            }
+            mResult = new RigRequestResult(mRequest, copy, status, mSubmitTime, mPostTime,
+                    SystemClock.elapsedRealtime());
+            result = mResult;
+            listeners = mListeners;
+            mListeners = null;
+            notifyAll();
+        }
+
+        if (listeners != null) {
+            for (IRigRequestListener listener : listeners) {
+                listener.didCompleteRequest(result);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cancels delivery of the result.  The request itself is not removed from the device queue;
+     * if it has not run yet it will still be sent, but listeners will not be called and
+     * {@link #get()} throws a CancellationException.
+     *
+     * @param mayInterruptIfRunning Ignored; Bluetooth operations cannot be interrupted
+     * @return Returns true if the future was cancelled; false if it had already completed
+     */
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (mResult != null || mIsCancelled) {
+            return false;
+        }
+        mIsCancelled = true;
+        mListeners = null;
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mResult != null || mIsCancelled;
+    }
+
+    @Override
+    public synchronized RigRequestResult get() throws InterruptedException, ExecutionException {
+        while (!isDone()) {
+            wait();
+        }
+        return getResultLocked();
+    }
+
+    @Override
+    public synchronized RigRequestResult get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long remaining = unit.toMillis(timeout);
+        long deadline = SystemClock.elapsedRealtime() + remaining;
+        while (!isDone()) {
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            wait(remaining);
+            remaining = deadline - SystemClock.elapsedRealtime();
+        }
+        return getResultLocked();
+    }
+
+    private RigRequestResult getResultLocked() {
+        if (mIsCancelled) {
+            throw new CancellationException();
+        }
+        return mResult;
+    }
+}
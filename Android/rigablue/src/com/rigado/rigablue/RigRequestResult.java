@@ -0,0 +1,143 @@
+package com.rigado.rigablue;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ *  RigRequestResult.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class holds the outcome of a single data request.  It is delivered through a
+ * RigRequestFuture once the request completes, fails or times out.
+ *
+ * @see RigRequestFuture
+ * @version 1.0
+ */
+public class RigRequestResult {
+
+    /**
+     * The request this result belongs to.
+     */
+    private IRigDataRequest mRequest;
+
+    /**
+     * The value read or written, or null if the request failed.
+     */
+    private byte[] mValue;
+
+    /**
+     * The GATT status reported by the Bluetooth stack for the request, or one of the
+     * RigCoreBluetooth REQUEST_STATUS_ values if the request did not reach the stack or got no
+     * answer from it.
+     */
+    private int mStatus;
+
+    /**
+     * The system time, in milliseconds since boot, at which the request was submitted.
+     */
+    private long mSubmitTime;
+
+    /**
+     * The system time, in milliseconds since boot, at which the request was posted to the
+     * Bluetooth stack.  This is 0 if the request never left the queue.
+     */
+    private long mPostTime;
+
+    /**
+     * The system time, in milliseconds since boot, at which the request completed.
+     */
+    private long mCompleteTime;
+
+    RigRequestResult(IRigDataRequest request, byte[] value, int status,
+                     long submitTime, long postTime, long completeTime) {
+        mRequest = request;
+        mValue = value;
+        mStatus = status;
+        mSubmitTime = submitTime;
+        mPostTime = postTime;
+        mCompleteTime = completeTime;
+    }
+
+    /**
+     * @return Returns the request this result belongs to
+     */
+    public IRigDataRequest getRequest() {
+        return mRequest;
+    }
+
+    /**
+     * @return Returns true if the request completed with a GATT success status; false otherwise
+     */
+    public boolean isSuccess() {
+        return mStatus == BluetoothGatt.GATT_SUCCESS;
+    }
+
+    /**
+     * @return Returns a copy of the value read or written when the request completed, or null if
+     * the request failed
+     */
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    /**
+     * @return Returns the GATT status the Bluetooth stack reported in the completion callback of
+     * the request, or one of {@link RigCoreBluetooth#REQUEST_STATUS_TIMEOUT},
+     * {@link RigCoreBluetooth#REQUEST_STATUS_POST_FAILED},
+     * {@link RigCoreBluetooth#REQUEST_STATUS_CANCELLED},
+     * {@link RigCoreBluetooth#REQUEST_STATUS_INVALID},
+     * {@link RigCoreBluetooth#REQUEST_STATUS_REJECTED} and
+     * {@link RigCoreBluetooth#REQUEST_STATUS_DROPPED}
+     */
+    public int getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * @return Returns the system time, in milliseconds since boot, at which the request was
+     * submitted
+     */
+    public long getSubmitTime() {
+        return mSubmitTime;
+    }
+
+    /**
+     * @return Returns the system time, in milliseconds since boot, at which the request was
+     * posted to the Bluetooth stack, or 0 if it was never posted
+     */
+    public long getPostTime() {
+        return mPostTime;
+    }
+
+    /**
+     * @return Returns the system time, in milliseconds since boot, at which the request completed
+     */
+    public long getCompleteTime() {
+        return mCompleteTime;
+    }
+
+    /**
+     * @return Returns the time, in milliseconds, the request spent waiting in the queue
+     */
+    public long getQueueTime() {
+        return (mPostTime > 0) ? (mPostTime - mSubmitTime) : (mCompleteTime - mSubmitTime);
+    }
+
+    /**
+     * @return Returns the time, in milliseconds, from submission to completion
+     */
+    public long getTotalTime() {
+        return mCompleteTime - mSubmitTime;
+    }
+
+    @Override
+    public String toString() {
+        return "status: " + mStatus + " queued: " + getQueueTime() + "ms total: " + getTotalTime() + "ms";
+    }
+}
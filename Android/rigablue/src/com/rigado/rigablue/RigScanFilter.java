@@ -0,0 +1,512 @@
+package com.rigado.rigablue;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ *  RigScanFilter.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class is the compiled form of the filter criteria of a RigDeviceRequest.  It is built
+ * once when discovery starts and then evaluated against every advertisement received.
+ *
+ * A scan record is matched in a single pass over its AD structures, without allocating.  Each
+ * 16, 32 or 128-bit service UUID is expanded arithmetically against the Bluetooth base UUID.
+ * UUIDs derived from the base UUID with a 16-bit value are tested against a 65536-bit bitmap;
+ * all other UUIDs are tested against an open addressing hash table of UUID bit pairs.  The cost
+ * of matching an advertisement therefore does not depend on the number of filter UUIDs.
+ *
+ * On API 21+ RigCoreBluetooth also hands the criteria which ScanFilter can express to the
+ * Bluetooth stack.  This filter is still applied to every result, so the outcome is the same
+ * whether or not the controller filtered in hardware.
+ *
+ * Concurrent discovery sessions share one scan, filtered with the union of their filters built
+ * by {@link #anyOf(List)}.  A union matches a record if any of its alternatives does.
+ *
+ * @see RigDeviceRequest
+ * @version 1.0
+ */
+final class RigScanFilter {
+
+    /**
+     * The most significant bits of the Bluetooth base UUID 00000000-0000-1000-8000-00805F9B34FB.
+     * A 16 or 32-bit UUID occupies the top 32 bits.
+     */
+    static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+    /**
+     * The least significant bits of the Bluetooth base UUID.
+     */
+    static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private static final int AD_TYPE_UUID16_PARTIAL = 0x02;
+    private static final int AD_TYPE_UUID16_COMPLETE = 0x03;
+    private static final int AD_TYPE_UUID32_PARTIAL = 0x04;
+    private static final int AD_TYPE_UUID32_COMPLETE = 0x05;
+    private static final int AD_TYPE_UUID128_PARTIAL = 0x06;
+    private static final int AD_TYPE_UUID128_COMPLETE = 0x07;
+    private static final int AD_TYPE_NAME_SHORT = 0x08;
+    private static final int AD_TYPE_NAME_COMPLETE = 0x09;
+    private static final int AD_TYPE_SERVICE_DATA16 = 0x16;
+    private static final int AD_TYPE_SERVICE_DATA32 = 0x20;
+    private static final int AD_TYPE_SERVICE_DATA128 = 0x21;
+    private static final int AD_TYPE_MANUFACTURER_DATA = 0xFF;
+
+    /**
+     * A filter which matches every scan record.
+     */
+    static final RigScanFilter MATCH_ALL = new RigScanFilter(null, null, RigDeviceRequest.MANUFACTURER_ANY,
+            null, null, null, null, null, RigDeviceRequest.RSSI_ANY, null);
+
+    /**
+     * Bitmap of the 16-bit UUIDs in the filter, or null if there are none.
+     */
+    private final long[] mUuid16Bits;
+
+    /**
+     * Hash table of the other UUIDs in the filter.  A slot is in use if mHashUsed is set.
+     */
+    private final long[] mHashMsb;
+    private final long[] mHashLsb;
+    private final boolean[] mHashUsed;
+    private final int mHashMask;
+    private final UUID[] mUuids;
+
+    private final byte[] mNamePrefix;
+    private final byte[] mNamePrefixMask;
+
+    private final int mManufacturerId;
+    private final byte[] mManufacturerData;
+    private final byte[] mManufacturerDataMask;
+
+    private final UUID mServiceDataUuid;
+    private final long mServiceDataMsb;
+    private final long mServiceDataLsb;
+    private final byte[] mServiceData;
+    private final byte[] mServiceDataMask;
+
+    private final int mMinRssi;
+
+    /**
+     * The filters of a union, or null if this is a single filter.
+     */
+    private final RigScanFilter[] mAlternatives;
+
+    private RigScanFilter(UUID[] uuids, String namePrefix, int manufacturerId,
+                          byte[] manufacturerData, byte[] manufacturerDataMask,
+                          UUID serviceDataUuid, byte[] serviceData, byte[] serviceDataMask,
+                          int minRssi, RigScanFilter[] alternatives) {
+        mUuids = (uuids != null) ? uuids.clone() : null;
+
+        long[] uuid16Bits = null;
+        int hashCount = 0;
+        if (mUuids != null) {
+            for (UUID uuid : mUuids) {
+                if (isUuid16(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits())) {
+                    if (uuid16Bits == null) {
+                        uuid16Bits = new long[65536 / 64];
+                    }
+                    int value = uuid16Value(uuid.getMostSignificantBits());
+                    uuid16Bits[value >>> 6] |= (1L << (value & 63));
+                } else {
+                    hashCount++;
+                }
+            }
+        }
+        mUuid16Bits = uuid16Bits;
+
+        if (hashCount > 0) {
+            int capacity = Integer.highestOneBit(hashCount * 2 - 1) << 1;
+            mHashMsb = new long[capacity];
+            mHashLsb = new long[capacity];
+            mHashUsed = new boolean[capacity];
+            mHashMask = capacity - 1;
+            for (UUID uuid : mUuids) {
+                long msb = uuid.getMostSignificantBits();
+                long lsb = uuid.getLeastSignificantBits();
+                if (!isUuid16(msb, lsb) && !hashContains(msb, lsb)) {
+                    int slot = hash(msb, lsb) & mHashMask;
+                    while (mHashUsed[slot]) {
+                        slot = (slot + 1) & mHashMask;
+                    }
+                    mHashMsb[slot] = msb;
+                    mHashLsb[slot] = lsb;
+                    mHashUsed[slot] = true;
+                }
+            }
+        } else {
+            mHashMsb = null;
+            mHashLsb = null;
+            mHashUsed = null;
+            mHashMask = 0;
+        }
+
+        mNamePrefix = (namePrefix != null && namePrefix.length() > 0)
+                ? namePrefix.getBytes(Charset.forName("UTF-8")) : null;
+        mNamePrefixMask = (mNamePrefix != null) ? fullMask(mNamePrefix, null) : null;
+
+        mManufacturerId = manufacturerId;
+        mManufacturerData = (manufacturerData != null) ? manufacturerData.clone() : new byte[0];
+        mManufacturerDataMask = fullMask(mManufacturerData, manufacturerDataMask);
+
+        mServiceDataUuid = serviceDataUuid;
+        mServiceDataMsb = (serviceDataUuid != null) ? serviceDataUuid.getMostSignificantBits() : 0;
+        mServiceDataLsb = (serviceDataUuid != null) ? serviceDataUuid.getLeastSignificantBits() : 0;
+        mServiceData = (serviceData != null) ? serviceData.clone() : new byte[0];
+        mServiceDataMask = fullMask(mServiceData, serviceDataMask);
+
+        mMinRssi = minRssi;
+        mAlternatives = alternatives;
+    }
+
+    /**
+     * Compiles the filter criteria of a device request.
+     *
+     * @param request The device request
+     * @return Returns the compiled filter
+     * @throws IllegalArgumentException if a UUID string of the request is not a valid UUID
+     */
+    static RigScanFilter fromRequest(RigDeviceRequest request) {
+        String[] idList = request.getUuidList();
+        UUID[] uuids = null;
+        if (idList != null) {
+            uuids = new UUID[idList.length];
+            for (int i = 0; i < idList.length; i++) {
+                uuids[i] = UUID.fromString(idList[i]);
+            }
+        }
+
+        UUID serviceDataUuid = null;
+        if (request.getServiceDataUuid() != null) {
+            serviceDataUuid = UUID.fromString(request.getServiceDataUuid());
+        }
+
+        return new RigScanFilter(uuids, request.getNamePrefix(), request.getManufacturerId(),
+                request.getManufacturerData(), request.getManufacturerDataMask(),
+                serviceDataUuid, request.getServiceData(), request.getServiceDataMask(),
+                request.getMinRssi(), null);
+    }
+
+    /**
+     * Builds the union of filters, which matches a record if any of the filters does.
+     *
+     * @param filters The filters to combine; must not be empty
+     * @return Returns the union, the single filter itself if only one is given, or
+     * {@link #MATCH_ALL} if any of the filters matches every record
+     */
+    static RigScanFilter anyOf(List<RigScanFilter> filters) {
+        if (filters.size() == 1) {
+            return filters.get(0);
+        }
+
+        List<RigScanFilter> alternatives = new ArrayList<>();
+        for (RigScanFilter filter : filters) {
+            if (filter.isEmpty()) {
+                return MATCH_ALL;
+            }
+            for (RigScanFilter alternative : filter.getAlternatives()) {
+                alternatives.add(alternative);
+            }
+        }
+        return new RigScanFilter(null, null, RigDeviceRequest.MANUFACTURER_ANY, null, null, null,
+                null, null, RigDeviceRequest.RSSI_ANY,
+                alternatives.toArray(new RigScanFilter[alternatives.size()]));
+    }
+
+    /**
+     * @return Returns the filters of a union, or this filter alone if it is not a union
+     */
+    RigScanFilter[] getAlternatives() {
+        return (mAlternatives != null) ? mAlternatives.clone() : new RigScanFilter[] { this };
+    }
+
+    /**
+     * @return Returns the service UUIDs of the filter, or null if any UUID matches
+     */
+    UUID[] getUuids() {
+        return (mUuids != null) ? mUuids.clone() : null;
+    }
+
+    /**
+     * @return Returns the company identifier of the manufacturer data criterion, or
+     * RigDeviceRequest.MANUFACTURER_ANY
+     */
+    int getManufacturerId() {
+        return mManufacturerId;
+    }
+
+    /**
+     * @return Returns the manufacturer data prefix; empty if only the company is matched
+     */
+    byte[] getManufacturerData() {
+        return mManufacturerData.clone();
+    }
+
+    /**
+     * @return Returns the manufacturer data mask, the same length as the data prefix
+     */
+    byte[] getManufacturerDataMask() {
+        return mManufacturerDataMask.clone();
+    }
+
+    /**
+     * @return Returns the service UUID of the service data criterion, or null
+     */
+    UUID getServiceDataUuid() {
+        return mServiceDataUuid;
+    }
+
+    /**
+     * @return Returns the service data prefix; empty if only the service UUID is matched
+     */
+    byte[] getServiceData() {
+        return mServiceData.clone();
+    }
+
+    /**
+     * @return Returns the service data mask, the same length as the data prefix
+     */
+    byte[] getServiceDataMask() {
+        return mServiceDataMask.clone();
+    }
+
+    /**
+     * @return Returns true if this filter matches every scan record
+     */
+    boolean isEmpty() {
+        if (mAlternatives != null) {
+            for (RigScanFilter alternative : mAlternatives) {
+                if (alternative.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return mUuids == null && mNamePrefix == null
+                && mManufacturerId == RigDeviceRequest.MANUFACTURER_ANY
+                && mServiceDataUuid == null && mMinRssi == RigDeviceRequest.RSSI_ANY;
+    }
+
+    /**
+     * Checks whether an advertisement satisfies every criterion of the filter.  Malformed AD
+     * structures end the walk rather than throwing.
+     *
+     * @param scanRecord The raw advertising and scan response data
+     * @param rssi The RSSI the advertisement was received with
+     * @return Returns true if the advertisement matches
+     */
+    boolean matches(byte[] scanRecord, int rssi) {
+        return matches(scanRecord, (scanRecord != null) ? scanRecord.length : 0, rssi);
+    }
+
+    /**
+     * Checks whether an advertisement held in the start of a larger buffer satisfies every
+     * criterion of the filter.
+     *
+     * @param scanRecord The buffer holding the raw advertising and scan response data
+     * @param length The length of the data in the buffer
+     * @param rssi The RSSI the advertisement was received with
+     * @return Returns true if the advertisement matches
+     */
+    boolean matches(byte[] scanRecord, int length, int rssi) {
+        if (mAlternatives != null) {
+            for (RigScanFilter alternative : mAlternatives) {
+                if (alternative.matches(scanRecord, length, rssi)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (rssi < mMinRssi) {
+            return false;
+        }
+
+        boolean needUuid = (mUuids != null);
+        boolean needName = (mNamePrefix != null);
+        boolean needManufacturer = (mManufacturerId != RigDeviceRequest.MANUFACTURER_ANY);
+        boolean needServiceData = (mServiceDataUuid != null);
+        if (!needUuid && !needName && !needManufacturer && !needServiceData) {
+            return true;
+        }
+        if (scanRecord == null) {
+            return false;
+        }
+
+        int offset = 0;
+        while (offset < length - 1) {
+            int len = scanRecord[offset] & 0xFF;
+            if (len == 0) {
+                break;
+            }
+
+            int end = offset + 1 + len;
+            if (end > length) {
+                break;
+            }
+
+            int type = scanRecord[offset + 1] & 0xFF;
+            int pos = offset + 2;
+            switch (type) {
+                case AD_TYPE_UUID16_PARTIAL:
+                case AD_TYPE_UUID16_COMPLETE:
+                    for (; needUuid && pos + 2 <= end; pos += 2) {
+                        needUuid = !containsUuid16((int) readLittleEndian(scanRecord, pos, 2));
+                    }
+                    break;
+                case AD_TYPE_UUID32_PARTIAL:
+                case AD_TYPE_UUID32_COMPLETE:
+                    for (; needUuid && pos + 4 <= end; pos += 4) {
+                        needUuid = !containsUuid(shortUuidMsb(readLittleEndian(scanRecord, pos, 4)),
+                                BASE_UUID_LSB);
+                    }
+                    break;
+                case AD_TYPE_UUID128_PARTIAL:
+                case AD_TYPE_UUID128_COMPLETE:
+                    for (; needUuid && pos + 16 <= end; pos += 16) {
+                        needUuid = !containsUuid(readLittleEndian(scanRecord, pos + 8, 8),
+                                readLittleEndian(scanRecord, pos, 8));
+                    }
+                    break;
+                case AD_TYPE_NAME_SHORT:
+                case AD_TYPE_NAME_COMPLETE:
+                    if (needName) {
+                        needName = !startsWith(scanRecord, pos, end, mNamePrefix, mNamePrefixMask);
+                    }
+                    break;
+                case AD_TYPE_MANUFACTURER_DATA:
+                    if (needManufacturer && pos + 2 <= end
+                            && readLittleEndian(scanRecord, pos, 2) == mManufacturerId) {
+                        needManufacturer = !startsWith(scanRecord, pos + 2, end,
+                                mManufacturerData, mManufacturerDataMask);
+                    }
+                    break;
+                case AD_TYPE_SERVICE_DATA16:
+                    if (needServiceData && pos + 2 <= end
+                            && shortUuidMsb(readLittleEndian(scanRecord, pos, 2)) == mServiceDataMsb
+                            && BASE_UUID_LSB == mServiceDataLsb) {
+                        needServiceData = !startsWith(scanRecord, pos + 2, end, mServiceData, mServiceDataMask);
+                    }
+                    break;
+                case AD_TYPE_SERVICE_DATA32:
+                    if (needServiceData && pos + 4 <= end
+                            && shortUuidMsb(readLittleEndian(scanRecord, pos, 4)) == mServiceDataMsb
+                            && BASE_UUID_LSB == mServiceDataLsb) {
+                        needServiceData = !startsWith(scanRecord, pos + 4, end, mServiceData, mServiceDataMask);
+                    }
+                    break;
+                case AD_TYPE_SERVICE_DATA128:
+                    if (needServiceData && pos + 16 <= end
+                            && readLittleEndian(scanRecord, pos + 8, 8) == mServiceDataMsb
+                            && readLittleEndian(scanRecord, pos, 8) == mServiceDataLsb) {
+                        needServiceData = !startsWith(scanRecord, pos + 16, end, mServiceData, mServiceDataMask);
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            if (!needUuid && !needName && !needManufacturer && !needServiceData) {
+                return true;
+            }
+            offset = end;
+        }
+        return false;
+    }
+
+    /**
+     * @param value A 16 or 32-bit UUID
+     * @return Returns the most significant bits of the UUID expanded against the base UUID
+     */
+    static long shortUuidMsb(long value) {
+        return (value << 32) | BASE_UUID_MSB;
+    }
+
+    /**
+     * Reads an unsigned little endian value of up to eight bytes.
+     */
+    static long readLittleEndian(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static boolean isUuid16(long msb, long lsb) {
+        return lsb == BASE_UUID_LSB && (msb & 0xFFFF0000FFFFFFFFL) == BASE_UUID_MSB;
+    }
+
+    private static int uuid16Value(long msb) {
+        return (int) ((msb >>> 32) & 0xFFFF);
+    }
+
+    /**
+     * Expands a mask to the length of the data.  Bytes beyond the end of the mask must match
+     * exactly.
+     */
+    private static byte[] fullMask(byte[] data, byte[] mask) {
+        byte[] full = new byte[data.length];
+        for (int i = 0; i < full.length; i++) {
+            full[i] = (mask != null && i < mask.length) ? mask[i] : (byte) 0xFF;
+        }
+        return full;
+    }
+
+    private static int hash(long msb, long lsb) {
+        long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private boolean containsUuid16(int value) {
+        return mUuid16Bits != null && (mUuid16Bits[value >>> 6] & (1L << (value & 63))) != 0;
+    }
+
+    private boolean containsUuid(long msb, long lsb) {
+        if (isUuid16(msb, lsb)) {
+            return containsUuid16(uuid16Value(msb));
+        }
+        return hashContains(msb, lsb);
+    }
+
+    private boolean hashContains(long msb, long lsb) {
+        if (mHashUsed == null) {
+            return false;
+        }
+
+        int slot = hash(msb, lsb) & mHashMask;
+        while (mHashUsed[slot]) {
+            if (mHashMsb[slot] == msb && mHashLsb[slot] == lsb) {
+                return true;
+            }
+            slot = (slot + 1) & mHashMask;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the bytes from {@code pos} up to {@code end} start with the pattern, in
+     * the bits set in the mask.  The mask is the same length as the pattern.
+     */
+    private static boolean startsWith(byte[] data, int pos, int end, byte[] pattern, byte[] mask) {
+        if (end - pos < pattern.length) {
+            return false;
+        }
+
+        for (int i = 0; i < pattern.length; i++) {
+            if ((data[pos + i] & mask[i]) != (pattern[i] & mask[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
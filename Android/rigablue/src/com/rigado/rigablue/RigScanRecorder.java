@@ -0,0 +1,177 @@
+package com.rigado.rigablue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ *  RigScanRecorder.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class records the scan results received by the discovery path to a compact binary trace,
+ * for replay with {@link RigScanReplayer}.  Set it with
+ * {@link RigCoreBluetooth#setScanRecorder(RigScanRecorder)}; every scan result is recorded as it
+ * arrives, before filtering and before it can be dropped by an overflowing ingestion ring, so a
+ * trace can be replayed with any device request.
+ *
+ * The trace starts with the magic number {@link #MAGIC} and the format {@link #VERSION}.  Each
+ * scan result is written as the zigzag varint difference from the previous timestamp, the six
+ * bytes of the device address, the RSSI as a signed byte, the varint record length plus one (0
+ * for a missing record) and the record bytes.
+ *
+ * @version 1.0
+ */
+public class RigScanRecorder {
+
+    static final int MAGIC = 0x5253434E;
+    static final int VERSION = 1;
+    static final int ADDRESS_SIZE = 6;
+
+    private final DataOutputStream mOutput;
+    private final byte[] mAddress = new byte[ADDRESS_SIZE];
+    private long mLastTimestamp;
+    private long mRecordedCount;
+    private boolean mIsClosed;
+
+    /**
+     * Creates a recorder writing to a new file.
+     *
+     * @param file The file to record to; an existing file is overwritten
+     * @throws IOException if the file cannot be created
+     */
+    public RigScanRecorder(File file) throws IOException {
+        this(new FileOutputStream(file));
+    }
+
+    /**
+     * Creates a recorder writing to a stream.  The stream is closed by {@link #close()}.
+     *
+     * @param output The stream to record to
+     * @throws IOException if the trace header cannot be written
+     */
+    public RigScanRecorder(OutputStream output) throws IOException {
+        mOutput = new DataOutputStream(new BufferedOutputStream(output));
+        mOutput.writeInt(MAGIC);
+        mOutput.writeByte(VERSION);
+    }
+
+    /**
+     * Appends a scan result to the trace.  A write failure is logged and ends the recording.
+     *
+     * @param timestamp The system time at which the scan result was received
+     * @param address The device address, in the AA:BB:CC:DD:EE:FF form
+     * @param rssi The RSSI of the scan result
+     * @param scanRecord The advertising data record; may be null
+     * @param length The length of the record
+     */
+    synchronized void record(long timestamp, String address, int rssi, byte[] scanRecord,
+                             int length) {
+        if (mIsClosed) {
+            return;
+        }
+
+        try {
+            writeVarint(zigzag(timestamp - mLastTimestamp));
+            mLastTimestamp = timestamp;
+            parseAddress(address, mAddress);
+            mOutput.write(mAddress);
+            mOutput.writeByte(rssi);
+            if (scanRecord == null) {
+                writeVarint(0);
+            } else {
+                writeVarint(length + 1);
+                mOutput.write(scanRecord, 0, length);
+            }
+            mRecordedCount++;
+        } catch (IOException e) {
+            RigLog.e("Scan recording failed; stopping the recording");
+            RigLog.e(e);
+            close();
+        }
+    }
+
+    /**
+     * @return Returns the number of scan results recorded so far
+     */
+    public synchronized long getRecordedCount() {
+        return mRecordedCount;
+    }
+
+    /**
+     * Flushes and closes the trace.  Scan results received afterwards are not recorded.
+     */
+    public synchronized void close() {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+
+        try {
+            mOutput.close();
+        } catch (IOException e) {
+            RigLog.e(e);
+        }
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            mOutput.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mOutput.writeByte((int) value);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /**
+     * Parses a colon separated device address.  An unparsable address is recorded as zeros.
+     */
+    static void parseAddress(String address, byte[] out) {
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            out[i] = 0;
+        }
+        if (address == null || address.length() != ADDRESS_SIZE * 3 - 1) {
+            return;
+        }
+
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            int high = Character.digit(address.charAt(i * 3), 16);
+            int low = Character.digit(address.charAt(i * 3 + 1), 16);
+            if (high < 0 || low < 0) {
+                for (int j = 0; j < ADDRESS_SIZE; j++) {
+                    out[j] = 0;
+                }
+                return;
+            }
+            out[i] = (byte) ((high << 4) | low);
+        }
+    }
+
+    /**
+     * Formats six address bytes in the AA:BB:CC:DD:EE:FF form used by BluetoothDevice.
+     */
+    static String formatAddress(byte[] address) {
+        final char[] digits = "0123456789ABCDEF".toCharArray();
+        char[] out = new char[ADDRESS_SIZE * 3 - 1];
+        for (int i = 0; i < ADDRESS_SIZE; i++) {
+            out[i * 3] = digits[(address[i] >> 4) & 0x0F];
+            out[i * 3 + 1] = digits[address[i] & 0x0F];
+            if (i < ADDRESS_SIZE - 1) {
+                out[i * 3 + 2] = ':';
+            }
+        }
+        return new String(out);
+    }
+}
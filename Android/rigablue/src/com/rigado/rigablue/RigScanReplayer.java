@@ -0,0 +1,303 @@
+package com.rigado.rigablue;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *  RigScanReplayer.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class replays a scan trace written by {@link RigScanRecorder} into the discovery path, at
+ * the recorded speed, an accelerated speed or as fast as possible.  The scan results are
+ * filtered with the device request exactly as live scan results are, which makes a trace usable
+ * to reproduce a discovery session or to benchmark discovery and filtering without a radio.
+ *
+ * Replaying into a {@link ScanResultListener} uses no Android type: the scan results are reported
+ * by address and nothing is logged, so filtering can be benchmarked on a plain JVM.  Replaying
+ * into the discovery manager or a discovery observer needs a {@link BluetoothDevice} per address,
+ * and therefore a device.
+ *
+ * @version 1.0
+ */
+public class RigScanReplayer {
+
+    /**
+     * Creates the device objects of replayed scan results.
+     */
+    public interface DeviceFactory {
+        /**
+         * @param address The recorded device address, in the AA:BB:CC:DD:EE:FF form
+         * @return Returns the device object to report for the address
+         */
+        BluetoothDevice getDevice(String address);
+    }
+
+    /**
+     * Receives replayed scan results by device address.
+     */
+    public interface ScanResultListener {
+        /**
+         * @param address The recorded device address, in the AA:BB:CC:DD:EE:FF form
+         * @param rssi The recorded RSSI
+         * @param scanRecord The recorded advertising data record; may be null
+         * @param timestamp The system time at which the scan result was recorded
+         */
+        void onScanResult(String address, int rssi, byte[] scanRecord, long timestamp);
+    }
+
+    /**
+     * Replays as fast as the discovery path consumes the scan results.
+     */
+    public static final double SPEED_UNLIMITED = 0;
+
+    /**
+     * Replays at the speed the trace was recorded at.
+     */
+    public static final double SPEED_RECORDED = 1;
+
+    private final DataInputStream mInput;
+    private DeviceFactory mDeviceFactory;
+    private final Map<String, BluetoothDevice> mDevices = new HashMap<>();
+    private final byte[] mAddress = new byte[RigScanRecorder.ADDRESS_SIZE];
+
+    /* The scan result last read by readNext */
+    private long mTimestamp;
+    private String mDeviceAddress;
+    private int mRssi;
+    private byte[] mScanRecord;
+
+    /**
+     * Opens a trace file.
+     *
+     * @param file The trace file
+     * @throws IOException if the file cannot be read or is not a scan trace
+     */
+    public RigScanReplayer(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    /**
+     * Opens a trace stream.  The stream is closed by {@link #close()}.
+     *
+     * @param input The trace stream
+     * @throws IOException if the stream cannot be read or is not a scan trace
+     */
+    public RigScanReplayer(InputStream input) throws IOException {
+        mInput = new DataInputStream(new BufferedInputStream(input));
+        if (mInput.readInt() != RigScanRecorder.MAGIC) {
+            throw new IOException("Not a scan trace");
+        }
+        int version = mInput.readUnsignedByte();
+        if (version != RigScanRecorder.VERSION) {
+            throw new IOException("Unsupported scan trace version " + version);
+        }
+        mDeviceFactory = new DeviceFactory() {
+            @Override
+            public BluetoothDevice getDevice(String address) {
+                return BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
+            }
+        };
+    }
+
+    /**
+     * Sets how device objects are created for replayed scan results.  By default they are taken
+     * from the default Bluetooth adapter; set a factory to replay where no adapter exists.
+     *
+     * @param factory The device factory
+     */
+    public void setDeviceFactory(DeviceFactory factory) {
+        mDeviceFactory = factory;
+    }
+
+    /**
+     * Replays the trace into the discovery manager, as a discovery session started with the
+     * request.  The discovered devices list is cleared first, and the observers and options of
+     * the request apply as they do for a live discovery.  The radio is not used, and no discovery
+     * or discovery session can be started until the replay ends.
+     *
+     * @param request The device request to filter and report the replayed scan results with
+     * @param speed The replay speed relative to the recorded speed; {@link #SPEED_UNLIMITED}
+     *              replays without pauses
+     * @return Returns the number of scan results which matched the request
+     * @throws IllegalStateException if a discovery or discovery session is running
+     * @throws IOException if the trace cannot be read
+     * @throws InterruptedException if the replaying thread is interrupted
+     */
+    public int replayDiscovery(RigDeviceRequest request, double speed)
+            throws IOException, InterruptedException {
+        RigLeDiscoveryManager manager = RigLeDiscoveryManager.getInstance();
+        manager.startReplay(request);
+        try {
+            return replay(manager, request, speed);
+        } finally {
+            manager.stopReplay();
+        }
+    }
+
+    /**
+     * Replays the trace into a discovery observer.  Scan results which do not match the request
+     * are skipped.
+     *
+     * @param observer The observer to report the scan results to
+     * @param request The device request to filter the scan results with; null reports all
+     * @param speed The replay speed relative to the recorded speed; {@link #SPEED_UNLIMITED}
+     *              replays without pauses
+     * @return Returns the number of scan results reported to the observer
+     * @throws IOException if the trace cannot be read
+     * @throws InterruptedException if the replaying thread is interrupted
+     */
+    public int replay(final IRigCoreBluetoothDiscoveryObserver observer, RigDeviceRequest request,
+                      double speed) throws IOException, InterruptedException {
+        long startTime = System.nanoTime();
+        int count = replay(new ScanResultListener() {
+            @Override
+            public void onScanResult(String address, int rssi, byte[] scanRecord, long timestamp) {
+                BluetoothDevice device = mDevices.get(address);
+                if (device == null) {
+                    device = mDeviceFactory.getDevice(address);
+                    mDevices.put(address, device);
+                }
+                observer.didDiscoverDevice(device, rssi, scanRecord);
+            }
+        }, request, speed);
+        RigLog.d("Replayed " + count + " matching scan results in "
+                + (System.nanoTime() - startTime) / 1000000L + " ms");
+        return count;
+    }
+
+    /**
+     * Replays the trace into a listener.  Scan results which do not match the request are
+     * skipped.  This needs no Bluetooth adapter and does not log.
+     *
+     * @param listener The listener to report the scan results to
+     * @param request The device request to filter the scan results with; null reports all
+     * @param speed The replay speed relative to the recorded speed; {@link #SPEED_UNLIMITED}
+     *              replays without pauses
+     * @return Returns the number of scan results reported to the listener
+     * @throws IOException if the trace cannot be read
+     * @throws InterruptedException if the replaying thread is interrupted
+     */
+    public int replay(ScanResultListener listener, RigDeviceRequest request, double speed)
+            throws IOException, InterruptedException {
+        if (speed < 0) {
+            throw new IllegalArgumentException("speed must not be negative");
+        }
+
+        RigScanFilter filter = (request != null)
+                ? RigScanFilter.fromRequest(request) : RigScanFilter.MATCH_ALL;
+        long startTime = System.nanoTime();
+        long firstTimestamp = 0;
+        boolean isFirst = true;
+        int count = 0;
+        while (readNext()) {
+            if (isFirst) {
+                firstTimestamp = mTimestamp;
+                isFirst = false;
+            } else if (speed != SPEED_UNLIMITED) {
+                long dueTime = startTime + (long) ((mTimestamp - firstTimestamp) * 1000000L / speed);
+                long wait = dueTime - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                }
+            }
+
+            if (!filter.matches(mScanRecord, mRssi)) {
+                continue;
+            }
+            listener.onScanResult(mDeviceAddress, mRssi, mScanRecord, mTimestamp);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Closes the trace.
+     */
+    public void close() {
+        try {
+            mInput.close();
+        } catch (IOException e) {
+            RigLog.e(e);
+        }
+    }
+
+    /**
+     * Reads the next scan result of the trace.
+     *
+     * @return Returns false at the end of the trace
+     * @throws IOException if the trace cannot be read or ends inside a scan result
+     */
+    boolean readNext() throws IOException {
+        int first = mInput.read();
+        if (first < 0) {
+            return false;
+        }
+
+        long delta = readVarint(first);
+        mTimestamp += (delta >>> 1) ^ -(delta & 1);
+        mInput.readFully(mAddress);
+        mDeviceAddress = RigScanRecorder.formatAddress(mAddress);
+        mRssi = mInput.readByte();
+        long length = readVarint(mInput.readUnsignedByte()) - 1;
+        if (length < 0) {
+            mScanRecord = null;
+        } else if (length > Short.MAX_VALUE) {
+            throw new IOException("Corrupt scan trace: record length " + length);
+        } else {
+            mScanRecord = new byte[(int) length];
+            mInput.readFully(mScanRecord);
+        }
+        return true;
+    }
+
+    private long readVarint(int first) throws IOException {
+        long value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            if (shift > 63) {
+                throw new IOException("Corrupt scan trace: varint too long");
+            }
+            b = mInput.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+    long getTimestamp() {
+        return mTimestamp;
+    }
+
+    String getAddress() {
+        return mDeviceAddress;
+    }
+
+    int getRssi() {
+        return mRssi;
+    }
+
+    byte[] getScanRecord() {
+        return mScanRecord;
+    }
+}
@@ -0,0 +1,60 @@
+package com.rigado.rigablue;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ *  RigScanResult.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class holds one advertisement received by the low level Bluetooth stack, for handing
+ * scan results over in batches.
+ *
+ * @version 1.0
+ */
+final class RigScanResult {
+
+    private final BluetoothDevice mDevice;
+    private final int mRssi;
+    private final byte[] mScanRecord;
+    private final long mTimestamp;
+
+    /**
+     * @param device The advertising device
+     * @param rssi The RSSI of the advertisement
+     * @param scanRecord The advertising data record
+     * @param timestamp The system time at which the advertisement was received
+     */
+    RigScanResult(BluetoothDevice device, int rssi, byte[] scanRecord, long timestamp) {
+        mDevice = device;
+        mRssi = rssi;
+        mScanRecord = scanRecord;
+        mTimestamp = timestamp;
+    }
+
+    BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    int getRssi() {
+        return mRssi;
+    }
+
+    byte[] getScanRecord() {
+        return mScanRecord;
+    }
+
+    /**
+     * @return Returns the system time at which the advertisement was received, which may be
+     * earlier than its delivery when results are batched
+     */
+    long getTimestamp() {
+        return mTimestamp;
+    }
+}
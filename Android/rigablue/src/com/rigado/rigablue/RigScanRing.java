@@ -0,0 +1,245 @@
+package com.rigado.rigablue;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ *  RigScanRing.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class is a bounded ring of raw scan results, handed from the scan callbacks to the scan
+ * ingestion thread.  The slots and their record buffers are allocated up front, so offering a
+ * result only copies the record, RSSI and timestamp.  When the ring is full, new results are
+ * dropped and counted; the results already waiting keep their order.
+ *
+ * A batch of results delivered together by the controller takes a single entry, so the consumer
+ * sees the whole batch at once, and a batch is either kept or dropped as a whole.
+ *
+ * The ring also carries tasks which must run on the consumer thread, serialized with the
+ * results.  Tasks are never dropped and are taken ahead of the results waiting in the ring.
+ *
+ * @version 1.0
+ */
+class RigScanRing {
+
+    /**
+     * The kinds of result in a slot.
+     */
+    static final int KIND_SINGLE = 0;
+    static final int KIND_BATCH = 1;
+    static final int KIND_TASK = 2;
+
+    /**
+     * A result taken from the ring.  The consumer reuses one slot for every result, so the
+     * record buffer is only valid until the next take.
+     */
+    static final class Slot {
+        BluetoothDevice device;
+        int rssi;
+        long timestamp;
+        int kind;
+        byte[] record = new byte[0];
+
+        /**
+         * The length of the record in the buffer, or -1 if the result had no record.
+         */
+        int length;
+
+        /**
+         * The results of a KIND_BATCH entry; the other fields are not set for a batch.
+         */
+        List<RigScanResult> batch;
+
+        /**
+         * The task of a KIND_TASK entry; the other fields are not set for a task.
+         */
+        Runnable task;
+    }
+
+    private final BluetoothDevice[] mDevices;
+    private final int[] mRssi;
+    private final long[] mTimestamps;
+    private final int[] mKinds;
+    private final byte[][] mRecords;
+    private final int[] mLengths;
+    private final List<?>[] mBatches;
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+
+    /**
+     * Ring state, guarded by this object.
+     */
+    private int mHead;
+    private int mCount;
+    private long mReceived;
+    private long mDropped;
+    private int mUnreportedDrops;
+
+    /**
+     * @param capacity The number of results the ring holds
+     * @param recordSize The record buffer allocated for each slot; longer records grow the
+     *                   buffer of their slot
+     */
+    RigScanRing(int capacity, int recordSize) {
+        mDevices = new BluetoothDevice[capacity];
+        mRssi = new int[capacity];
+        mTimestamps = new long[capacity];
+        mKinds = new int[capacity];
+        mRecords = new byte[capacity][];
+        mLengths = new int[capacity];
+        mBatches = new List<?>[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mRecords[i] = new byte[recordSize];
+        }
+    }
+
+    /**
+     * Copies a scan result into the ring.
+     *
+     * @param device The advertising device
+     * @param rssi The RSSI of the advertisement
+     * @param record The advertising data record, or null
+     * @param timestamp The system time the advertisement was received
+     * @return Returns true if the result was added; false if the ring is full and it was dropped
+     */
+    synchronized boolean offer(BluetoothDevice device, int rssi, byte[] record, long timestamp) {
+        mReceived++;
+        if (mCount == mDevices.length) {
+            mDropped++;
+            mUnreportedDrops++;
+            return false;
+        }
+
+        int tail = (mHead + mCount) % mDevices.length;
+        mDevices[tail] = device;
+        mRssi[tail] = rssi;
+        mTimestamps[tail] = timestamp;
+        mKinds[tail] = KIND_SINGLE;
+        if (record == null) {
+            mLengths[tail] = -1;
+        } else {
+            if (record.length > mRecords[tail].length) {
+                mRecords[tail] = new byte[record.length];
+            }
+            System.arraycopy(record, 0, mRecords[tail], 0, record.length);
+            mLengths[tail] = record.length;
+        }
+
+        mCount++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Adds a batch of scan results to the ring as a single entry.  The list is kept by
+     * reference, so it must not be modified afterwards.
+     *
+     * @param results The results of the batch, in the order they were delivered
+     * @return Returns true if the batch was added; false if the ring is full and every result of
+     * the batch was dropped
+     */
+    synchronized boolean offerBatch(List<RigScanResult> results) {
+        mReceived += results.size();
+        if (mCount == mDevices.length) {
+            mDropped += results.size();
+            mUnreportedDrops += results.size();
+            return false;
+        }
+
+        int tail = (mHead + mCount) % mDevices.length;
+        mKinds[tail] = KIND_BATCH;
+        mBatches[tail] = results;
+        mCount++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Adds a task for the consumer thread.  The task runs before the results waiting in the
+     * ring, and is kept even when the ring is full.
+     *
+     * @param task The task to run on the consumer thread
+     */
+    synchronized void offerTask(Runnable task) {
+        mTasks.add(task);
+        notifyAll();
+    }
+
+    /**
+     * Waits for the oldest task, or the oldest result if no task is waiting, and moves it into
+     * the slot.
+     *
+     * @param slot The consumer's slot, overwritten with the task or result
+     * @throws InterruptedException If the consumer is interrupted while waiting
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void take(Slot slot) throws InterruptedException {
+        while (mCount == 0 && mTasks.isEmpty()) {
+            wait();
+        }
+
+        if (!mTasks.isEmpty()) {
+            slot.kind = KIND_TASK;
+            slot.task = mTasks.poll();
+            slot.batch = null;
+            return;
+        }
+
+        slot.task = null;
+        slot.kind = mKinds[mHead];
+        if (slot.kind == KIND_BATCH) {
+            slot.batch = (List<RigScanResult>) mBatches[mHead];
+            mBatches[mHead] = null;
+            mHead = (mHead + 1) % mDevices.length;
+            mCount--;
+            return;
+        }
+
+        slot.batch = null;
+        slot.device = mDevices[mHead];
+        slot.rssi = mRssi[mHead];
+        slot.timestamp = mTimestamps[mHead];
+        slot.length = mLengths[mHead];
+        if (slot.length > 0) {
+            if (slot.record.length < slot.length) {
+                slot.record = new byte[mRecords[mHead].length];
+            }
+            System.arraycopy(mRecords[mHead], 0, slot.record, 0, slot.length);
+        }
+
+        mDevices[mHead] = null;
+        mHead = (mHead + 1) % mDevices.length;
+        mCount--;
+    }
+
+    /**
+     * @return Returns the number of results dropped since the last call
+     */
+    synchronized int takeUnreportedDrops() {
+        int drops = mUnreportedDrops;
+        mUnreportedDrops = 0;
+        return drops;
+    }
+
+    /**
+     * @return Returns the number of results offered to the ring
+     */
+    synchronized long getReceived() {
+        return mReceived;
+    }
+
+    /**
+     * @return Returns the number of results dropped because the ring was full
+     */
+    synchronized long getDropped() {
+        return mDropped;
+    }
+}
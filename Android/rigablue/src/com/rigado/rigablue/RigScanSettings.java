@@ -0,0 +1,150 @@
+package com.rigado.rigablue;
+
+import java.util.List;
+
+/**
+ *  RigScanSettings.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class holds how the radio is driven for one discovery session: the scan mode, the
+ * report delay for batched results and the scan and idle windows of a duty-cycled scan.  It is
+ * built from a RigDeviceRequest when discovery starts.
+ *
+ * @version 1.0
+ */
+final class RigScanSettings {
+
+    /**
+     * The settings used when no request is given: a continuous low latency scan with results
+     * delivered as they arrive.
+     */
+    static final RigScanSettings DEFAULT =
+            new RigScanSettings(RigDeviceRequest.SCAN_MODE_LOW_LATENCY, 0, 0, 0);
+
+    private final int mScanMode;
+    private final long mReportDelay;
+    private final long mScanWindow;
+    private final long mIdleWindow;
+
+    private RigScanSettings(int scanMode, long reportDelay, long scanWindow, long idleWindow) {
+        mScanMode = scanMode;
+        mReportDelay = reportDelay;
+        mScanWindow = scanWindow;
+        mIdleWindow = idleWindow;
+    }
+
+    /**
+     * Builds the scan settings of a device request.
+     *
+     * @param request The device request
+     * @return Returns the scan settings for the request
+     */
+    static RigScanSettings fromRequest(RigDeviceRequest request) {
+        if (request == null) {
+            return DEFAULT;
+        }
+        return new RigScanSettings(request.getScanMode(), request.getReportDelay(),
+                request.getScanWindow(), request.getIdleWindow());
+    }
+
+    /**
+     * Merges the settings of concurrent discovery sessions into the settings of the shared scan,
+     * so that every session is served at least as well as it asked for.  The scan uses the
+     * highest scan mode of the sessions.  Results are batched only if every session batches,
+     * with the shortest report delay.  The scan is duty-cycled only if every session is, with
+     * the longest scan window and the shortest idle window.
+     *
+     * @param settings The settings of the sessions; must not be empty
+     * @return Returns the settings for the shared scan
+     */
+    static RigScanSettings merge(List<RigScanSettings> settings) {
+        if (settings.size() == 1) {
+            return settings.get(0);
+        }
+
+        int scanMode = RigDeviceRequest.SCAN_MODE_LOW_POWER;
+        long reportDelay = Long.MAX_VALUE;
+        long scanWindow = 0;
+        long idleWindow = Long.MAX_VALUE;
+        boolean isDutyCycled = true;
+        for (RigScanSettings setting : settings) {
+            scanMode = Math.max(scanMode, setting.mScanMode);
+            reportDelay = Math.min(reportDelay, setting.mReportDelay);
+            if (setting.isDutyCycled()) {
+                scanWindow = Math.max(scanWindow, setting.mScanWindow);
+                idleWindow = Math.min(idleWindow, setting.mIdleWindow);
+            } else {
+                isDutyCycled = false;
+            }
+        }
+        if (!isDutyCycled) {
+            scanWindow = 0;
+            idleWindow = 0;
+        }
+        return new RigScanSettings(scanMode, reportDelay, scanWindow, idleWindow);
+    }
+
+    /**
+     * @return Returns the scan mode, one of the RigDeviceRequest SCAN_MODE_ constants
+     */
+    int getScanMode() {
+        return mScanMode;
+    }
+
+    /**
+     * @return Returns the report delay in milliseconds, or 0 if results are not batched
+     */
+    long getReportDelay() {
+        return mReportDelay;
+    }
+
+    /**
+     * @return Returns the time the radio scans in each cycle, in milliseconds
+     */
+    long getScanWindow() {
+        return mScanWindow;
+    }
+
+    /**
+     * @return Returns the time the radio is idle in each cycle, in milliseconds
+     */
+    long getIdleWindow() {
+        return mIdleWindow;
+    }
+
+    /**
+     * @return Returns true if the scan alternates between scan and idle windows
+     */
+    boolean isDutyCycled() {
+        return mScanWindow > 0 && mIdleWindow > 0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof RigScanSettings)) {
+            return false;
+        }
+        RigScanSettings other = (RigScanSettings) obj;
+        return mScanMode == other.mScanMode && mReportDelay == other.mReportDelay
+                && mScanWindow == other.mScanWindow && mIdleWindow == other.mIdleWindow;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mScanMode;
+        result = 31 * result + (int) (mReportDelay ^ (mReportDelay >>> 32));
+        result = 31 * result + (int) (mScanWindow ^ (mScanWindow >>> 32));
+        result = 31 * result + (int) (mIdleWindow ^ (mIdleWindow >>> 32));
+        return result;
+    }
+}
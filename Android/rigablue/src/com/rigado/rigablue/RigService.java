@@ -18,6 +18,7 @@ package com.rigado.rigablue;
 
 import android.bluetooth.*;
 import android.content.Context;
+import android.os.Build;
 
 import java.lang.reflect.Method;
 import java.util.Arrays;
@@ -254,26 +255,26 @@ public class RigService {
     public synchronized void readCharacteristic(final String address, final BluetoothGattCharacteristic characteristic) {
         if (mBluetoothAdapter == null || mBluetoothGattHashMap.get(address) == null) {
             RigLog.e("BluetoothAdapter not initialized or device already disconnected");
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
             return;
         }
 
         if(characteristic == null) {
             RigLog.e("Invalid characteristic; Characteristic is null!");
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
             return;
         }
 
         if (!isConnected(address)) {
             RigLog.w("Disconnected! Aborting read request for " + address);
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
             return;
         }
 
         RigLog.d("readCharacteristic - " + Arrays.toString(characteristic.getValue()));
         if (!mBluetoothGattHashMap.get(address).readCharacteristic(characteristic)) {
             RigLog.w("Failed to initialize read request!");
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
         }
     }
 
@@ -288,26 +289,114 @@ public class RigService {
     public synchronized void writeCharacteristic(final String address, final BluetoothGattCharacteristic characteristic) {
         if (mBluetoothAdapter == null || mBluetoothGattHashMap.get(address) == null) {
             RigLog.w("BluetoothAdapter not initialized or device already disconnected");
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
             return;
         }
 
         if (characteristic == null) {
             RigLog.e("Invalid characteristic; Characteristic is null!");
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
             return;
         }
 
         if (!isConnected(address)) {
             RigLog.w("Disconnected! Aborting write request for " + address);
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
             return;
         }
 
         RigLog.i("writeCharacteristic for " + address + " with value - " + Arrays.toString(characteristic.getValue()));
         if (!mBluetoothGattHashMap.get(address).writeCharacteristic(characteristic)) {
             RigLog.e("Failed to initialize write request!");
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
+        }
+    }
+
+    /**
+     * Request a write on the {@code BluetoothGattCharacteristic} inside a reliable write
+     * transaction.  The Bluetooth stack sends the value as prepare-writes, which may span several
+     * ATT packets, and reports through the
+     * {@code BluetoothGattCallback#onCharacteristicWrite(android.bluetooth.BluetoothGatt, android.bluetooth.BluetoothGattCharacteristic, int)}
+     * callback.  The transaction must then be committed with {@link #executeReliableWrite(String)}
+     * or aborted with {@link #abortReliableWrite(String)}.
+     *
+     * @param address The address of the destination device.
+     * @param characteristic The characteristic to write
+     */
+    public synchronized void writeCharacteristicReliable(final String address, final BluetoothGattCharacteristic characteristic) {
+        if (mBluetoothAdapter == null || mBluetoothGattHashMap.get(address) == null) {
+            RigLog.w("BluetoothAdapter not initialized or device already disconnected");
+            RigCoreBluetooth.getInstance().requestDidFail(address);
+            return;
+        }
+
+        if (characteristic == null) {
+            RigLog.e("Invalid characteristic; Characteristic is null!");
+            RigCoreBluetooth.getInstance().requestDidFail(address);
+            return;
+        }
+
+        if (!isConnected(address)) {
+            RigLog.w("Disconnected! Aborting reliable write request for " + address);
+            RigCoreBluetooth.getInstance().requestDidFail(address);
+            return;
+        }
+
+        BluetoothGatt gatt = mBluetoothGattHashMap.get(address);
+        if (!gatt.beginReliableWrite()) {
+            RigLog.e("Failed to begin reliable write!");
+            RigCoreBluetooth.getInstance().requestDidFail(address);
+            return;
+        }
+
+        RigLog.i("writeCharacteristicReliable for " + address + " with " + characteristic.getValue().length + " bytes");
+        if (!gatt.writeCharacteristic(characteristic)) {
+            RigLog.e("Failed to initialize reliable write request!");
+            abortReliableWrite(address);
+            RigCoreBluetooth.getInstance().requestDidFail(address);
+        }
+    }
+
+    /**
+     * Commits the prepare-writes of the reliable write transaction.  The result is reported
+     * asynchronously through the
+     * {@code BluetoothGattCallback#onReliableWriteCompleted(android.bluetooth.BluetoothGatt, int)}
+     * callback.
+     *
+     * @param address The address of the destination device.
+     */
+    public synchronized void executeReliableWrite(final String address) {
+        BluetoothGatt gatt = mBluetoothGattHashMap.get(address);
+        if (gatt == null) {
+            RigLog.w("Device already disconnected");
+            RigCoreBluetooth.getInstance().requestDidFail(address);
+            return;
+        }
+
+        if (!gatt.executeReliableWrite()) {
+            RigLog.e("Failed to execute reliable write!");
+            abortReliableWrite(address);
+            RigCoreBluetooth.getInstance().requestDidFail(address);
+        }
+    }
+
+    /**
+     * Cancels the reliable write transaction, if any, discarding the prepare-writes queued on
+     * the device.
+     *
+     * @param address The address of the destination device.
+     */
+    @SuppressWarnings("deprecation")
+    public synchronized void abortReliableWrite(final String address) {
+        BluetoothGatt gatt = mBluetoothGattHashMap.get(address);
+        if (gatt == null) {
+            return;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            gatt.abortReliableWrite();
+        } else {
+            gatt.abortReliableWrite(gatt.getDevice());
         }
     }
 
@@ -323,26 +412,26 @@ public class RigService {
     public synchronized void readDescriptor(final String address, final BluetoothGattDescriptor descriptor) {
         if (mBluetoothAdapter == null || mBluetoothGattHashMap.get(address) == null) {
             RigLog.w("BluetoothAdapter not initialized or device already disconnected");
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
             return;
         }
 
         if (descriptor == null) {
             RigLog.e("Invalid descriptor; Descriptor is null!");
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
             return;
         }
 
         if (!isConnected(address)) {
             RigLog.w("Disconnected! Aborting read descriptor request for " + address);
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
             return;
         }
 
         RigLog.i("readDescriptor for " + address);
         if (!mBluetoothGattHashMap.get(address).readDescriptor(descriptor)) {
             RigLog.e("Failed to initialize read descriptor request!");
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
         }
     }
 
@@ -361,19 +450,19 @@ public class RigService {
                                                            final boolean enabled) {
         if (mBluetoothAdapter == null || mBluetoothGattHashMap.get(address) == null) {
             RigLog.w("BluetoothAdapter not initialized or device already disconnected");
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
             return;
         }
 
         if (characteristic == null) {
             RigLog.e("Invalid characteristic; Characteristic is null!");
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
             return;
         }
 
         if (!isConnected(address)) {
             RigLog.w("Disconnected! Aborting notify request for " + address);
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
             return;
         }
 
@@ -385,7 +474,7 @@ public class RigService {
 
         if (descriptor == null) {
             RigLog.w("The Client Characteristic Configuration Descriptor was null!");
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
             return;
         }
 
@@ -394,7 +483,7 @@ public class RigService {
 
         if (!mBluetoothGattHashMap.get(address).writeDescriptor(descriptor)) {
             RigLog.e("Failed to initialize notification request!");
-            RigCoreBluetooth.getInstance().requestDidFail();
+            RigCoreBluetooth.getInstance().requestDidFail(address);
         }
     }
 
@@ -0,0 +1,104 @@
+package com.rigado.rigablue;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  RigSightingCache.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class keeps the latest advertisement of each recently seen device, so a discovery can
+ * report them as soon as it starts.  The cache holds a bounded number of devices; when it is
+ * full, the least recently seen device makes room for a new one.  Entries outlive the discovery
+ * that saw them, and their freshness is judged against the age each request allows.
+ *
+ * @version 1.0
+ */
+final class RigSightingCache {
+
+    /**
+     * The latest advertisement of one device.
+     */
+    static final class Sighting {
+        BluetoothDevice device;
+        int rssi;
+        byte[] scanRecord;
+        long time;
+    }
+
+    private final LinkedHashMap<String, Sighting> mSightings;
+
+    /**
+     * @param capacity The maximum number of devices kept
+     */
+    RigSightingCache(final int capacity) {
+        // Access order, so the eldest entry is the least recently seen device
+        mSightings = new LinkedHashMap<String, Sighting>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Sighting> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Records an advertisement.  The entry of a known device is updated in place.
+     *
+     * @param device The advertising device
+     * @param rssi The RSSI of the advertisement
+     * @param scanRecord The advertising data record; kept by reference, so it must not be
+     *                   modified afterwards
+     * @param time The system time of the advertisement
+     */
+    synchronized void put(BluetoothDevice device, int rssi, byte[] scanRecord, long time) {
+        String address = device.getAddress();
+        Sighting sighting = mSightings.get(address);
+        if (sighting == null) {
+            sighting = new Sighting();
+            mSightings.put(address, sighting);
+        } else if (time < sighting.time) {
+            // An older advertisement delivered late
+            return;
+        }
+        sighting.device = device;
+        sighting.rssi = rssi;
+        sighting.scanRecord = scanRecord;
+        sighting.time = time;
+    }
+
+    /**
+     * @param maxAge The maximum age of a sighting, in milliseconds
+     * @param now The current system time
+     * @return Returns copies of the sightings no older than the maximum age, least recently
+     * seen first
+     */
+    synchronized List<Sighting> getFresh(long maxAge, long now) {
+        List<Sighting> fresh = new ArrayList<>();
+        for (Sighting sighting : mSightings.values()) {
+            if (now - sighting.time <= maxAge) {
+                Sighting copy = new Sighting();
+                copy.device = sighting.device;
+                copy.rssi = sighting.rssi;
+                copy.scanRecord = sighting.scanRecord;
+                copy.time = sighting.time;
+                fresh.add(copy);
+            }
+        }
+        return fresh;
+    }
+
+    synchronized void clear() {
+        mSightings.clear();
+    }
+}
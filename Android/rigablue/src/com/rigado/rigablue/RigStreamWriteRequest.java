@@ -0,0 +1,55 @@
+package com.rigado.rigablue;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+/**
+ *  RigStreamWriteRequest.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class provides a Data Request implementation for one chunk of a RigWriteStream.  The
+ * chunk is always sent as a write without response and its completion is reported to the
+ * stream rather than to the device observer.
+ *
+ * @version 1.0
+ */
+class RigStreamWriteRequest extends RigWriteRequest {
+
+    private RigWriteStream mStream;
+
+    RigStreamWriteRequest(RigWriteStream stream, BluetoothDevice device,
+                          BluetoothGattCharacteristic characteristic, byte [] value) {
+        super(device, characteristic, value);
+        mStream = stream;
+        setPriority(PRIORITY_BULK);
+    }
+
+    RigWriteStream getStream() {
+        return mStream;
+    }
+
+    @Override
+    public void post(RigService service) {
+        if(service == null) {
+            return;
+        }
+
+        // The stack reads the write type when the write is posted, so the type the application
+        // set on the shared characteristic is restored straight after
+        BluetoothGattCharacteristic characteristic = getCharacteristic();
+        int writeType = characteristic.getWriteType();
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        try {
+            super.post(service);
+        } finally {
+            characteristic.setWriteType(writeType);
+        }
+    }
+}
@@ -26,6 +26,8 @@ public class RigWriteRequest implements IRigDataRequest {
     private BluetoothGattCharacteristic mCharacteristic;
     private BluetoothDevice mDevice;
     private byte [] mValue;
+    private int mPriority = PRIORITY_NORMAL;
+    private boolean mIsCoalescing = false;
 
     public RigWriteRequest(BluetoothDevice device, BluetoothGattCharacteristic characteristic, byte [] value) {
         mDevice = device;
@@ -46,6 +48,35 @@ public class RigWriteRequest implements IRigDataRequest {
         return mValue;
     }
 
+    /**
+     * Marks this write as last-value-wins.  While a coalescing write is waiting in the device
+     * queue, a newer coalescing write to the same characteristic replaces its value in place
+     * instead of being queued behind it.
+     *
+     * @param coalescing True to allow this write to be coalesced
+     */
+    public void setCoalescing(boolean coalescing) {
+        mIsCoalescing = coalescing;
+    }
+
+    /**
+     * @return Returns true if this write may be coalesced with a newer write
+     */
+    public boolean isCoalescing() {
+        return mIsCoalescing;
+    }
+
+    /**
+     * Replaces the value of a write which has not been posted yet.
+     *
+     * @param value The newer value
+     */
+    void replaceValue(byte [] value) {
+        byte [] copy = new byte[value.length];
+        System.arraycopy(value, 0, copy, 0, value.length);
+        mValue = copy;
+    }
+
     boolean isRequestCharacteristic(BluetoothGattCharacteristic characteristic) {
         if(characteristic == null || mCharacteristic == null) {
             return false;
@@ -70,6 +101,25 @@ public class RigWriteRequest implements IRigDataRequest {
         return false;
     }
 
+    @Override
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Sets the priority class of this request.  Set the priority before submitting the request.
+     *
+     * @param priority One of the IRigDataRequest PRIORITY_ constants
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    @Override
+    public int getType() {
+        return TYPE_WRITE;
+    }
+
     @Override
     public void post(RigService service) {
         if(service == null) {
@@ -0,0 +1,207 @@
+package com.rigado.rigablue;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *  RigWriteStream.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * This class provides a streaming write mode for characteristics which support write without
+ * response.  The stream holds a fixed number of credits.  Each chunk written consumes a credit
+ * and the credit is returned when the Bluetooth stack reports the chunk as sent.  Up to the
+ * credit count of chunks wait in the device queue, so the next chunk is posted directly from
+ * the stack callback of the previous one and no connection event is spent waiting on the app.
+ *
+ * Android only allows one outstanding GATT operation per connection, so chunks are still handed
+ * to the stack one at a time; the credits bound how far the producer may run ahead of the link.
+ * Stream chunks bypass the device observer; use IRigWriteStreamObserver for flow control.
+ *
+ * @see RigLeBaseDevice#openWriteStream(BluetoothGattCharacteristic, int)
+ * @version 1.0
+ */
+public class RigWriteStream {
+
+    private final BluetoothDevice mDevice;
+    private final BluetoothGattCharacteristic mCharacteristic;
+    private final int mMaxCredits;
+    private final Semaphore mCredits;
+    private IRigWriteStreamObserver mObserver;
+    private volatile boolean mIsClosed;
+
+    /**
+     * Stream statistics, guarded by this object.
+     */
+    private long mBytesWritten;
+    private long mChunksWritten;
+    private long mChunksFailed;
+    private long mFirstWriteTime;
+    private long mLastAckTime;
+
+    RigWriteStream(BluetoothDevice device, BluetoothGattCharacteristic characteristic, int credits) {
+        mDevice = device;
+        mCharacteristic = characteristic;
+        mMaxCredits = (credits > 0) ? credits : 1;
+        mCredits = new Semaphore(mMaxCredits);
+        mIsClosed = false;
+    }
+
+    /**
+     * Sets the observer for this stream.
+     *
+     * @param observer The observer object
+     */
+    public void setObserver(IRigWriteStreamObserver observer) {
+        mObserver = observer;
+    }
+
+    /**
+     * @return Returns the characteristic this stream writes to
+     */
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    /**
+     * Writes a chunk if a credit is available.  This method never blocks.
+     *
+     * @param value The chunk to write; it should not exceed the ATT MTU minus 3 bytes
+     * @return Returns true if the chunk was queued; false if no credit was available or the
+     * stream is closed
+     */
+    public boolean write(byte [] value) {
+        if (mIsClosed || !mCredits.tryAcquire()) {
+            return false;
+        }
+        submit(value);
+        return true;
+    }
+
+    /**
+     * Writes a chunk, waiting up to the timeout for a credit.  Do not call this method from an
+     * observer callback; credits are returned on the same thread.
+     *
+     * @param value The chunk to write; it should not exceed the ATT MTU minus 3 bytes
+     * @param timeout The maximum time, in milliseconds, to wait for a credit
+     * @return Returns true if the chunk was queued; false if no credit became available in time
+     * or the stream is closed
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public boolean write(byte [] value, long timeout) throws InterruptedException {
+        if (mIsClosed || !mCredits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        submit(value);
+        return true;
+    }
+
+    /**
+     * Closes the stream.  Chunks already queued are still sent, but no new chunks are accepted.
+     */
+    public void close() {
+        mIsClosed = true;
+    }
+
+    /**
+     * @return Returns true if the stream has been closed
+     */
+    public boolean isClosed() {
+        return mIsClosed;
+    }
+
+    /**
+     * @return Returns the number of chunks which may be written without waiting
+     */
+    public int getAvailableCredits() {
+        return mCredits.availablePermits();
+    }
+
+    /**
+     * @return Returns the number of chunks queued or in flight
+     */
+    public int getOutstandingChunks() {
+        return mMaxCredits - mCredits.availablePermits();
+    }
+
+    /**
+     * @return Returns the number of payload bytes accepted by the Bluetooth stack
+     */
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return Returns the number of chunks accepted by the Bluetooth stack
+     */
+    public synchronized long getChunksWritten() {
+        return mChunksWritten;
+    }
+
+    /**
+     * @return Returns the number of chunks which failed or timed out
+     */
+    public synchronized long getChunksFailed() {
+        return mChunksFailed;
+    }
+
+    /**
+     * @return Returns the measured throughput, in bytes per second, from the first write to the
+     * most recent chunk accepted by the Bluetooth stack
+     */
+    public synchronized double getBytesPerSecond() {
+        long elapsed = mLastAckTime - mFirstWriteTime;
+        if (mChunksWritten == 0 || elapsed <= 0) {
+            return 0;
+        }
+        return (mBytesWritten * 1000000000.0) / elapsed;
+    }
+
+    private void submit(byte [] value) {
+        synchronized (this) {
+            if (mFirstWriteTime == 0) {
+                mFirstWriteTime = System.nanoTime();
+            }
+        }
+        RigCoreBluetooth.getInstance().submitStreamChunk(
+                new RigStreamWriteRequest(this, mDevice, mCharacteristic, value));
+    }
+
+    /**
+     * Called by RigCoreBluetooth when a chunk completes.  Returns the credit for the chunk.
+     *
+     * @param request The chunk which completed
+     * @param status The GATT status or failure status of the chunk
+     */
+    void didCompleteChunk(RigStreamWriteRequest request, int status) {
+        boolean success = (status == BluetoothGatt.GATT_SUCCESS);
+        synchronized (this) {
+            if (success) {
+                mBytesWritten += request.getValue().length;
+                mChunksWritten++;
+                mLastAckTime = System.nanoTime();
+            } else {
+                mChunksFailed++;
+            }
+        }
+        mCredits.release();
+
+        IRigWriteStreamObserver observer = mObserver;
+        if (observer != null) {
+            if (!success) {
+                observer.didFailWrite(this, status);
+            }
+            observer.didReturnCredit(this, mCredits.availablePermits());
+        }
+    }
+}
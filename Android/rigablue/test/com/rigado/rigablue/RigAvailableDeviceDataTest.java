@@ -0,0 +1,182 @@
+package com.rigado.rigablue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+
+import static com.rigado.rigablue.RigScanFilterTest.ad;
+import static com.rigado.rigablue.RigScanFilterTest.record;
+import static com.rigado.rigablue.RigScanFilterTest.uuid128;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *  RigAvailableDeviceDataTest.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * Unit tests for the RSSI buckets, RSSI smoothing, update reporting and AD structure
+ * index of {@link RigAvailableDeviceData}.
+ *
+ * @version 1.0
+ */
+public class RigAvailableDeviceDataTest {
+
+    @Test
+    public void rssiBucketsHaveEqualWidthAroundZero() {
+        assertEquals(0, RigAvailableDeviceData.rssiBucket(0, 5));
+        assertEquals(0, RigAvailableDeviceData.rssiBucket(4, 5));
+        assertEquals(1, RigAvailableDeviceData.rssiBucket(5, 5));
+        assertEquals(-1, RigAvailableDeviceData.rssiBucket(-1, 5));
+        assertEquals(-1, RigAvailableDeviceData.rssiBucket(-5, 5));
+        assertEquals(-2, RigAvailableDeviceData.rssiBucket(-6, 5));
+        assertEquals(-13, RigAvailableDeviceData.rssiBucket(-61, 5));
+    }
+
+    @Test
+    public void unitBucketIsTheRssi() {
+        for (int rssi = -127; rssi <= 20; rssi++) {
+            assertEquals(rssi, RigAvailableDeviceData.rssiBucket(rssi, 1));
+        }
+    }
+
+    @Test
+    public void updateInSameBucketIsNotReported() {
+        byte[] scanRecord = record(ad(0x01, 0x06));
+        RigAvailableDeviceData device = new RigAvailableDeviceData(null, -61, scanRecord, 0);
+
+        assertFalse(device.update(-65, scanRecord, 5000, 5, 1000));
+        assertEquals(-65, device.getRssi());
+        assertEquals(5000, device.getLastSeenTime());
+        assertTrue(device.update(-66, scanRecord, 5000, 5, 1000));
+    }
+
+    @Test
+    public void changedRecordIsReported() {
+        RigAvailableDeviceData device = new RigAvailableDeviceData(null, -60, record(ad(0x01, 0x06)), 0);
+
+        assertFalse(device.update(-60, record(ad(0x01, 0x06)), 5000, 5, 1000));
+        assertTrue(device.update(-60, record(ad(0x01, 0x04)), 5000, 5, 1000));
+    }
+
+    @Test
+    public void reportsAreSpacedByMinimumInterval() {
+        RigAvailableDeviceData device = new RigAvailableDeviceData(null, -60, null, 1000);
+
+        assertFalse(device.update(-80, null, 1500, 5, 1000));
+        assertTrue(device.update(-80, null, 2000, 5, 1000));
+        assertFalse(device.update(-40, null, 2999, 5, 1000));
+        assertTrue(device.update(-40, null, 500, 5, 1000));
+    }
+
+    @Test
+    public void smoothedRssiStartsAtFirstRssi() {
+        RigAvailableDeviceData device = new RigAvailableDeviceData(null, -60, null, 0);
+
+        assertEquals(-60, device.getSmoothedRssi(), 0);
+        assertEquals(-70, device.smoothRssi(-80, 0.5f), 0.001);
+        assertEquals(-70, device.getSmoothedRssi(), 0.001);
+    }
+
+    @Test
+    public void fullSmoothingFollowsRssi() {
+        RigAvailableDeviceData device = new RigAvailableDeviceData(null, -60, null, 0);
+
+        assertEquals(-40, device.smoothRssi(-40, 1), 0);
+        assertEquals(-90, device.smoothRssi(-90, 1), 0);
+    }
+
+    @Test
+    public void indexFindsEveryStructure() {
+        byte[] scanRecord = record(
+                ad(0x01, 0x06),
+                ad(0x0A, 0xF8),
+                ad(0x09, 'R', 'i', 'g', 'a', 'd', 'o'),
+                ad(0xFF, 0x4C, 0x00, 0x10),
+                ad(0xFF, 0x59, 0x00, 0x20, 0x21),
+                ad(0x16, 0x0d, 0x18, 0x33));
+        RigAvailableDeviceData device = new RigAvailableDeviceData(null, -60, scanRecord, 0);
+
+        assertEquals(0x06, device.getAdvertiseFlags());
+        assertEquals(-8, device.getTxPowerLevel());
+        assertEquals("Rigado", device.getUncachedName());
+        assertEquals(2, device.getAdvertisingDataList(RigAvailableDeviceData.DATA_TYPE_MANUFACTURER_SPECIFIC_DATA).size());
+
+        ByteBuffer manufacturer = device.getManufacturerData(0x0059);
+        assertEquals(2, manufacturer.remaining());
+        assertEquals(0x2120, manufacturer.getShort(0));
+
+        ByteBuffer service = device.getServiceData(UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb"));
+        assertEquals(1, service.remaining());
+        assertEquals(0x33, service.get(0));
+
+        assertNull(device.getManufacturerData(0x0001));
+        assertNull(device.getAdvertisingData(0x07));
+    }
+
+    @Test
+    public void serviceDataMatches128BitUuid() {
+        UUID uuid = UUID.fromString("2413b33f-707f-90bd-2045-2ab8807571b7");
+        byte[] data = new byte[17];
+        System.arraycopy(uuid128(uuid), 0, data, 0, 16);
+        data[16] = 0x42;
+        RigAvailableDeviceData device = new RigAvailableDeviceData(null, -60, record(ad(0x21, data)), 0);
+
+        assertEquals(0x42, device.getServiceData(uuid).get(0));
+        assertNull(device.getServiceData(UUID.randomUUID()));
+    }
+
+    @Test
+    public void dataViewsAreReadOnly() {
+        RigAvailableDeviceData device = new RigAvailableDeviceData(null, -60, record(ad(0x01, 0x06)), 0);
+
+        assertTrue(device.getAdvertisingData(RigAvailableDeviceData.DATA_TYPE_FLAGS).isReadOnly());
+    }
+
+    @Test
+    public void malformedStructureEndsIndex() {
+        byte[] scanRecord = record(ad(0x01, 0x06), new byte[] { 0x0A, 0x09, 'R', 'i' });
+        RigAvailableDeviceData device = new RigAvailableDeviceData(null, -60, scanRecord, 0);
+
+        assertEquals(0x06, device.getAdvertiseFlags());
+        assertNull(device.getUncachedName());
+    }
+
+    @Test
+    public void missingRecordHasNoData() {
+        RigAvailableDeviceData device = new RigAvailableDeviceData(null, -60, null, 0);
+
+        assertNull(device.getUncachedName());
+        assertEquals(-1, device.getAdvertiseFlags());
+        assertEquals(RigAvailableDeviceData.TX_POWER_UNKNOWN, device.getTxPowerLevel());
+        List<ByteBuffer> list = device.getAdvertisingDataList(RigAvailableDeviceData.DATA_TYPE_FLAGS);
+        assertTrue(list.isEmpty());
+    }
+
+    @Test
+    public void indexFollowsRecordContent() {
+        RigAvailableDeviceData device = new RigAvailableDeviceData(null, -60,
+                record(ad(0x09, 'A', 'B', 'C')), 0);
+        assertEquals("ABC", device.getUncachedName());
+
+        device.update(-60, record(ad(0x09, 'A', 'B', 'C')), 1000, 5, 0);
+        assertEquals("ABC", device.getUncachedName());
+
+        device.update(-60, record(ad(0x09, 'X', 'Y', 'Z')), 2000, 5, 0);
+        assertEquals("XYZ", device.getUncachedName());
+
+        device.update(-60, record(ad(0x01, 0x06), ad(0x08, 'Q')), 3000, 5, 0);
+        assertEquals("Q", device.getUncachedName());
+        assertEquals(0x06, device.getAdvertiseFlags());
+    }
+}
@@ -0,0 +1,350 @@
+package com.rigado.rigablue;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *  RigDeviceOpQueueTest.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * Unit tests for the priority lanes, starvation guard, coalescing, read joining, overflow
+ * policies and stall handling of {@link RigDeviceOpQueue}.
+ *
+ * @version 1.0
+ */
+public class RigDeviceOpQueueTest {
+
+    private RigDeviceOpQueue mQueue;
+    private IRigDataRequest mInFlight;
+
+    @Before
+    public void setUp() {
+        mQueue = new RigDeviceOpQueue("00:11:22:33:44:55");
+        mInFlight = read(IRigDataRequest.PRIORITY_NORMAL);
+        assertEquals(RigDeviceOpQueue.OFFER_POST, mQueue.offer(mInFlight, 0));
+    }
+
+    @Test
+    public void requestOnIdleLinkIsPostedAtOnce() {
+        assertSame(mInFlight, mQueue.getCurrent());
+        assertEquals(0, mQueue.size());
+    }
+
+    @Test
+    public void nothingIsPostedWhileRequestInFlight() {
+        IRigDataRequest waiting = read(IRigDataRequest.PRIORITY_NORMAL);
+
+        assertEquals(RigDeviceOpQueue.OFFER_QUEUED, mQueue.offer(waiting, 0));
+        assertNull(mQueue.next());
+        assertTrue(mQueue.completeCurrent(mInFlight));
+        assertSame(waiting, mQueue.next());
+    }
+
+    @Test
+    public void lateCompletionOfOtherRequestIsIgnored() {
+        assertFalse(mQueue.completeCurrent(read(IRigDataRequest.PRIORITY_NORMAL)));
+        assertSame(mInFlight, mQueue.getCurrent());
+    }
+
+    @Test
+    public void higherPriorityLaneIsServedFirst() {
+        IRigDataRequest bulk = read(IRigDataRequest.PRIORITY_BULK);
+        IRigDataRequest normal = read(IRigDataRequest.PRIORITY_NORMAL);
+        IRigDataRequest control = read(IRigDataRequest.PRIORITY_CONTROL);
+        mQueue.offer(bulk, 0);
+        mQueue.offer(normal, 0);
+        mQueue.offer(control, 0);
+
+        assertEquals(Arrays.asList(control, normal, bulk), drain());
+    }
+
+    @Test
+    public void laneIsFirstInFirstOut() {
+        IRigDataRequest first = read(IRigDataRequest.PRIORITY_BULK);
+        IRigDataRequest second = read(IRigDataRequest.PRIORITY_BULK);
+        IRigDataRequest third = read(IRigDataRequest.PRIORITY_BULK);
+        mQueue.offer(first, 0);
+        mQueue.offer(second, 0);
+        mQueue.offer(third, 0);
+
+        assertEquals(Arrays.asList(first, second, third), drain());
+    }
+
+    @Test
+    public void passedOverLaneIsServedAtStarvationLimit() {
+        IRigDataRequest bulk = read(IRigDataRequest.PRIORITY_BULK);
+        mQueue.offer(bulk, 0);
+        for (int i = 0; i < RigDeviceOpQueue.STARVATION_LIMIT * 2; i++) {
+            mQueue.offer(read(IRigDataRequest.PRIORITY_CONTROL), 0);
+        }
+
+        List<IRigDataRequest> order = drain();
+
+        assertEquals(RigDeviceOpQueue.STARVATION_LIMIT, order.indexOf(bulk));
+        assertEquals(RigDeviceOpQueue.STARVATION_LIMIT * 2 + 1, order.size());
+    }
+
+    @Test
+    public void coalescingWriteReplacesWaitingValue() {
+        BluetoothGattCharacteristic characteristic = characteristic();
+        RigWriteRequest waiting = coalescingWrite(characteristic, 1, IRigDataRequest.PRIORITY_NORMAL);
+        mQueue.offer(waiting, 0);
+
+        RigWriteRequest newer = coalescingWrite(characteristic, 2, IRigDataRequest.PRIORITY_NORMAL);
+
+        assertSame(waiting, mQueue.coalesce(newer));
+        assertArrayEquals(new byte[] { 2 }, waiting.getValue());
+        assertEquals(1, mQueue.size());
+    }
+
+    @Test
+    public void coalescingPromotesWaitingWrite() {
+        BluetoothGattCharacteristic characteristic = characteristic();
+        RigWriteRequest waiting = coalescingWrite(characteristic, 1, IRigDataRequest.PRIORITY_BULK);
+        IRigDataRequest normal = read(IRigDataRequest.PRIORITY_NORMAL);
+        mQueue.offer(waiting, 0);
+        mQueue.offer(normal, 0);
+
+        mQueue.coalesce(coalescingWrite(characteristic, 2, IRigDataRequest.PRIORITY_CONTROL));
+
+        assertEquals(IRigDataRequest.PRIORITY_CONTROL, waiting.getPriority());
+        assertEquals(Arrays.asList(waiting, normal), drain());
+    }
+
+    @Test
+    public void coalescingNeverDemotesWaitingWrite() {
+        BluetoothGattCharacteristic characteristic = characteristic();
+        RigWriteRequest waiting = coalescingWrite(characteristic, 1, IRigDataRequest.PRIORITY_CONTROL);
+        mQueue.offer(waiting, 0);
+
+        mQueue.coalesce(coalescingWrite(characteristic, 2, IRigDataRequest.PRIORITY_BULK));
+
+        assertEquals(IRigDataRequest.PRIORITY_CONTROL, waiting.getPriority());
+    }
+
+    @Test
+    public void plainWriteIsNotCoalesced() {
+        BluetoothGattCharacteristic characteristic = characteristic();
+        mQueue.offer(coalescingWrite(characteristic, 1, IRigDataRequest.PRIORITY_NORMAL), 0);
+
+        RigWriteRequest plain = new RigWriteRequest(null, characteristic, new byte[] { 2 });
+
+        assertNull(mQueue.coalesce(plain));
+    }
+
+    @Test
+    public void postedWriteIsNoLongerCoalesced() {
+        BluetoothGattCharacteristic characteristic = characteristic();
+        RigWriteRequest waiting = coalescingWrite(characteristic, 1, IRigDataRequest.PRIORITY_NORMAL);
+        mQueue.offer(waiting, 0);
+        mQueue.completeCurrent(mInFlight);
+
+        assertSame(waiting, mQueue.next());
+        assertNull(mQueue.coalesce(coalescingWrite(characteristic, 2, IRigDataRequest.PRIORITY_NORMAL)));
+        assertArrayEquals(new byte[] { 1 }, waiting.getValue());
+    }
+
+    @Test
+    public void readJoinsWaitingReadAndPromotesIt() {
+        BluetoothGattCharacteristic characteristic = characteristic();
+        RigReadRequest waiting = new RigReadRequest(null, characteristic);
+        waiting.setPriority(IRigDataRequest.PRIORITY_BULK);
+        IRigDataRequest normal = read(IRigDataRequest.PRIORITY_NORMAL);
+        mQueue.offer(waiting, 0);
+        mQueue.offer(normal, 0);
+
+        RigReadRequest joining = new RigReadRequest(null, characteristic);
+        joining.setPriority(IRigDataRequest.PRIORITY_CONTROL);
+
+        assertSame(waiting, mQueue.joinRead(joining));
+        assertEquals(Arrays.asList(waiting, normal), drain());
+        assertNull(mQueue.joinRead(joining));
+    }
+
+    @Test
+    public void rejectPolicyRefusesRequestWhenFull() {
+        mQueue.setCapacity(2, RigCoreBluetooth.QUEUE_POLICY_REJECT);
+        mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 0);
+        mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 0);
+
+        assertEquals(RigDeviceOpQueue.OFFER_REJECTED, mQueue.offer(read(IRigDataRequest.PRIORITY_CONTROL), 0));
+        assertEquals(2, mQueue.size());
+    }
+
+    @Test
+    public void dropOldestEvictsLowestPriorityRequest() {
+        mQueue.setCapacity(2, RigCoreBluetooth.QUEUE_POLICY_DROP_OLDEST);
+        IRigDataRequest bulk = read(IRigDataRequest.PRIORITY_BULK);
+        IRigDataRequest normal = read(IRigDataRequest.PRIORITY_NORMAL);
+        IRigDataRequest control = read(IRigDataRequest.PRIORITY_CONTROL);
+        mQueue.offer(normal, 0);
+        mQueue.offer(bulk, 0);
+
+        assertEquals(RigDeviceOpQueue.OFFER_QUEUED, mQueue.offer(control, 0));
+        assertEquals(Arrays.asList(bulk), mQueue.drainDropped());
+        assertNull(mQueue.drainDropped());
+        assertEquals(Arrays.asList(control, normal), drain());
+    }
+
+    @Test
+    public void dropOldestNeverEvictsHigherPriorityRequest() {
+        mQueue.setCapacity(1, RigCoreBluetooth.QUEUE_POLICY_DROP_OLDEST);
+        mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 0);
+
+        assertEquals(RigDeviceOpQueue.OFFER_REJECTED, mQueue.offer(read(IRigDataRequest.PRIORITY_BULK), 0));
+        assertNull(mQueue.drainDropped());
+    }
+
+    @Test
+    public void blockPolicyWithoutWaitRejects() {
+        mQueue.setCapacity(1, RigCoreBluetooth.QUEUE_POLICY_BLOCK);
+        mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 0);
+
+        assertEquals(RigDeviceOpQueue.OFFER_REJECTED, mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 0));
+    }
+
+    @Test
+    public void blockPolicyWaitsForRoom() throws InterruptedException {
+        mQueue.setCapacity(1, RigCoreBluetooth.QUEUE_POLICY_BLOCK);
+        mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 0);
+        final AtomicInteger result = new AtomicInteger(-1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 10000));
+            }
+        });
+        producer.start();
+        Thread.sleep(50);
+        assertEquals(-1, result.get());
+
+        mQueue.completeCurrent(mInFlight);
+        mQueue.next();
+        producer.join(5000);
+
+        assertEquals(RigDeviceOpQueue.OFFER_QUEUED, result.get());
+    }
+
+    @Test
+    public void blockedProducerIsReleasedByClear() throws InterruptedException {
+        mQueue.setCapacity(1, RigCoreBluetooth.QUEUE_POLICY_BLOCK);
+        mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 0);
+        final AtomicInteger result = new AtomicInteger(-1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 10000));
+            }
+        });
+        producer.start();
+        Thread.sleep(50);
+
+        mQueue.clear();
+        producer.join(5000);
+
+        assertEquals(RigDeviceOpQueue.OFFER_REJECTED, result.get());
+    }
+
+    @Test
+    public void watermarksAreReportedOnce() {
+        mQueue.setCapacity(4, RigCoreBluetooth.QUEUE_POLICY_REJECT);
+        mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 0);
+        mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 0);
+        assertEquals(RigDeviceOpQueue.WATERMARK_NONE, mQueue.checkWatermark());
+
+        mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 0);
+        assertEquals(RigDeviceOpQueue.WATERMARK_HIGH, mQueue.checkWatermark());
+        assertEquals(RigDeviceOpQueue.WATERMARK_NONE, mQueue.checkWatermark());
+
+        mQueue.completeCurrent();
+        mQueue.next();
+        assertEquals(RigDeviceOpQueue.WATERMARK_NONE, mQueue.checkWatermark());
+        mQueue.completeCurrent();
+        mQueue.next();
+        assertEquals(RigDeviceOpQueue.WATERMARK_LOW, mQueue.checkWatermark());
+    }
+
+    @Test
+    public void expiredRequestStallsQueueUntilReleased() {
+        IRigDataRequest waiting = read(IRigDataRequest.PRIORITY_NORMAL);
+        mQueue.offer(waiting, 0);
+
+        assertTrue(mQueue.expire(mInFlight));
+        assertNull(mQueue.getCurrent());
+        assertSame(mInFlight, mQueue.getStalled());
+        assertNull(mQueue.next());
+        assertEquals(RigDeviceOpQueue.OFFER_QUEUED, mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 0));
+
+        assertFalse(mQueue.releaseStalled(waiting));
+        assertTrue(mQueue.releaseStalled(mInFlight));
+        assertSame(waiting, mQueue.next());
+    }
+
+    @Test
+    public void clearReturnsEveryRequestAndClosesQueue() {
+        IRigDataRequest waiting = read(IRigDataRequest.PRIORITY_BULK);
+        mQueue.offer(waiting, 0);
+
+        assertEquals(Arrays.asList(mInFlight, waiting), mQueue.clear());
+        assertNull(mQueue.getCurrent());
+        assertEquals(RigDeviceOpQueue.OFFER_REJECTED, mQueue.offer(read(IRigDataRequest.PRIORITY_NORMAL), 0));
+    }
+
+    /**
+     * Completes the in-flight request and posts the next one until the queue is empty.
+     *
+     * @return Returns the requests in the order they were posted
+     */
+    private List<IRigDataRequest> drain() {
+        List<IRigDataRequest> order = new ArrayList<>();
+        while (true) {
+            mQueue.completeCurrent();
+            IRigDataRequest next = mQueue.next();
+            if (next == null) {
+                return order;
+            }
+            order.add(next);
+        }
+    }
+
+    private static BluetoothGattCharacteristic characteristic() {
+        return new BluetoothGattCharacteristic(UUID.randomUUID(),
+                BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE, 0);
+    }
+
+    private static RigReadRequest read(int priority) {
+        RigReadRequest request = new RigReadRequest(null, characteristic());
+        request.setPriority(priority);
+        return request;
+    }
+
+    private static RigWriteRequest coalescingWrite(BluetoothGattCharacteristic characteristic, int value,
+                                                   int priority) {
+        RigWriteRequest request = new RigWriteRequest(null, characteristic, new byte[] { (byte) value });
+        request.setCoalescing(true);
+        request.setPriority(priority);
+        return request;
+    }
+}
@@ -0,0 +1,235 @@
+package com.rigado.rigablue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *  RigScanFilterTest.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * Unit tests for the AD structure walk, the 16-bit UUID bitmap and the UUID hash table of
+ * {@link RigScanFilter}.
+ *
+ * @version 1.0
+ */
+public class RigScanFilterTest {
+
+    private static final String HEART_RATE = "0000180d-0000-1000-8000-00805f9b34fb";
+    private static final String BATTERY = "0000180f-0000-1000-8000-00805f9b34fb";
+    private static final String RIGADO_SERVICE = "2413b33f-707f-90bd-2045-2ab8807571b7";
+
+    @Test
+    public void requestWithoutCriteriaMatchesEveryRecord() {
+        RigScanFilter filter = RigScanFilter.fromRequest(new RigDeviceRequest(null, 0));
+
+        assertTrue(filter.isEmpty());
+        assertTrue(filter.matches(null, -100));
+        assertTrue(filter.matches(record(ad(0x01, 0x06)), -100));
+    }
+
+    @Test
+    public void uuid16IsFoundInAnyListPosition() {
+        RigScanFilter filter = filterFor(HEART_RATE);
+
+        assertTrue(filter.matches(record(ad(0x03, 0x0d, 0x18)), -50));
+        assertTrue(filter.matches(record(ad(0x01, 0x06), ad(0x02, 0x0f, 0x18, 0x0d, 0x18)), -50));
+        assertFalse(filter.matches(record(ad(0x03, 0x0f, 0x18, 0x0a, 0x18)), -50));
+    }
+
+    @Test
+    public void uuid16BitmapMatchesLongerForms() {
+        RigScanFilter filter = filterFor(HEART_RATE);
+
+        assertTrue(filter.matches(record(ad(0x05, 0x0d, 0x18, 0x00, 0x00)), -50));
+        assertTrue(filter.matches(record(ad(0x07, uuid128(UUID.fromString(HEART_RATE)))), -50));
+        assertFalse(filter.matches(record(ad(0x05, 0x0d, 0x18, 0x01, 0x00)), -50));
+    }
+
+    @Test
+    public void uuid16DoesNotMatchUnrelatedAdTypes() {
+        RigScanFilter filter = filterFor(HEART_RATE);
+
+        assertFalse(filter.matches(record(ad(0x16, 0x0d, 0x18, 0x01)), -50));
+        assertFalse(filter.matches(record(ad(0xFF, 0x0d, 0x18)), -50));
+    }
+
+    @Test
+    public void uuid128IsFoundThroughHashTable() {
+        List<String> uuids = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            uuids.add(new UUID(0x1234567800000000L + i, 0x8000000000000000L | i).toString());
+        }
+        uuids.add(RIGADO_SERVICE);
+        uuids.add(BATTERY);
+        RigScanFilter filter = filterFor(uuids.toArray(new String[uuids.size()]));
+
+        assertTrue(filter.matches(record(ad(0x07, uuid128(UUID.fromString(RIGADO_SERVICE)))), -50));
+        assertTrue(filter.matches(record(ad(0x06, uuid128(UUID.fromString(uuids.get(17))))), -50));
+        assertTrue(filter.matches(record(ad(0x03, 0x0f, 0x18)), -50));
+        assertFalse(filter.matches(record(ad(0x07, uuid128(UUID.randomUUID()))), -50));
+        assertFalse(filter.matches(record(ad(0x03, 0x0d, 0x18)), -50));
+    }
+
+    @Test
+    public void uuid32IsFoundThroughHashTable() {
+        RigScanFilter filter = filterFor("12345678-0000-1000-8000-00805f9b34fb");
+
+        assertTrue(filter.matches(record(ad(0x05, 0x78, 0x56, 0x34, 0x12)), -50));
+        assertFalse(filter.matches(record(ad(0x05, 0x78, 0x56, 0x34, 0x13)), -50));
+    }
+
+    @Test
+    public void overlongStructureEndsTheWalk() {
+        RigScanFilter filter = filterFor(HEART_RATE);
+        byte[] truncated = record(ad(0x01, 0x06), new byte[] { 0x09, 0x03, 0x0d, 0x18 });
+
+        assertFalse(filter.matches(truncated, -50));
+    }
+
+    @Test
+    public void zeroLengthStructureEndsTheWalk() {
+        RigScanFilter filter = filterFor(HEART_RATE);
+        byte[] padded = record(ad(0x01, 0x06), new byte[] { 0x00 }, ad(0x03, 0x0d, 0x18));
+
+        assertFalse(filter.matches(padded, -50));
+    }
+
+    @Test
+    public void lengthLimitsTheWalk() {
+        RigScanFilter filter = filterFor(HEART_RATE);
+        byte[] buffer = Arrays.copyOf(record(ad(0x01, 0x06), ad(0x03, 0x0d, 0x18)), 31);
+
+        assertTrue(filter.matches(buffer, 7, -50));
+        assertFalse(filter.matches(buffer, 3, -50));
+        assertFalse(filter.matches(buffer, 6, -50));
+    }
+
+    @Test
+    public void namePrefixMatchesShortAndCompleteNames() {
+        RigDeviceRequest request = new RigDeviceRequest(null, 0);
+        request.setNamePrefix("Rig");
+        RigScanFilter filter = RigScanFilter.fromRequest(request);
+
+        assertTrue(filter.matches(record(ad(0x09, 'R', 'i', 'g', 'a', 'd', 'o')), -50));
+        assertTrue(filter.matches(record(ad(0x08, 'R', 'i', 'g')), -50));
+        assertFalse(filter.matches(record(ad(0x09, 'R', 'i')), -50));
+        assertFalse(filter.matches(record(ad(0x09, 'r', 'i', 'g')), -50));
+    }
+
+    @Test
+    public void manufacturerDataIsComparedUnderMask() {
+        RigDeviceRequest request = new RigDeviceRequest(null, 0);
+        request.setManufacturerData(0x0059, new byte[] { 0x01, 0x02 }, new byte[] { (byte) 0xFF, 0x0F });
+        RigScanFilter filter = RigScanFilter.fromRequest(request);
+
+        assertTrue(filter.matches(record(ad(0xFF, 0x59, 0x00, 0x01, 0xF2, 0x33)), -50));
+        assertFalse(filter.matches(record(ad(0xFF, 0x59, 0x00, 0x01, 0x03)), -50));
+        assertFalse(filter.matches(record(ad(0xFF, 0x5A, 0x00, 0x01, 0x02)), -50));
+        assertFalse(filter.matches(record(ad(0xFF, 0x59, 0x00, 0x01)), -50));
+    }
+
+    @Test
+    public void serviceDataMatchesEveryUuidForm() {
+        RigDeviceRequest request = new RigDeviceRequest(null, 0);
+        request.setServiceData("0000fe59-0000-1000-8000-00805f9b34fb", new byte[] { 0x01 }, null);
+        RigScanFilter filter = RigScanFilter.fromRequest(request);
+
+        assertTrue(filter.matches(record(ad(0x16, 0x59, 0xFE, 0x01)), -50));
+        assertTrue(filter.matches(record(ad(0x20, 0x59, 0xFE, 0x00, 0x00, 0x01)), -50));
+        assertFalse(filter.matches(record(ad(0x16, 0x59, 0xFE, 0x02)), -50));
+        assertFalse(filter.matches(record(ad(0x16, 0x5A, 0xFE, 0x01)), -50));
+    }
+
+    @Test
+    public void everyCriterionMustMatch() {
+        RigDeviceRequest request = new RigDeviceRequest(new String[] { HEART_RATE }, 0);
+        request.setNamePrefix("HR");
+        request.setMinRssi(-70);
+        RigScanFilter filter = RigScanFilter.fromRequest(request);
+        byte[] both = record(ad(0x03, 0x0d, 0x18), ad(0x09, 'H', 'R', '1'));
+
+        assertTrue(filter.matches(both, -70));
+        assertFalse(filter.matches(both, -71));
+        assertFalse(filter.matches(record(ad(0x03, 0x0d, 0x18)), -50));
+        assertFalse(filter.matches(record(ad(0x09, 'H', 'R', '1')), -50));
+    }
+
+    @Test
+    public void unionMatchesAnyAlternative() {
+        RigScanFilter union = RigScanFilter.anyOf(Arrays.asList(filterFor(HEART_RATE), filterFor(BATTERY)));
+
+        assertTrue(union.matches(record(ad(0x03, 0x0d, 0x18)), -50));
+        assertTrue(union.matches(record(ad(0x03, 0x0f, 0x18)), -50));
+        assertFalse(union.matches(record(ad(0x03, 0x0a, 0x18)), -50));
+    }
+
+    @Test
+    public void unionWithEmptyFilterMatchesAll() {
+        RigScanFilter empty = RigScanFilter.fromRequest(new RigDeviceRequest(null, 0));
+
+        assertSame(RigScanFilter.MATCH_ALL, RigScanFilter.anyOf(Arrays.asList(filterFor(HEART_RATE), empty)));
+    }
+
+    private static RigScanFilter filterFor(String... uuids) {
+        return RigScanFilter.fromRequest(new RigDeviceRequest(uuids, 0));
+    }
+
+    /**
+     * Builds one AD structure from its type and data bytes.
+     */
+    static byte[] ad(int type, int... data) {
+        byte[] structure = new byte[data.length + 2];
+        structure[0] = (byte) (data.length + 1);
+        structure[1] = (byte) type;
+        for (int i = 0; i < data.length; i++) {
+            structure[i + 2] = (byte) data[i];
+        }
+        return structure;
+    }
+
+    static byte[] ad(int type, byte[] data) {
+        int[] values = new int[data.length];
+        for (int i = 0; i < data.length; i++) {
+            values[i] = data[i];
+        }
+        return ad(type, values);
+    }
+
+    static byte[] record(byte[]... structures) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] structure : structures) {
+            out.write(structure, 0, structure.length);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return Returns the 128-bit UUID in the little endian order of the advertising data
+     */
+    static byte[] uuid128(UUID uuid) {
+        byte[] bytes = new byte[16];
+        long lsb = uuid.getLeastSignificantBits();
+        long msb = uuid.getMostSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (lsb >>> (8 * i));
+            bytes[i + 8] = (byte) (msb >>> (8 * i));
+        }
+        return bytes;
+    }
+}
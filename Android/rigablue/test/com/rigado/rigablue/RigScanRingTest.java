@@ -0,0 +1,200 @@
+package com.rigado.rigablue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *  RigScanRingTest.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * Unit tests for the ordering, drop accounting, batch entries and tasks of {@link RigScanRing}.
+ *
+ * @version 1.0
+ */
+public class RigScanRingTest {
+
+    @Test
+    public void resultsAreTakenInOrder() throws InterruptedException {
+        RigScanRing ring = new RigScanRing(4, 8);
+        ring.offer(null, -40, new byte[] { 1, 2, 3 }, 100);
+        ring.offer(null, -50, null, 200);
+        RigScanRing.Slot slot = new RigScanRing.Slot();
+
+        ring.take(slot);
+        assertEquals(RigScanRing.KIND_SINGLE, slot.kind);
+        assertEquals(-40, slot.rssi);
+        assertEquals(100, slot.timestamp);
+        assertEquals(3, slot.length);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, Arrays.copyOf(slot.record, slot.length));
+
+        ring.take(slot);
+        assertEquals(-50, slot.rssi);
+        assertEquals(200, slot.timestamp);
+        assertEquals(-1, slot.length);
+    }
+
+    @Test
+    public void recordIsCopiedOnOffer() throws InterruptedException {
+        RigScanRing ring = new RigScanRing(2, 8);
+        byte[] record = { 1, 2 };
+        ring.offer(null, -40, record, 0);
+        record[0] = 9;
+        RigScanRing.Slot slot = new RigScanRing.Slot();
+
+        ring.take(slot);
+
+        assertEquals(1, slot.record[0]);
+    }
+
+    @Test
+    public void longRecordGrowsItsSlot() throws InterruptedException {
+        RigScanRing ring = new RigScanRing(2, 4);
+        byte[] record = new byte[62];
+        for (int i = 0; i < record.length; i++) {
+            record[i] = (byte) i;
+        }
+        ring.offer(null, -40, record, 0);
+        RigScanRing.Slot slot = new RigScanRing.Slot();
+
+        ring.take(slot);
+
+        assertEquals(record.length, slot.length);
+        assertArrayEquals(record, Arrays.copyOf(slot.record, slot.length));
+    }
+
+    @Test
+    public void fullRingDropsNewResults() throws InterruptedException {
+        RigScanRing ring = new RigScanRing(2, 8);
+        assertTrue(ring.offer(null, -1, null, 1));
+        assertTrue(ring.offer(null, -2, null, 2));
+
+        assertFalse(ring.offer(null, -3, null, 3));
+        assertEquals(3, ring.getReceived());
+        assertEquals(1, ring.getDropped());
+        assertEquals(1, ring.takeUnreportedDrops());
+        assertEquals(0, ring.takeUnreportedDrops());
+
+        RigScanRing.Slot slot = new RigScanRing.Slot();
+        ring.take(slot);
+        assertEquals(-1, slot.rssi);
+        assertTrue(ring.offer(null, -4, null, 4));
+        ring.take(slot);
+        assertEquals(-2, slot.rssi);
+        ring.take(slot);
+        assertEquals(-4, slot.rssi);
+    }
+
+    @Test
+    public void batchTakesOneEntry() throws InterruptedException {
+        RigScanRing ring = new RigScanRing(2, 8);
+        List<RigScanResult> batch = batch(5);
+
+        assertTrue(ring.offerBatch(batch));
+        assertTrue(ring.offer(null, -40, null, 0));
+        assertEquals(6, ring.getReceived());
+
+        RigScanRing.Slot slot = new RigScanRing.Slot();
+        ring.take(slot);
+        assertEquals(RigScanRing.KIND_BATCH, slot.kind);
+        assertSame(batch, slot.batch);
+        ring.take(slot);
+        assertEquals(RigScanRing.KIND_SINGLE, slot.kind);
+        assertEquals(-40, slot.rssi);
+    }
+
+    @Test
+    public void batchIsDroppedAsWhole() {
+        RigScanRing ring = new RigScanRing(1, 8);
+        ring.offer(null, -40, null, 0);
+
+        assertFalse(ring.offerBatch(batch(3)));
+        assertEquals(4, ring.getReceived());
+        assertEquals(3, ring.getDropped());
+        assertEquals(3, ring.takeUnreportedDrops());
+    }
+
+    @Test
+    public void batchKeepsItsPlaceBetweenSingles() throws InterruptedException {
+        RigScanRing ring = new RigScanRing(4, 8);
+        ring.offer(null, -1, null, 1);
+        ring.offerBatch(batch(2));
+        ring.offer(null, -2, null, 2);
+        RigScanRing.Slot slot = new RigScanRing.Slot();
+
+        ring.take(slot);
+        assertEquals(RigScanRing.KIND_SINGLE, slot.kind);
+        ring.take(slot);
+        assertEquals(RigScanRing.KIND_BATCH, slot.kind);
+        assertEquals(2, slot.batch.size());
+        ring.take(slot);
+        assertEquals(RigScanRing.KIND_SINGLE, slot.kind);
+        assertEquals(-2, slot.rssi);
+    }
+
+    @Test
+    public void taskIsKeptWhenFullAndTakenFirst() throws InterruptedException {
+        RigScanRing ring = new RigScanRing(1, 8);
+        ring.offer(null, -40, null, 0);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        ring.offerTask(task);
+        RigScanRing.Slot slot = new RigScanRing.Slot();
+        ring.take(slot);
+        assertEquals(RigScanRing.KIND_TASK, slot.kind);
+        assertSame(task, slot.task);
+        ring.take(slot);
+        assertEquals(RigScanRing.KIND_SINGLE, slot.kind);
+        assertEquals(0, ring.getDropped());
+    }
+
+    @Test
+    public void takeWaitsForOffer() throws InterruptedException {
+        final RigScanRing ring = new RigScanRing(2, 8);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ring.offer(null, -40, null, 7);
+            }
+        });
+        producer.start();
+        RigScanRing.Slot slot = new RigScanRing.Slot();
+
+        ring.take(slot);
+
+        assertEquals(7, slot.timestamp);
+        producer.join();
+    }
+
+    private static List<RigScanResult> batch(int size) {
+        List<RigScanResult> batch = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            batch.add(new RigScanResult(null, -60 - i, new byte[] { 2, 1, 6 }, i));
+        }
+        return batch;
+    }
+}
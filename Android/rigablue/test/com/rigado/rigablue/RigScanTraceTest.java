@@ -0,0 +1,165 @@
+package com.rigado.rigablue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *  RigScanTraceTest.java
+ *
+ *  @copyright (c) Rigado, Inc. All rights reserved.
+ *
+ *  Source code licensed under BMD-200 Software License Agreement.
+ *  You should have received a copy with purchase of BMD-200 product.
+ *  If not, contact info@rigado.com for a copy.
+ */
+
+/**
+ * Unit tests for the scan trace format written by {@link RigScanRecorder} and read back by
+ * {@link RigScanReplayer}.
+ *
+ * @version 1.0
+ */
+public class RigScanTraceTest {
+
+    private static final String ADDRESS_A = "C0:FF:EE:00:00:01";
+    private static final String ADDRESS_B = "0A:1B:2C:3D:4E:5F";
+
+    @Test
+    public void scanResultsSurviveRoundTrip() throws IOException {
+        byte[] longRecord = new byte[300];
+        for (int i = 0; i < longRecord.length; i++) {
+            longRecord[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RigScanRecorder recorder = new RigScanRecorder(out);
+        recorder.record(1000, ADDRESS_A, -40, new byte[] { 2, 1, 6 }, 3);
+        recorder.record(900, ADDRESS_B, -127, null, -1);
+        recorder.record(900 + (1L << 40), ADDRESS_A, 0, new byte[0], 0);
+        recorder.record(5, ADDRESS_B, -60, longRecord, longRecord.length);
+        assertEquals(4, recorder.getRecordedCount());
+        recorder.close();
+
+        RigScanReplayer replayer = open(out);
+
+        assertTrue(replayer.readNext());
+        assertEquals(1000, replayer.getTimestamp());
+        assertEquals(ADDRESS_A, replayer.getAddress());
+        assertEquals(-40, replayer.getRssi());
+        assertArrayEquals(new byte[] { 2, 1, 6 }, replayer.getScanRecord());
+
+        assertTrue(replayer.readNext());
+        assertEquals(900, replayer.getTimestamp());
+        assertEquals(ADDRESS_B, replayer.getAddress());
+        assertEquals(-127, replayer.getRssi());
+        assertNull(replayer.getScanRecord());
+
+        assertTrue(replayer.readNext());
+        assertEquals(900 + (1L << 40), replayer.getTimestamp());
+        assertEquals(0, replayer.getScanRecord().length);
+
+        assertTrue(replayer.readNext());
+        assertEquals(5, replayer.getTimestamp());
+        assertArrayEquals(longRecord, replayer.getScanRecord());
+
+        assertFalse(replayer.readNext());
+    }
+
+    @Test
+    public void recordLengthLimitsRecordedBytes() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RigScanRecorder recorder = new RigScanRecorder(out);
+        recorder.record(0, ADDRESS_A, -40, new byte[] { 2, 1, 6, 0, 0, 0 }, 3);
+        recorder.close();
+
+        RigScanReplayer replayer = open(out);
+
+        assertTrue(replayer.readNext());
+        assertArrayEquals(new byte[] { 2, 1, 6 }, replayer.getScanRecord());
+    }
+
+    @Test
+    public void unparsableAddressIsRecordedAsZeros() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RigScanRecorder recorder = new RigScanRecorder(out);
+        recorder.record(0, "not an address", -40, null, -1);
+        recorder.record(0, "GG:00:00:00:00:00", -40, null, -1);
+        recorder.close();
+
+        RigScanReplayer replayer = open(out);
+
+        assertTrue(replayer.readNext());
+        assertEquals("00:00:00:00:00:00", replayer.getAddress());
+        assertTrue(replayer.readNext());
+        assertEquals("00:00:00:00:00:00", replayer.getAddress());
+    }
+
+    @Test
+    public void closedRecorderRecordsNothing() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RigScanRecorder recorder = new RigScanRecorder(out);
+        recorder.close();
+        recorder.record(0, ADDRESS_A, -40, null, -1);
+
+        assertEquals(0, recorder.getRecordedCount());
+        assertFalse(open(out).readNext());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherStreamIsRejected() throws IOException {
+        new RigScanReplayer(new ByteArrayInputStream(new byte[] { 'P', 'K', 3, 4, 1 }));
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedTraceIsReported() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RigScanRecorder recorder = new RigScanRecorder(out);
+        recorder.record(0, ADDRESS_A, -40, new byte[] { 2, 1, 6 }, 3);
+        recorder.close();
+        byte[] trace = out.toByteArray();
+
+        RigScanReplayer replayer = new RigScanReplayer(
+                new ByteArrayInputStream(Arrays.copyOf(trace, trace.length - 1)));
+        replayer.readNext();
+    }
+
+    @Test
+    public void replayFiltersWithRequest() throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RigScanRecorder recorder = new RigScanRecorder(out);
+        recorder.record(10, ADDRESS_A, -40, new byte[] { 3, 3, 0x0d, 0x18 }, 4);
+        recorder.record(20, ADDRESS_B, -40, new byte[] { 3, 3, 0x0f, 0x18 }, 4);
+        recorder.record(30, ADDRESS_B, -40, null, -1);
+        recorder.record(40, ADDRESS_B, -40, new byte[] { 3, 3, 0x0d, 0x18 }, 4);
+        recorder.close();
+        RigDeviceRequest request = new RigDeviceRequest(
+                new String[] { "0000180d-0000-1000-8000-00805f9b34fb" }, 0);
+        final List<String> reported = new ArrayList<>();
+
+        int count = open(out).replay(new RigScanReplayer.ScanResultListener() {
+            @Override
+            public void onScanResult(String address, int rssi, byte[] scanRecord, long timestamp) {
+                reported.add(address + "@" + timestamp);
+            }
+        }, request, RigScanReplayer.SPEED_UNLIMITED);
+
+        assertEquals(2, count);
+        assertEquals(Arrays.asList(ADDRESS_A + "@10", ADDRESS_B + "@40"), reported);
+    }
+
+    private static RigScanReplayer open(ByteArrayOutputStream out) throws IOException {
+        return new RigScanReplayer(new ByteArrayInputStream(out.toByteArray()));
+    }
+}